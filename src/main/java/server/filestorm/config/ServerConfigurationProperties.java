@@ -11,6 +11,22 @@ public class ServerConfigurationProperties {
     private String client_location;
     private String jwt_secret;
     private String available_storage_per_account_gb;
+    private String upload_session_ttl_hours;
+    private String processing_threads_per_stage;
+    private String sendfile_min_size_kb;
+    private String public_file_cache_control;
+    private String public_file_cache_size_mb;
+    private String public_file_cache_max_file_size_mb;
+    private String bandwidth_global_mbit_per_s;
+    private String bandwidth_per_user_mbit_per_s;
+    private String tar_prefetch_entries;
+    private String archive_gzip_threads;
+    private String archive_gzip_level;
+    private String deletion_unlink_threads;
+    private String deletion_unlink_batch_size;
+    private String reconciler_io_operations_per_s;
+    private String reconciler_interval_hours;
+    private String reconciler_repair;
 
     public String getDomain() {
         return domain;
@@ -55,4 +71,132 @@ public class ServerConfigurationProperties {
     public void setAvailableStoragePerAccountGb(String gb) {
         this.available_storage_per_account_gb = gb;
     }
+
+    public int getUploadSessionTtlHours() {
+        return Integer.parseInt(upload_session_ttl_hours);
+    }
+
+    public void setUploadSessionTtlHours(String hours) {
+        this.upload_session_ttl_hours = hours;
+    }
+
+    public int getProcessingThreadsPerStage() {
+        return Integer.parseInt(processing_threads_per_stage);
+    }
+
+    public void setProcessingThreadsPerStage(String threads) {
+        this.processing_threads_per_stage = threads;
+    }
+
+    public int getSendfileMinSizeKb() {
+        return Integer.parseInt(sendfile_min_size_kb);
+    }
+
+    public void setSendfileMinSizeKb(String kb) {
+        this.sendfile_min_size_kb = kb;
+    }
+
+    public String getPublicFileCacheControl() {
+        return public_file_cache_control;
+    }
+
+    public void setPublicFileCacheControl(String cacheControl) {
+        this.public_file_cache_control = cacheControl;
+    }
+
+    public int getPublicFileCacheSizeMb() {
+        return Integer.parseInt(public_file_cache_size_mb);
+    }
+
+    public void setPublicFileCacheSizeMb(String mb) {
+        this.public_file_cache_size_mb = mb;
+    }
+
+    public int getPublicFileCacheMaxFileSizeMb() {
+        return Integer.parseInt(public_file_cache_max_file_size_mb);
+    }
+
+    public void setPublicFileCacheMaxFileSizeMb(String mb) {
+        this.public_file_cache_max_file_size_mb = mb;
+    }
+
+    public int getBandwidthGlobalMbitPerS() {
+        return Integer.parseInt(bandwidth_global_mbit_per_s);
+    }
+
+    public void setBandwidthGlobalMbitPerS(String mbit) {
+        this.bandwidth_global_mbit_per_s = mbit;
+    }
+
+    public int getBandwidthPerUserMbitPerS() {
+        return Integer.parseInt(bandwidth_per_user_mbit_per_s);
+    }
+
+    public void setBandwidthPerUserMbitPerS(String mbit) {
+        this.bandwidth_per_user_mbit_per_s = mbit;
+    }
+
+    public int getTarPrefetchEntries() {
+        return Integer.parseInt(tar_prefetch_entries);
+    }
+
+    public void setTarPrefetchEntries(String entries) {
+        this.tar_prefetch_entries = entries;
+    }
+
+    public int getArchiveGzipThreads() {
+        return Integer.parseInt(archive_gzip_threads);
+    }
+
+    public void setArchiveGzipThreads(String threads) {
+        this.archive_gzip_threads = threads;
+    }
+
+    public int getArchiveGzipLevel() {
+        return Integer.parseInt(archive_gzip_level);
+    }
+
+    public void setArchiveGzipLevel(String level) {
+        this.archive_gzip_level = level;
+    }
+
+    public int getDeletionUnlinkThreads() {
+        return Integer.parseInt(deletion_unlink_threads);
+    }
+
+    public void setDeletionUnlinkThreads(String threads) {
+        this.deletion_unlink_threads = threads;
+    }
+
+    public int getDeletionUnlinkBatchSize() {
+        return Integer.parseInt(deletion_unlink_batch_size);
+    }
+
+    public void setDeletionUnlinkBatchSize(String batchSize) {
+        this.deletion_unlink_batch_size = batchSize;
+    }
+
+    public int getReconcilerIoOperationsPerS() {
+        return Integer.parseInt(reconciler_io_operations_per_s);
+    }
+
+    public void setReconcilerIoOperationsPerS(String operations) {
+        this.reconciler_io_operations_per_s = operations;
+    }
+
+    public int getReconcilerIntervalHours() {
+        return Integer.parseInt(reconciler_interval_hours);
+    }
+
+    public void setReconcilerIntervalHours(String hours) {
+        this.reconciler_interval_hours = hours;
+    }
+
+    public boolean isReconcilerRepair() {
+        return Boolean.parseBoolean(reconciler_repair);
+    }
+
+    public void setReconcilerRepair(String repair) {
+        this.reconciler_repair = repair;
+    }
 }
@@ -1,13 +1,8 @@
 package server.filestorm.controller;
 
-import java.io.BufferedOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
@@ -16,12 +11,12 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import server.filestorm.exception.FileManagementException;
-import server.filestorm.exception.StorageException;
 import server.filestorm.model.entity.Chunk;
 import server.filestorm.model.entity.User;
 import server.filestorm.model.entity.Chunk.ShareOption;
@@ -30,8 +25,10 @@ import server.filestorm.model.type.BulkManipulationData;
 import server.filestorm.model.type.CustomSession;
 import server.filestorm.model.type.authentication.UserReference;
 import server.filestorm.model.type.fileManagement.ChunkReference;
+import server.filestorm.model.type.fileManagement.TarArchivePlan;
 import server.filestorm.service.ChunkService;
-import server.filestorm.service.FileSystemService;
+import server.filestorm.service.FileDownloadService;
+import server.filestorm.service.TarArchiveService;
 import server.filestorm.service.SharingService;
 import server.filestorm.service.UserService;
 import server.filestorm.thread.ThreadExecutorService;
@@ -53,12 +50,13 @@ public class FileSharing {
     private SharingService sharingService;
 
     @Autowired
-    private FileSystemService fileSystemService;
+    private FileDownloadService fileDownloadService;
 
     @Autowired
-    private ThreadExecutorService threadExecutorService;
+    private TarArchiveService tarArchiveService;
 
-    private Logger logger = LoggerFactory.getLogger(FileSharing.class);
+    @Autowired
+    private ThreadExecutorService threadExecutorService;
 
     @GetMapping("/api/file-sharing/share_with")
     public DeferredResult<ResponseEntity<ApiResponse<?>>> getShareWithForFileOfUser(
@@ -316,31 +314,31 @@ public class FileSharing {
     @GetMapping("/api/file-sharing/file")
     public ResponseEntity<StreamingResponseBody> downloadFile(
             @RequestParam Long fileId,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
             CustomHttpServletRequestWrapper req) {
         CustomSession session = req.getCustomSession();
         Long userId = session.getUserId();
         User user = userService.findById(userId);
         Chunk sharedChunk = chunkService.findChunkSharedWithUser(fileId, user);
 
-        StreamingResponseBody srb = out -> {
-            try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(out)) {
-                fileSystemService.streamFileToClient(sharedChunk, bufferedOutputStream);
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new StorageException("Erro occured while streaming the file.", e);
-            }
-        };
-        return ResponseEntity.ok()
-                .header("Content-Type", sharedChunk.getMimeType())
-                .header("Content-Length", String.valueOf(sharedChunk.getSizeBytes()))
-                .body(srb);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_TYPE, sharedChunk.getMimeType());
+        return fileDownloadService.buildDownloadResponse(sharedChunk, range, ifRange, headers, userId, req);
     }
 
-    @GetMapping(path = "/api/file-sharing/file/bulk", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @GetMapping(path = "/api/file-sharing/file/bulk", produces = { MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            "application/gzip" })
     public ResponseEntity<StreamingResponseBody> bulkDownloadFilesSharedWithMe(
             @RequestParam String chunkIdsStr,
+            @RequestParam(defaultValue = "tar") String format,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
             CustomHttpServletRequestWrapper req) {
+        if (!format.equals("tar") && !format.equals("tar.gz")) {
+            throw new FileManagementException("Unsupported archive format.");
+        }
+
         CustomSession session = req.getCustomSession();
         Long userId = session.getUserId();
         User user = userService.findById(userId);
@@ -351,27 +349,17 @@ public class FileSharing {
 
         Chunk[] chunks = chunkService.bulkConfirmSharedWithMeAndCollect(chunkIds, user);
 
-        StreamingResponseBody srb = out -> {
-            try (TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(out)) {
-                tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-                fileSystemService.tarEtities(tarOutputStream, chunks, null);
-                try {
-                    tarOutputStream.finish();
-                } catch (IOException e) {
-                    logger.warn("Client aborted download before tar finished.", e.getMessage());
-                }
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
-                throw new StorageException("Erro occured while streaming the file.", e);
-            }
-        };
-
-        return ResponseEntity.ok()
-                .header("Content-Disposition", "attachment; filename=\"FileStorm.tar\"")
-                .header(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate")
-                .header(HttpHeaders.EXPIRES, "0")
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .body(srb);
+        TarArchivePlan plan = tarArchiveService.planArchive(chunks, null, user);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"FileStorm." + format + "\"");
+        headers.set(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+        headers.set(HttpHeaders.EXPIRES, "0");
+        if (format.equals("tar.gz")) {
+            return fileDownloadService.buildCompressedArchiveDownloadResponse(plan, headers, userId);
+        }
+        headers.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        return fileDownloadService.buildArchiveDownloadResponse(plan, range, ifRange, headers, userId, req);
     }
 
 }
@@ -1,49 +1,61 @@
 package server.filestorm.controller;
 
-import java.io.BufferedOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.List;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 
+import jakarta.servlet.http.HttpServletRequest;
 import server.filestorm.exception.FileManagementException;
-import server.filestorm.exception.StorageException;
 import server.filestorm.model.entity.Chunk;
 import server.filestorm.model.entity.Directory;
 import server.filestorm.model.entity.User;
 import server.filestorm.model.type.ApiResponse;
+import server.filestorm.model.type.BatchFileUploadData;
 import server.filestorm.model.type.BulkManipulationData;
 import server.filestorm.model.type.CustomSession;
 import server.filestorm.model.type.FileUploadData;
 import server.filestorm.model.type.authentication.UserReference;
 import server.filestorm.model.type.fileManagement.ChunkReference;
 import server.filestorm.model.type.fileManagement.DirectoryCreationData;
+import server.filestorm.model.type.fileManagement.DirectoryPage;
 import server.filestorm.model.type.fileManagement.DirectoryReference;
+import server.filestorm.model.type.fileManagement.DirectoryVersion;
 import server.filestorm.model.type.fileManagement.HydratedDirectoryReference;
+import server.filestorm.model.type.fileManagement.TarArchivePlan;
 import server.filestorm.model.type.search.UserFileSearchResults;
 import server.filestorm.service.ChunkService;
+import server.filestorm.service.DeletionService;
 import server.filestorm.service.DirectoryService;
+import server.filestorm.service.FileDownloadService;
 import server.filestorm.service.FileSystemService;
+import server.filestorm.service.TarArchiveService;
+import server.filestorm.service.UploadSessionService;
 import server.filestorm.service.UserService;
 import server.filestorm.thread.ThreadExecutorService;
 import server.filestorm.util.CustomHttpServletRequestWrapper;
+import server.filestorm.util.HttpCacheUtil;
 import server.filestorm.util.StringUtil;
 
 @Controller
@@ -52,6 +64,12 @@ public class FileSystem {
     @Autowired
     private FileSystemService fileSystemService;
 
+    @Autowired
+    private FileDownloadService fileDownloadService;
+
+    @Autowired
+    private TarArchiveService tarArchiveService;
+
     @Autowired
     private UserService userService;
 
@@ -61,6 +79,15 @@ public class FileSystem {
     @Autowired
     private DirectoryService directoryService;
 
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @Autowired
+    private DeletionService deletionService;
+
+    @Autowired
+    private MultipartProperties multipartProperties;
+
     @Autowired
     private ThreadExecutorService threadExecutorService;
 
@@ -69,6 +96,8 @@ public class FileSystem {
     @GetMapping("/api/file/{fileId}")
     public ResponseEntity<StreamingResponseBody> downloadFile(
             @PathVariable Long fileId,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
             CustomHttpServletRequestWrapper req) {
 
         CustomSession session = req.getCustomSession();
@@ -77,20 +106,9 @@ public class FileSystem {
         User user = userService.findById(userId);
         Chunk chunk = chunkService.findChunkByIdAndOwner(fileId, user);
 
-        StreamingResponseBody srb = out -> {
-            try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(out)) {
-                fileSystemService.streamFileToClient(chunk, bufferedOutputStream);
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new StorageException("Erro occured while streaming the file.", e);
-            }
-        };
-
-        return ResponseEntity.ok()
-                .header("Content-Type", chunk.getMimeType())
-                .header("Content-Length", String.valueOf(chunk.getSizeBytes()))
-                .body(srb);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_TYPE, chunk.getMimeType());
+        return fileDownloadService.buildDownloadResponse(chunk, range, ifRange, headers, userId, req);
     }
 
     @GetMapping("/api/search/file")
@@ -118,29 +136,17 @@ public class FileSystem {
     }
 
     @GetMapping("/api/public/file/{fileId}/download")
-    public ResponseEntity<StreamingResponseBody> downloadPublicFile(@PathVariable Long fileId) {
+    public ResponseEntity<StreamingResponseBody> downloadPublicFile(
+            @PathVariable Long fileId,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+            HttpServletRequest req) {
         // Interface StreamingResponseBody
         // A controller method return value type for asynchronous request processing
         // where the application can write directly to the response OutputStream without
         // holding up the Servlet container thread.
         // https://docs.spring.io/spring-framework/docs/current/javadoc-api/org/springframework/web/servlet/mvc/method/annotation/StreamingResponseBody.html
-        Chunk chunk = chunkService.findPublicChunkById(fileId);
-
-        StreamingResponseBody srb = out -> {
-            try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(out)) {
-                fileSystemService.streamFileToClient(chunk, bufferedOutputStream);
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new StorageException("Erro occured while streaming the file.", e);
-            }
-        };
-
-        return ResponseEntity.ok()
-                .header("Content-Length", String.valueOf(chunk.getSizeBytes()))
-                .header("Content-Disposition", "attachment; filename=\"" + chunk.getOriginalFileName() + "\"")
-                .body(srb);
-
+        return fileDownloadService.buildPublicDownloadResponse(fileId, range, ifRange, req);
     }
 
     @GetMapping("/api/public/file/{fileId}/data")
@@ -178,16 +184,18 @@ public class FileSystem {
                 // check upload dir and entry in DB
                 Directory directory = directoryService.findDirectoryForUserById(targetDirectoryId, user);
 
-                // check storage space availability
+                // reserve storage space
                 Long fileSize = fileUploadData.getFile().getSize();
-                Long bytesInStorage = userService.getCurrentBytesInStorage(user);
-                Long maxStorageSpace = user.getMaxStorageSpace();
-                if ( maxStorageSpace - bytesInStorage < fileSize) {
-                    throw new FileManagementException("Not enough free storage space for this file.");
-                }
+                userService.reserveStorageSpace(user, fileSize);
 
                 // save file is FS and DB
-                Chunk chunk = fileSystemService.store(fileUploadData, user, directory);
+                Chunk chunk;
+                try {
+                    chunk = fileSystemService.store(fileUploadData, user, directory);
+                } catch (Exception e) {
+                    userService.releaseStorageSpace(user, fileSize);
+                    throw e;
+                }
 
                 ChunkReference chunkRef = new ChunkReference(chunk);
 
@@ -203,6 +211,115 @@ public class FileSystem {
         return res;
     }
 
+    // Many files in one multipart request - e.g. a dropped folder. The quota is
+    // reserved once and the bookkeeping is done once for the whole batch.
+    @PostMapping(path = "/api/file/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> uploadFiles(
+            BatchFileUploadData batchFileUploadData,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                List<MultipartFile> files = batchFileUploadData.getFiles();
+                if (files == null || files.isEmpty()) {
+                    throw new FileManagementException("No files were sent.");
+                }
+
+                // check upload dir and entry in DB
+                Directory directory = directoryService.findDirectoryForUserById(
+                        batchFileUploadData.getTargetDirectoryId(), user);
+
+                // reserve storage space for all files
+                Long batchSize = files.stream().mapToLong(MultipartFile::getSize).sum();
+                userService.reserveStorageSpace(user, batchSize);
+
+                // save files is FS and DB
+                List<Chunk> chunks;
+                try {
+                    chunks = fileSystemService.storeBatch(files, user, directory);
+                } catch (Exception e) {
+                    userService.releaseStorageSpace(user, batchSize);
+                    throw e;
+                }
+
+                ChunkReference[] chunkRefs = chunks.stream()
+                        .map(ChunkReference::new)
+                        .toArray(ChunkReference[]::new);
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<ChunkReference[]>("Files saved.", chunkRefs)));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        threadExecutorService.execute(process);
+
+        return res;
+    }
+
+    // Same path as uploadFile, but the body is the raw file instead of a multipart
+    // request. Spring does not spool such a body to the multipart location, so
+    // every byte is written to disk only once.
+    @PostMapping(path = "/api/file", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> uploadFileStream(
+            @RequestParam Long targetDirectoryId,
+            @RequestParam String fileName,
+            @RequestParam(required = false) String mimeType,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                // check upload dir and entry in DB
+                Directory directory = directoryService.findDirectoryForUserById(targetDirectoryId, user);
+
+                // the size must be known up front
+                Long fileSize = req.getContentLengthLong();
+                if (fileSize <= 0) {
+                    throw new FileManagementException("Content-Length is required.");
+                }
+                if (fileSize > multipartProperties.getMaxFileSize().toBytes()) {
+                    throw new FileManagementException("The file exceeds the maximum upload size.");
+                }
+
+                // reserve storage space
+                userService.reserveStorageSpace(user, fileSize);
+
+                // save file is FS and DB
+                Chunk chunk;
+                try (InputStream inputStream = req.getInputStream()) {
+                    chunk = fileSystemService.storeStream(inputStream, fileName, fileSize, mimeType, user,
+                            directory);
+                } catch (Exception e) {
+                    userService.releaseStorageSpace(user, fileSize);
+                    throw e;
+                }
+
+                ChunkReference chunkRef = new ChunkReference(chunk);
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<ChunkReference>("File saved.", chunkRef)));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        // storeStream opens a short transaction of it's own after the body
+        threadExecutorService.executeWithoutTransaction(process);
+
+        return res;
+    }
+
     @DeleteMapping("/api/file/{fileId}")
     public DeferredResult<ResponseEntity<ApiResponse<?>>> deleteFile(
             @PathVariable Long fileId,
@@ -276,11 +393,19 @@ public class FileSystem {
         return res;
     }
 
-    @GetMapping(path = "/api/file/bulk", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @GetMapping(path = "/api/file/bulk", produces = { MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            "application/gzip" })
     public ResponseEntity<StreamingResponseBody> bulkDownloadFiles(
             @RequestParam String chunkIdsStr,
             @RequestParam String directoryIdsStr,
+            @RequestParam(defaultValue = "tar") String format,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+            @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
             CustomHttpServletRequestWrapper req) {
+        if (!format.equals("tar") && !format.equals("tar.gz")) {
+            throw new FileManagementException("Unsupported archive format.");
+        }
+
         CustomSession session = req.getCustomSession();
         Long userId = session.getUserId();
         User user = userService.findById(userId);
@@ -291,27 +416,19 @@ public class FileSystem {
         Long[] directoryIds = buldDownloadData.getDirectories();
 
         Chunk[] chunks = chunkService.bulkCheckChunkOwnershipAndCollect(chunkIds, user);
-        Directory[] directories = directoryService.bulkCheckDirectoryOwnershipAndCollect(directoryIds, user);
-
-        return ResponseEntity.ok()
-                .header("Content-Disposition", "attachment; filename=\"FileStorm.tar\"")
-                .header(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate")
-                .header(HttpHeaders.EXPIRES, "0")
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .body(out -> {
-                    try (TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(out)) {
-                        tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-                        fileSystemService.tarEtities(tarOutputStream, chunks, directories);
-                        try {
-                            tarOutputStream.finish();
-                        } catch (IOException e) {
-                            logger.warn("Client aborted download before tar finished.", e.getMessage());
-                        }
-                    } catch (Exception e) {
-                        logger.error(e.getMessage(), e);
-                        throw new StorageException("Erro occured while streaming the file.", e);
-                    }
-                });
+
+        // the directories are checked and walked in the transaction of the planning
+        TarArchivePlan plan = tarArchiveService.planArchive(chunks, directoryIds, user);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"FileStorm." + format + "\"");
+        headers.set(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+        headers.set(HttpHeaders.EXPIRES, "0");
+        if (format.equals("tar.gz")) {
+            return fileDownloadService.buildCompressedArchiveDownloadResponse(plan, headers, userId);
+        }
+        headers.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        return fileDownloadService.buildArchiveDownloadResponse(plan, range, ifRange, headers, userId, req);
     }
 
     @DeleteMapping(path = "/api/file/bulk", consumes = "application/json")
@@ -331,15 +448,16 @@ public class FileSystem {
 
                 Chunk[] chunks = chunkService.bulkCheckChunkOwnershipAndCollect(chunkIds, user);
                 Directory[] directories = directoryService.bulkCheckDirectoryOwnershipAndCollect(directoryIds, user);
+                for (Directory directory : directories) {
+                    if (directory.getParentDirectory().isEmpty()) {
+                        throw new FileManagementException(
+                                "The targeted directory for deletion can not be the root user storage directory.");
+                    }
+                }
 
-                ArrayList<Chunk> chunksForDeletion = directoryService.extractChunksFromDirAndSubDirs(directories);
-                chunksForDeletion.addAll(Arrays.asList(chunks));
-
-                ArrayList<Directory> directoriesForDeletion = directoryService
-                        .extractDirectoriesFromDirAndSubDirs(directories);
-                directoriesForDeletion.addAll(Arrays.asList(directories));
-
-                fileSystemService.deleteDirectoriesAndFiles(directoriesForDeletion, chunksForDeletion, user);
+                // the contents of the directories are deleted by path, without loading them
+                uploadSessionService.abortSessionsInSubtrees(Arrays.asList(directories));
+                deletionService.deleteDirectoriesAndFiles(Arrays.asList(directories), Arrays.asList(chunks), user);
 
                 res.setResult(ResponseEntity.ok()
                         .body(new ApiResponse<UserReference>("OK.", new UserReference(user))));
@@ -356,6 +474,8 @@ public class FileSystem {
     @GetMapping("/api/directory/{directoryId}")
     public DeferredResult<ResponseEntity<ApiResponse<?>>> getDirectoryData(
             @PathVariable Long directoryId,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.IF_MODIFIED_SINCE, required = false) String ifModifiedSince,
             CustomHttpServletRequestWrapper req) {
         DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
 
@@ -366,13 +486,28 @@ public class FileSystem {
                 Long userId = session.getUserId();
                 User user = userService.findById(userId);
 
-                // check target dir (sub dir)
-                Directory directory = directoryService.findDirectoryForUserById(directoryId, user);
+                // answer revalidations before the directory contents are loaded
+                DirectoryVersion version = directoryService.findDirectoryVersionForUserById(directoryId, user);
+                if (version != null && HttpCacheUtil.isNotModified(ifNoneMatch, ifModifiedSince, version.getETag(),
+                        version.getLastModified())) {
+                    res.setResult(ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                            .eTag(version.getETag())
+                            .lastModified(version.getLastModified())
+                            .cacheControl(CacheControl.noCache().cachePrivate())
+                            .build());
+                    return;
+                }
 
-                // return directory data
-                HydratedDirectoryReference hydratedDirectory = new HydratedDirectoryReference(directory);
+                // check target dir (sub dir) and return directory data
+                HydratedDirectoryReference hydratedDirectory = directoryService
+                        .findHydratedDirectoryForUserById(directoryId, user);
 
-                res.setResult(ResponseEntity.ok()
+                ResponseEntity.BodyBuilder responseBuilder = ResponseEntity.ok()
+                        .cacheControl(CacheControl.noCache().cachePrivate());
+                if (version != null) {
+                    responseBuilder.eTag(version.getETag()).lastModified(version.getLastModified());
+                }
+                res.setResult(responseBuilder
                         .body(new ApiResponse<HydratedDirectoryReference>("Serving directory data.",
                                 hydratedDirectory)));
             } catch (Exception e) {
@@ -385,6 +520,45 @@ public class FileSystem {
         return res;
     }
 
+    /**
+     * Lists a directory page by page, so large directories are rendered without
+     * loading all of their contents. Pass the nextCursor of a page as cursor to
+     * get the following one, with the same sort, order and mimeType.
+     */
+    @GetMapping("/api/directory/{directoryId}/page")
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> getDirectoryPage(
+            @PathVariable Long directoryId,
+            @RequestParam(defaultValue = "name") String sort,
+            @RequestParam(defaultValue = "asc") String order,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) String mimeType,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                DirectoryPage page = directoryService.findDirectoryPageForUserById(directoryId, user, sort, order,
+                        limit, cursor, mimeType);
+
+                res.setResult(ResponseEntity.ok()
+                        .cacheControl(CacheControl.noCache().cachePrivate())
+                        .body(new ApiResponse<DirectoryPage>("Serving directory page.", page)));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        threadExecutorService.execute(process);
+
+        return res;
+    }
+
     @PostMapping("/api/directory")
     public DeferredResult<ResponseEntity<ApiResponse<?>>> createDirectory(
             DirectoryCreationData data,
@@ -439,22 +613,19 @@ public class FileSystem {
                 Long userId = session.getUserId();
                 User user = userService.findById(userId);
 
-                // check target dir and that it is not root user storage dir
+                // check target dir and that it is not root user storage dir - before
+                // any upload into it is aborted
                 Directory targetDirectory = directoryService.findDirectoryForUserById(directoryId, user);
-                if (targetDirectory.getName() == Long.toString(userId)
-                        && targetDirectory.getParentDirectory() == null) {
+                if (targetDirectory.getParentDirectory().isEmpty()) {
                     throw new FileManagementException(
                             "The targeted directory for deletion can not be the root user storage directory.");
                 }
 
-                // collect everything for deletion
-                ArrayList<Chunk> chunksForDeletion = directoryService.extractChunksFromDirAndSubDirs(targetDirectory);
-                ArrayList<Directory> directoriesForDeletion = directoryService
-                        .extractDirectoriesFromDirAndSubDirs(targetDirectory);
-                directoriesForDeletion.add(targetDirectory);
+                // uploads into these directories can not be finalized any more
+                uploadSessionService.abortSessionsInSubtrees(List.of(targetDirectory));
 
-                // delete files form FS and DB and directories from DB
-                fileSystemService.deleteDirectoriesAndFiles(directoriesForDeletion, chunksForDeletion, user);
+                // delete the subtree from DB; the files are unlinked in the background
+                deletionService.deleteDirectoriesAndFiles(List.of(targetDirectory), List.of(), user);
 
                 res.setResult(ResponseEntity.ok()
                         .body(new ApiResponse<UserReference>("Directory deleted.", new UserReference(user))));
@@ -488,7 +659,7 @@ public class FileSystem {
 
                 res.setResult(ResponseEntity.ok()
                         .body(new ApiResponse<DirectoryReference>("Directory name changed.",
-                                new DirectoryReference(directory))));
+                                directoryService.toDirectoryReference(directory))));
             } catch (Exception e) {
                 res.setErrorResult(e);
             }
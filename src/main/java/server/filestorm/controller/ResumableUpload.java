@@ -0,0 +1,261 @@
+package server.filestorm.controller;
+
+import java.io.InputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.Directory;
+import server.filestorm.model.entity.UploadPart;
+import server.filestorm.model.entity.UploadSession;
+import server.filestorm.model.entity.User;
+import server.filestorm.model.type.ApiResponse;
+import server.filestorm.model.type.CustomSession;
+import server.filestorm.model.type.fileManagement.ChunkReference;
+import server.filestorm.model.type.fileManagement.UploadPartReference;
+import server.filestorm.model.type.fileManagement.UploadSessionReference;
+import server.filestorm.service.DirectoryService;
+import server.filestorm.service.UploadSessionService;
+import server.filestorm.service.UserService;
+import server.filestorm.thread.ThreadExecutorService;
+import server.filestorm.util.CustomHttpServletRequestWrapper;
+
+/**
+ * Resumable uploads for large files. The client creates a session, sends the
+ * file in consecutive byte ranges and finalizes the session, once all bytes are
+ * received. After a dropped connection the client reads the session and
+ * continues from receivedBytes.
+ * 
+ * Alternatively the file is split into numbered parts, which are uploaded
+ * concurrently over several connections and assembled by the server on
+ * completion.
+ */
+@Controller
+public class ResumableUpload {
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private DirectoryService directoryService;
+
+    @Autowired
+    private UploadSessionService uploadSessionService;
+
+    @Autowired
+    private ThreadExecutorService threadExecutorService;
+
+    @PostMapping("/api/upload-session")
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> createUploadSession(
+            @RequestParam Long targetDirectoryId,
+            @RequestParam String fileName,
+            @RequestParam Long fileSize,
+            @RequestParam(required = false) String mimeType,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                // check upload dir and entry in DB
+                Directory directory = directoryService.findDirectoryForUserById(targetDirectoryId, user);
+
+                UploadSession uploadSession = uploadSessionService.createSession(fileName, fileSize, mimeType, user,
+                        directory);
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<UploadSessionReference>("Upload session created.",
+                                new UploadSessionReference(uploadSession))));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        threadExecutorService.execute(process);
+
+        return res;
+    }
+
+    @GetMapping("/api/upload-session/{sessionId}")
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> getUploadSession(
+            @PathVariable Long sessionId,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                UploadSession uploadSession = uploadSessionService.findSessionForUserById(sessionId, user);
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<UploadSessionReference>("Upload session data.",
+                                new UploadSessionReference(uploadSession))));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        threadExecutorService.execute(process);
+
+        return res;
+    }
+
+    @PatchMapping(path = "/api/upload-session/{sessionId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> uploadBytes(
+            @PathVariable Long sessionId,
+            @RequestParam Long offset,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                UploadSession uploadSession;
+                try (InputStream inputStream = req.getInputStream()) {
+                    uploadSession = uploadSessionService.appendBytes(sessionId, user, offset, inputStream);
+                }
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<UploadSessionReference>("Bytes received.",
+                                new UploadSessionReference(uploadSession))));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        // appendBytes opens short transactions of it's own around the body
+        threadExecutorService.executeWithoutTransaction(process);
+
+        return res;
+    }
+
+    @PostMapping("/api/upload-session/{sessionId}/finalize")
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> finalizeUploadSession(
+            @PathVariable Long sessionId,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                Chunk chunk = uploadSessionService.finalizeSession(sessionId, user);
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<ChunkReference>("File saved.", new ChunkReference(chunk))));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        threadExecutorService.execute(process);
+
+        return res;
+    }
+
+    @PutMapping(path = "/api/upload-session/{sessionId}/part/{partNumber}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> uploadPart(
+            @PathVariable Long sessionId,
+            @PathVariable Integer partNumber,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                UploadPart part;
+                try (InputStream inputStream = req.getInputStream()) {
+                    part = uploadSessionService.uploadPart(sessionId, user, partNumber, req.getContentLengthLong(),
+                            inputStream);
+                }
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<UploadPartReference>("Part received.", new UploadPartReference(part))));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        // uploadPart opens a short transaction of it's own after the body
+        threadExecutorService.executeWithoutTransaction(process);
+
+        return res;
+    }
+
+    @PostMapping("/api/upload-session/{sessionId}/complete")
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> completeMultipartUpload(
+            @PathVariable Long sessionId,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                Chunk chunk = uploadSessionService.completeMultipartSession(sessionId, user);
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<ChunkReference>("File saved.", new ChunkReference(chunk))));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        threadExecutorService.execute(process);
+
+        return res;
+    }
+
+    @DeleteMapping("/api/upload-session/{sessionId}")
+    public DeferredResult<ResponseEntity<ApiResponse<?>>> abortUploadSession(
+            @PathVariable Long sessionId,
+            CustomHttpServletRequestWrapper req) {
+        DeferredResult<ResponseEntity<ApiResponse<?>>> res = new DeferredResult<>();
+
+        Runnable process = () -> {
+            try {
+                CustomSession session = req.getCustomSession();
+                Long userId = session.getUserId();
+                User user = userService.findById(userId);
+
+                uploadSessionService.abortSession(sessionId, user);
+
+                res.setResult(ResponseEntity.ok()
+                        .body(new ApiResponse<Long>("Upload session aborted.", sessionId)));
+            } catch (Exception e) {
+                res.setErrorResult(e);
+            }
+        };
+
+        threadExecutorService.execute(process);
+
+        return res;
+    }
+}
@@ -0,0 +1,215 @@
+package server.filestorm.filter;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.mvc.method.RequestMappingInfo;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+/**
+ * Classifies request paths for the filters. The routes of all registered
+ * request handlers are put into a trie of path segments once at startup, so a
+ * request is classified in one pass over it's path instead of matching a list
+ * of regular expressions.
+ * 
+ * API routes require a session, except for the ones under PUBLIC_API_PREFIXES.
+ * Paths which are neither API routes nor static files are routes of the single
+ * page app and are answered with it's index.html.
+ */
+@Component
+public class RouteClassifier implements SmartInitializingSingleton {
+
+    private static final String API_PREFIX = "/api";
+
+    private static final String[] PUBLIC_API_PREFIXES = { "/api/auth/", "/api/public/" };
+
+    private static final Set<String> STATIC_FILE_EXTENSIONS = Set.of("js", "css", "png", "jpg", "jpeg", "svg",
+            "ico", "woff", "json", "csv", "txt", "webp");
+
+    private static final int ALL_METHODS = -1;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private final RouteNode root = new RouteNode();
+
+    // Requests may arrive before the handlers were read; API paths are protected then.
+    private volatile boolean isBuilt = false;
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        RequestMappingHandlerMapping handlerMapping = applicationContext.getBean("requestMappingHandlerMapping",
+                RequestMappingHandlerMapping.class);
+        for (Map.Entry<RequestMappingInfo, HandlerMethod> entry : handlerMapping.getHandlerMethods().entrySet()) {
+            RequestMappingInfo info = entry.getKey();
+            for (String pattern : info.getPatternValues()) {
+                addRoute(pattern, info.getMethodsCondition().getMethods());
+            }
+        }
+    }
+
+    /**
+     * Adds the route of a request handler.
+     * 
+     * @param pattern The path pattern, e.g. "/api/file/{fileId}".
+     * @param methods The HTTP methods of the handler; all methods if empty.
+     */
+    public synchronized void addRoute(String pattern, Collection<RequestMethod> methods) {
+        RouteNode node = root;
+        int start = 1;
+        while (start <= pattern.length()) {
+            int end = pattern.indexOf('/', start);
+            if (end == -1) {
+                end = pattern.length();
+            }
+            String segment = pattern.substring(start, end);
+            if (segment.equals("**") || segment.startsWith("{*")) {
+                if (node.catchAllChild == null) {
+                    node.catchAllChild = new RouteNode();
+                }
+                node = node.catchAllChild;
+                break;
+            } else if (segment.indexOf('{') != -1 || segment.indexOf('*') != -1) {
+                if (node.variableChild == null) {
+                    node.variableChild = new RouteNode();
+                }
+                node = node.variableChild;
+            } else {
+                node = node.literalChildren.computeIfAbsent(segment, s -> new RouteNode());
+            }
+            start = end + 1;
+        }
+
+        int methodBits = methods.isEmpty() ? ALL_METHODS : 0;
+        for (RequestMethod method : methods) {
+            methodBits |= toMethodBit(method);
+        }
+        if (isPublicApiPath(pattern) || !pattern.startsWith(API_PREFIX)) {
+            node.publicMethods |= methodBits;
+        } else {
+            node.protectedMethods |= methodBits;
+        }
+        isBuilt = true;
+    }
+
+    /**
+     * Checks if a request needs a session.
+     * 
+     * @param httpMethod The request method.
+     * @param path       The request URI.
+     * @return True for the routes of protected handlers; for API paths without a
+     *         handler, except for OPTIONS requests.
+     */
+    public boolean isProtected(String httpMethod, String path) {
+        if (!path.startsWith(API_PREFIX)) {
+            return false;
+        }
+        RequestMethod requestMethod = RequestMethod.resolve(httpMethod.toUpperCase());
+        if (isBuilt) {
+            RouteNode node = match(root, path, 1);
+            if (node != null) {
+                // HEAD is served by the GET handlers
+                int methodBit = toMethodBit(requestMethod == RequestMethod.HEAD ? RequestMethod.GET : requestMethod);
+                if ((node.protectedMethods & methodBit) != 0) {
+                    return true;
+                }
+                // public, or not allowed - answered by the dispatcher
+                return false;
+            }
+        }
+        return requestMethod != RequestMethod.OPTIONS && !isPublicApiPath(path);
+    }
+
+    /**
+     * Checks if the path is a route of the single page app - neither an API
+     * route, nor a static file, nor the root path.
+     */
+    public boolean isClientRoute(String path) {
+        if (path.startsWith(API_PREFIX) || path.equals("/")) {
+            return false;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot == -1) {
+            return true;
+        }
+        String extension = path.substring(dot + 1);
+        if (STATIC_FILE_EXTENSIONS.contains(extension)) {
+            return false;
+        }
+        // woff2 and alike
+        if (extension.startsWith("woff")) {
+            for (int i = 4; i < extension.length(); i++) {
+                if (!Character.isDigit(extension.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Walks the trie along the path segments, starting at start. Literal
+     * segments take precedence over variables, like in the handler mapping.
+     * 
+     * @return The node of the matched route or null.
+     */
+    private static RouteNode match(RouteNode node, String path, int start) {
+        if (start > path.length()) {
+            return node.hasRoute() ? node : node.catchAllChild;
+        }
+        int end = path.indexOf('/', start);
+        if (end == -1) {
+            end = path.length();
+        }
+        RouteNode literalChild = node.literalChildren.isEmpty()
+                ? null
+                : node.literalChildren.get(path.substring(start, end));
+        if (literalChild != null) {
+            RouteNode matched = match(literalChild, path, end + 1);
+            if (matched != null) {
+                return matched;
+            }
+        }
+        if (node.variableChild != null && end > start) {
+            RouteNode matched = match(node.variableChild, path, end + 1);
+            if (matched != null) {
+                return matched;
+            }
+        }
+        return node.catchAllChild;
+    }
+
+    private static boolean isPublicApiPath(String path) {
+        for (String prefix : PUBLIC_API_PREFIXES) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int toMethodBit(RequestMethod method) {
+        return method == null ? 0 : 1 << method.ordinal();
+    }
+
+    private static class RouteNode {
+        private final Map<String, RouteNode> literalChildren = new HashMap<>();
+        private RouteNode variableChild;
+        private RouteNode catchAllChild;
+        private int protectedMethods = 0;
+        private int publicMethods = 0;
+
+        private boolean hasRoute() {
+            return protectedMethods != 0 || publicMethods != 0;
+        }
+    }
+}
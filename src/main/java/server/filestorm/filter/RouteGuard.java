@@ -1,10 +1,8 @@
 package server.filestorm.filter;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
@@ -22,6 +20,9 @@ import server.filestorm.util.CustomHttpServletRequestWrapper;
 @Component
 public class RouteGuard implements Filter {
 
+    @Autowired
+    private RouteClassifier routeClassifier;
+
     @Override
     public void doFilter(
             ServletRequest req,
@@ -33,35 +34,7 @@ public class RouteGuard implements Filter {
         String httpMethod = httpReq.getMethod().toUpperCase();
         String reqPath = httpReq.getRequestURI();
 
-        HashMap<String, String> endpointMap = new HashMap<>();
-        // Client - not protected
-        // Authentication - not protected
-        // FileSystem
-        endpointMap.put("/api/file.*", "^GET|POST|DELETE|PATCH$");
-        endpointMap.put("/api/directory.*", "^GET|POST|DELETE|PATCH$");
-        endpointMap.put("/api/search.*", "^GET$");
-        // FileSharing
-        endpointMap.put("/api/file-sharing.*", "^GET|POST|PATCH$");
-        endpointMap.put("/api/users", "^GET$");
-        // Favorite
-        endpointMap.put("/api/favorite.*", "^GET|POST|DELETE$");
-        // UserData
-        endpointMap.put("/api/user-data.*", "^GET$");
-
-        Iterator<Entry<String, String>> iterator = endpointMap.entrySet().iterator();
-
-        boolean isTargetPathSecure = false;
-        while (iterator.hasNext()) {
-            Entry<String, String> entry = iterator.next();
-            String pathRegex = entry.getKey();
-            String methodsRegex = entry.getValue();
-            boolean pathMatch = reqPath.matches(pathRegex);
-            boolean methodMatch = httpMethod.matches(methodsRegex);
-            if (pathMatch && methodMatch) {
-                isTargetPathSecure = true;
-                break;
-            }
-        }
+        boolean isTargetPathSecure = routeClassifier.isProtected(httpMethod, reqPath);
 
         if (isTargetPathSecure) {
             CustomSession session = customReq.getCustomSession();
@@ -0,0 +1,92 @@
+package server.filestorm.model.entity;
+
+import java.util.Date;
+
+import org.hibernate.Length;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.Table;
+
+/**
+ * The physical file holding the content of one or more Chunks. Blobs are keyed
+ * by the SHA-256 hash of their content, so identical uploads share one file.
+ */
+@Entity
+@Table(name = "blobs")
+public class Blob {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // hex encoded SHA-256
+    @Column(name = "hash", nullable = false, unique = true, length = 64)
+    private String hash;
+
+    @Column(name = "absolute_file_path", nullable = false, length = Length.LONG32)
+    private String absoluteFilePath;
+
+    @Column(name = "size_bytes", nullable = false)
+    private Long sizeBytes;
+
+    // the number of Chunks pointing to this Blob
+    @Column(name = "reference_count", nullable = false)
+    private Long referenceCount = 0L;
+
+    @Column(name = "created_on", nullable = false, updatable = false)
+    private Long createdOn = new Date().getTime();
+
+    @PrePersist
+    private void prePersist() {
+        if (this.createdOn == null) {
+            this.createdOn = new Date().getTime();
+        }
+        if (this.referenceCount == null) {
+            this.referenceCount = 0L;
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public String getAbsoluteFilePath() {
+        return absoluteFilePath;
+    }
+
+    public void setAbsoluteFilePath(String absoluteFilePath) {
+        this.absoluteFilePath = absoluteFilePath;
+    }
+
+    public Long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(Long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public Long getReferenceCount() {
+        return referenceCount;
+    }
+
+    public void setReferenceCount(Long referenceCount) {
+        this.referenceCount = referenceCount;
+    }
+
+    public Long getCreatedOn() {
+        return createdOn;
+    }
+}
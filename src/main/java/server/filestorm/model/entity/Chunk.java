@@ -14,6 +14,7 @@ import jakarta.persistence.Enumerated;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.JoinTable;
 import jakarta.persistence.ManyToMany;
@@ -23,7 +24,15 @@ import jakarta.persistence.PreUpdate;
 import jakarta.persistence.Table;
 
 @Entity
-@Table(name = "chunks")
+// The unique (directory_id, original_file_name) index is created by
+// DirectoryService.createUniqueNameIndexes, once duplicates are renamed.
+@Table(name = "chunks", indexes = {
+        // the per user queries - favorites, shares, search and the storage reconciler
+        @Index(name = "idx_chunks_fk_user_id", columnList = "FK_user_id"),
+        // the sort keys of the directory pages; the name is covered by the unique index
+        @Index(name = "idx_chunks_directory_size_bytes", columnList = "directory_id, size_bytes, id"),
+        @Index(name = "idx_chunks_directory_created_on", columnList = "directory_id, created_on, id"),
+        @Index(name = "idx_chunks_directory_last_modified", columnList = "directory_id, last_modified, id") })
 public class Chunk {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -44,6 +53,12 @@ public class Chunk {
     // 32-bit (2147483647) string == TEXT type in PostgreSQL
     private String absoluteFilePath;
 
+    // The content of the file. Files uploaded before the blob store was
+    // introduced have no Blob and own the file at absoluteFilePath.
+    @ManyToOne
+    @JoinColumn(name = "blob_id", nullable = true)
+    private Blob blob;
+
     @Column(name = "created_on", nullable = false, updatable = false)
     private Long createdOn = new Date().getTime();
 
@@ -136,6 +151,17 @@ public class Chunk {
         this.absoluteFilePath = absoluteFilePath;
     }
 
+    public Blob getBlob() {
+        return blob;
+    }
+
+    public void setBlob(Blob blob) {
+        this.blob = blob;
+        if (blob != null) {
+            this.absoluteFilePath = blob.getAbsoluteFilePath();
+        }
+    }
+
     public Long getCreatedOn() {
         return createdOn;
     }
@@ -180,12 +206,26 @@ public class Chunk {
         return shareWith;
     }
 
+    // A change of only the share list does not run preUpdate, as it is a
+    // collection - but it is part of the listing, the ETag of which is derived
+    // from lastModified. So the share list methods update it themselves.
     public void setShareWith(Set<User> shareWith) {
         this.shareWith = shareWith;
+        this.lastModified = new Date().getTime();
     }
 
     public void addUserToShareWithList(User u) {
-        this.shareWith.add(u);
+        if (this.shareWith.add(u)) {
+            this.lastModified = new Date().getTime();
+        }
+    }
+
+    public boolean removeUserFromShareWithList(User u) {
+        boolean isRemoved = this.shareWith.remove(u);
+        if (isRemoved) {
+            this.lastModified = new Date().getTime();
+        }
+        return isRemoved;
     }
 
     public Boolean getIsFavorite() {
@@ -0,0 +1,138 @@
+package server.filestorm.model.entity;
+
+import java.util.Date;
+
+import org.hibernate.Length;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.Table;
+
+/**
+ * A file left on disk by a delete. The rows are deleted in the same
+ * transaction, which writes these entries; the files are unlinked later by
+ * DeletionService, so a crash in between only delays the unlink and a rollback
+ * keeps the files.
+ *
+ * One entry is written per deleted Chunk - for it's thumbnail and, without a
+ * Blob, for it's file - and one per Blob, which lost it's last reference.
+ */
+@Entity
+@Table(name = "deletion_journal", indexes = {
+        @Index(name = "idx_deletion_journal_batch_id", columnList = "batch_id"),
+        @Index(name = "idx_deletion_journal_available_at", columnList = "available_at") })
+public class DeletionJournalEntry {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // the bulk delete, which wrote the entry; scopes it's set-based statements
+    @Column(name = "batch_id", nullable = false, length = 36)
+    private String batchId;
+
+    // No foreign key - the Chunk is deleted in the same transaction.
+    @Column(name = "chunk_id", nullable = true)
+    private Long chunkId;
+
+    // set for Blobs, so the file is kept when the content was uploaded again
+    @Column(name = "blob_hash", nullable = true, length = 64)
+    private String blobHash;
+
+    @Column(name = "file_path", nullable = true, length = Length.LONG32)
+    private String filePath;
+
+    @Column(name = "attempts", nullable = false)
+    private Integer attempts = 0;
+
+    @Column(name = "last_error", nullable = true, length = 2500)
+    private String lastError;
+
+    // the entry is not picked up before this time; used to back off after failures
+    @Column(name = "available_at", nullable = false)
+    private Long availableAt = new Date().getTime();
+
+    @Column(name = "created_on", nullable = false, updatable = false)
+    private Long createdOn = new Date().getTime();
+
+    @PrePersist
+    private void prePersist() {
+        if (this.attempts == null) {
+            this.attempts = 0;
+        }
+        if (this.availableAt == null) {
+            this.availableAt = new Date().getTime();
+        }
+        if (this.createdOn == null) {
+            this.createdOn = new Date().getTime();
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getBatchId() {
+        return batchId;
+    }
+
+    public void setBatchId(String batchId) {
+        this.batchId = batchId;
+    }
+
+    public Long getChunkId() {
+        return chunkId;
+    }
+
+    public void setChunkId(Long chunkId) {
+        this.chunkId = chunkId;
+    }
+
+    public String getBlobHash() {
+        return blobHash;
+    }
+
+    public void setBlobHash(String blobHash) {
+        this.blobHash = blobHash;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Long getAvailableAt() {
+        return availableAt;
+    }
+
+    public void setAvailableAt(Long availableAt) {
+        this.availableAt = availableAt;
+    }
+
+    public Long getCreatedOn() {
+        return createdOn;
+    }
+}
@@ -5,6 +5,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
+import org.hibernate.Hibernate;
+
 import jakarta.annotation.Nonnull;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
@@ -13,18 +15,46 @@ import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.NamedAttributeNode;
+import jakarta.persistence.NamedEntityGraph;
+import jakarta.persistence.NamedSubgraph;
 import jakarta.persistence.OneToMany;
 import jakarta.persistence.PrePersist;
 import jakarta.persistence.PreUpdate;
 import jakarta.persistence.Table;
 import server.filestorm.exception.ProcessingException;
 
+/**
+ * The contents of a directory are loaded lazily; a directory with all it's
+ * subdirectories and files would load the whole tree below it. Every use case
+ * loads what it needs with a fetch plan: the named entity graph below for
+ * listing the directory, the path for the tree below it and batch fetching
+ * (hibernate.default_batch_fetch_size) for everything else.
+ * 
+ * The path materializes the hierarchy: the IDs from the root down to the
+ * directory, e.g. "/1/5/9/". A subtree is every directory whose path starts
+ * with the path of it's top and the ancestors are the IDs in the path, so the
+ * subtree, the files in it and the ancestors are each found with one indexed
+ * query instead of walking the tree level by level.
+ */
 @Entity
-@Table(name = "directories")
+@NamedEntityGraph(name = Directory.LISTING_GRAPH, attributeNodes = {
+        @NamedAttributeNode(value = "chunks", subgraph = "chunks") }, subgraphs = {
+                @NamedSubgraph(name = "chunks", attributeNodes = { @NamedAttributeNode("shareWith") }) })
+// The unique (parentDirectory_id, name) index is created by
+// DirectoryService.createUniqueNameIndexes, once duplicates are renamed.
+@Table(name = "directories", indexes = {
+        // the sort keys of the directory pages besides the name
+        @Index(name = "idx_directories_parent_created_on", columnList = "parentDirectory_id, created_on, id"),
+        @Index(name = "idx_directories_parent_last_modified", columnList = "parentDirectory_id, last_modified, id") })
 public class Directory {
 
+    // the files of the directory with their shares - for listing it
+    public static final String LISTING_GRAPH = "Directory.listing";
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -40,16 +70,21 @@ public class Directory {
     @Column(name = "elements_count", nullable = false)
     private Integer elementsCount = 0;
 
-    @OneToMany(mappedBy = "directory", cascade = CascadeType.ALL, orphanRemoval = false, fetch = FetchType.EAGER)
+    @OneToMany(mappedBy = "directory", cascade = CascadeType.ALL, orphanRemoval = false, fetch = FetchType.LAZY)
     private List<Chunk> chunks = new ArrayList<Chunk>();
 
-    @ManyToOne
+    // Lazy - the ancestors are looked up by path, when they are needed.
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "parentDirectory_id", nullable = true)
     private Directory parentDirectory;
 
-    // fetch = FetchType.EAGER fixes:
-    // org.hibernate.LazyInitializationException: failed to lazily initialize a collection of role: server.filestorm.model.entity.Directory.subdirectories: could not initialize proxy - no Session
-    @OneToMany(mappedBy = "parentDirectory", cascade = CascadeType.ALL, orphanRemoval = false, fetch = FetchType.EAGER)
+    // Set by DirectoryService once the ID is known; null only for directories
+    // created before the column existed, until they are backfilled on startup.
+    @Column(name = "path", nullable = true, length = 2000)
+    private String path;
+
+    // Lazy - must be accessed in a transaction, e.g. in ThreadExecutorService.
+    @OneToMany(mappedBy = "parentDirectory", cascade = CascadeType.ALL, orphanRemoval = false, fetch = FetchType.LAZY)
     private List<Directory> subdirectories = new ArrayList<Directory>();
 
     @Column(name = "created_on", nullable = false, updatable = false)
@@ -115,6 +150,9 @@ public class Directory {
     }
 
     public boolean removeChunk(Chunk chunk) {
+        if (!Hibernate.isInitialized(this.chunks)) {
+            return false;
+        }
         return this.chunks.remove(chunk);
     }
 
@@ -126,15 +164,39 @@ public class Directory {
         if (parentDirectory == this) {
             throw new ProcessingException("A directory can not be it's own parent.");
         }
-        if (this.parentDirectory != null) {
+        // the inverse side is only kept in sync when it is loaded; loading it for
+        // one element would load every sibling
+        if (this.parentDirectory != null && Hibernate.isInitialized(this.parentDirectory.getSubdirectories())) {
             this.parentDirectory.getSubdirectories().remove(this);
         }
         this.parentDirectory = parentDirectory;
-        if (parentDirectory != null && !parentDirectory.getSubdirectories().contains(this)) {
+        if (parentDirectory != null && Hibernate.isInitialized(parentDirectory.getSubdirectories())
+                && !parentDirectory.getSubdirectories().contains(this)) {
             parentDirectory.getSubdirectories().add(this);
         }
     }
 
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return The IDs of the path, from the root down to this directory.
+     */
+    public List<Long> getPathIds() {
+        List<Long> ids = new ArrayList<Long>();
+        for (String id : path.split("/")) {
+            if (!id.isEmpty()) {
+                ids.add(Long.valueOf(id));
+            }
+        }
+        return ids;
+    }
+
     public List<Directory> getSubdirectories() {
         return subdirectories;
     }
@@ -145,6 +207,9 @@ public class Directory {
     }
 
     public boolean removeSubdirectory(Directory directory) {
+        if (!Hibernate.isInitialized(this.subdirectories)) {
+            return false;
+        }
         boolean isRemoved = this.subdirectories.remove(directory);
         if (isRemoved) {
             directory.setParentDirectory(null);
@@ -0,0 +1,169 @@
+package server.filestorm.model.entity;
+
+import java.util.Date;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.PreUpdate;
+import jakarta.persistence.Table;
+
+/**
+ * One stage of the post-upload processing of a file. Finished jobs are deleted,
+ * so the table only holds the pending, running and failed work.
+ */
+@Entity
+@Table(name = "processing_jobs", indexes = {
+        @Index(name = "idx_processing_jobs_stage_status", columnList = "stage, status, available_at") })
+public class ProcessingJob {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // No foreign key - deleting a Chunk must not wait for it's jobs. Jobs of
+    // deleted Chunks are dropped by the worker.
+    @Column(name = "chunk_id", nullable = false)
+    private Long chunkId;
+
+    @Column(name = "stage", nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Stage stage;
+
+    @Column(name = "status", nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Status status = Status.PENDING;
+
+    @Column(name = "attempts", nullable = false)
+    private Integer attempts = 0;
+
+    @Column(name = "last_error", nullable = true, length = 2500)
+    private String lastError;
+
+    // the job is not picked up before this time; used to back off after failures
+    @Column(name = "available_at", nullable = false)
+    private Long availableAt = new Date().getTime();
+
+    // a RUNNING job is requeued once this passed without a heartbeat of it's worker
+    @Column(name = "lease_expires_at", nullable = true)
+    private Long leaseExpiresAt;
+
+    @Column(name = "created_on", nullable = false, updatable = false)
+    private Long createdOn = new Date().getTime();
+
+    @Column(name = "last_modified", nullable = false)
+    private Long lastModified = new Date().getTime();
+
+    /**
+     * The stages in the order they run for an uploaded file.
+     */
+    public enum Stage {
+        CHECKSUM, MIME_TYPE, THUMBNAIL;
+
+        public Stage next() {
+            int nextOrdinal = this.ordinal() + 1;
+            return nextOrdinal < values().length ? values()[nextOrdinal] : null;
+        }
+    }
+
+    public enum Status {
+        PENDING, RUNNING, FAILED
+    }
+
+    @PrePersist
+    private void prePersist() {
+        if (this.createdOn == null) {
+            this.createdOn = new Date().getTime();
+        }
+        if (this.status == null) {
+            this.status = Status.PENDING;
+        }
+        if (this.attempts == null) {
+            this.attempts = 0;
+        }
+        if (this.availableAt == null) {
+            this.availableAt = new Date().getTime();
+        }
+        if (this.lastModified == null) {
+            this.lastModified = new Date().getTime();
+        }
+    }
+
+    @PreUpdate
+    private void preUpdate() {
+        this.lastModified = new Date().getTime();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getChunkId() {
+        return chunkId;
+    }
+
+    public void setChunkId(Long chunkId) {
+        this.chunkId = chunkId;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public void setStage(Stage stage) {
+        this.stage = stage;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Long getAvailableAt() {
+        return availableAt;
+    }
+
+    public void setAvailableAt(Long availableAt) {
+        this.availableAt = availableAt;
+    }
+
+    public Long getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    public void setLeaseExpiresAt(Long leaseExpiresAt) {
+        this.leaseExpiresAt = leaseExpiresAt;
+    }
+
+    public Long getCreatedOn() {
+        return createdOn;
+    }
+
+    public Long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,89 @@
+package server.filestorm.model.entity;
+
+import java.util.Date;
+
+import org.hibernate.Length;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+
+@Entity
+@Table(name = "upload_parts", uniqueConstraints = {
+        @UniqueConstraint(columnNames = { "upload_session_id", "part_number" }) })
+public class UploadPart {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne
+    @JoinColumn(name = "upload_session_id", nullable = false)
+    private UploadSession uploadSession;
+
+    // parts are assembled in ascending order, starting at 1
+    @Column(name = "part_number", nullable = false)
+    private Integer partNumber;
+
+    @Column(name = "size_bytes", nullable = false)
+    private Long sizeBytes;
+
+    @Column(name = "part_file_path", nullable = false, length = Length.LONG32)
+    private String partFilePath;
+
+    @Column(name = "created_on", nullable = false, updatable = false)
+    private Long createdOn = new Date().getTime();
+
+    @PrePersist
+    private void prePersist() {
+        if (this.createdOn == null) {
+            this.createdOn = new Date().getTime();
+        }
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public UploadSession getUploadSession() {
+        return uploadSession;
+    }
+
+    public void setUploadSession(UploadSession uploadSession) {
+        this.uploadSession = uploadSession;
+    }
+
+    public Integer getPartNumber() {
+        return partNumber;
+    }
+
+    public void setPartNumber(Integer partNumber) {
+        this.partNumber = partNumber;
+    }
+
+    public Long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(Long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public String getPartFilePath() {
+        return partFilePath;
+    }
+
+    public void setPartFilePath(String partFilePath) {
+        this.partFilePath = partFilePath;
+    }
+
+    public Long getCreatedOn() {
+        return createdOn;
+    }
+}
@@ -0,0 +1,150 @@
+package server.filestorm.model.entity;
+
+import java.util.Date;
+
+import org.hibernate.Length;
+
+import jakarta.annotation.Nonnull;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.PreUpdate;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "upload_sessions")
+public class UploadSession {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne
+    @JoinColumn(name = "FK_user_id")
+    @Nonnull
+    private User owner;
+
+    @ManyToOne
+    @JoinColumn(name = "target_directory_id", nullable = false)
+    private Directory targetDirectory;
+
+    @Column(name = "original_file_name", nullable = false, length = 2500)
+    private String originalFileName;
+
+    @Column(name = "mime_type", nullable = false)
+    private String mimeType;
+
+    @Column(name = "total_bytes", nullable = false)
+    private Long totalBytes;
+
+    // the last acknowledged offset; everything before it is durably on disk
+    @Column(name = "received_bytes", nullable = false)
+    private Long receivedBytes = 0L;
+
+    @Column(name = "partial_file_path", nullable = false, length = Length.LONG32)
+    private String partialFilePath;
+
+    @Column(name = "created_on", nullable = false, updatable = false)
+    private Long createdOn = new Date().getTime();
+
+    @Column(name = "last_modified", nullable = false)
+    private Long lastModified = new Date().getTime();
+
+    @PrePersist
+    private void prePersist() {
+        if (this.createdOn == null) {
+            this.createdOn = new Date().getTime();
+        }
+        if (this.receivedBytes == null) {
+            this.receivedBytes = 0L;
+        }
+        if (this.lastModified == null) {
+            this.lastModified = new Date().getTime();
+        }
+    }
+
+    @PreUpdate
+    private void preUpdate() {
+        this.lastModified = new Date().getTime();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public User getOwner() {
+        return owner;
+    }
+
+    public void setOwner(User owner) {
+        this.owner = owner;
+    }
+
+    public Directory getTargetDirectory() {
+        return targetDirectory;
+    }
+
+    public void setTargetDirectory(Directory targetDirectory) {
+        this.targetDirectory = targetDirectory;
+    }
+
+    public String getOriginalFileName() {
+        return originalFileName;
+    }
+
+    public void setOriginalFileName(String originalFileName) {
+        this.originalFileName = originalFileName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public Long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public void setTotalBytes(Long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public Long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public void setReceivedBytes(Long receivedBytes) {
+        this.receivedBytes = receivedBytes;
+    }
+
+    public String getPartialFilePath() {
+        return partialFilePath;
+    }
+
+    public void setPartialFilePath(String partialFilePath) {
+        this.partialFilePath = partialFilePath;
+    }
+
+    public Long getCreatedOn() {
+        return createdOn;
+    }
+
+    public Long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public boolean isComplete() {
+        return this.receivedBytes.equals(this.totalBytes);
+    }
+}
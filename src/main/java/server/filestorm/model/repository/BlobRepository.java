@@ -0,0 +1,57 @@
+package server.filestorm.model.repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import jakarta.persistence.LockModeType;
+import server.filestorm.model.entity.Blob;
+
+public interface BlobRepository extends JpaRepository<Blob, Long> {
+
+    // Row lock, so that reference count changes of the same Blob are serialized.
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM Blob b WHERE b.hash = ?1")
+    Optional<Blob> lockBlobByHash(String hash);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM Blob b WHERE b.id = ?1")
+    Optional<Blob> lockBlobById(Long id);
+
+    @Query("SELECT b.hash FROM Blob b WHERE b.hash IN ?1")
+    List<String> findHashesIn(Collection<String> hashes);
+
+    // The range is served by the unique index on the hash.
+    @Query("SELECT b.hash FROM Blob b WHERE b.hash > ?1 AND b.hash <= ?2")
+    List<String> findHashesInRange(String afterHash, String toHash);
+
+    // Drops the references of the Chunks journaled by one bulk delete, one
+    // UPDATE per Blob however many of it's Chunks are deleted.
+    @Modifying
+    @Query(value = """
+            UPDATE blobs b SET reference_count = b.reference_count - r.released
+            FROM (
+                SELECT c.blob_id, COUNT(*) AS released FROM chunks c
+                WHERE c.blob_id IS NOT NULL
+                AND c.id IN (SELECT j.chunk_id FROM deletion_journal j WHERE j.batch_id = ?1)
+                GROUP BY c.blob_id
+            ) r
+            WHERE b.id = r.blob_id
+            """, nativeQuery = true)
+    int releaseBlobsOfJournaledChunks(String batchId);
+
+    // Runs after the Chunks are deleted; the Blobs were journaled with
+    // DeletionJournalRepository.journalUnreferencedBlobs.
+    @Modifying
+    @Query(value = """
+            DELETE FROM blobs
+            WHERE reference_count <= 0
+            AND hash IN (SELECT j.blob_hash FROM deletion_journal j WHERE j.batch_id = ?1)
+            """, nativeQuery = true)
+    int deleteJournaledBlobs(String batchId);
+}
@@ -1,12 +1,21 @@
 package server.filestorm.model.repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Window;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 
+import jakarta.persistence.LockModeType;
 import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.Directory;
 import server.filestorm.model.entity.User;
 
 public interface ChunkRepository extends JpaRepository<Chunk, Long>{
@@ -14,6 +23,10 @@ public interface ChunkRepository extends JpaRepository<Chunk, Long>{
     @Query("SELECT c FROM Chunk c WHERE c.id = ?1 AND c.owner = ?2")
     Optional<Chunk> findChunkByIdAndOwner(Long id, User owner);
     
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT c FROM Chunk c WHERE c.id = ?1")
+    Optional<Chunk> lockChunkById(Long id);
+
     @Query("SELECT c FROM Chunk c WHERE c.id = ?1 AND c.shareOption = 'SHARE_WITH_ALL_WITH_LINK'")
     Optional<Chunk> findPublicChunkById(Long id);
 
@@ -28,4 +41,86 @@ public interface ChunkRepository extends JpaRepository<Chunk, Long>{
 
     @Query("SELECT c FROM Chunk c JOIN c.shareWith u WHERE LOWER(c.originalFileName) LIKE LOWER(CONCAT('%', ?1, '%')) AND u = ?2 ORDER BY c.originalFileName ASC")
     Optional<List<Chunk>> searchChunksSharedWithUser(String seachValue, User user);
+
+    @Query("SELECT COUNT(c) > 0 FROM Chunk c WHERE c.directory = ?1 AND c.originalFileName = ?2")
+    boolean existsInDirectoryByOriginalFileName(Directory directory, String originalFileName);
+
+    @Query("SELECT c.originalFileName FROM Chunk c WHERE c.directory = ?1 AND c.originalFileName IN ?2")
+    List<String> findOriginalFileNamesIn(Directory directory, Collection<String> originalFileNames);
+
+    // The equality is served by the unique (directory_id, original_file_name)
+    // index. It uses the default collation, which can not serve a LIKE prefix; the
+    // counter variants are found with the varchar_pattern_ops index below.
+    @Query("SELECT c.originalFileName FROM Chunk c WHERE c.directory = ?1 AND (c.originalFileName = ?2 OR c.originalFileName LIKE ?3 ESCAPE '\\')")
+    List<String> findCollidingOriginalFileNames(Directory directory, String originalFileName, String counterPattern);
+
+    // Files sharing their name with an older file of the same directory - from
+    // before the unique index existed.
+    @Query(value = """
+                SELECT c.id FROM chunks c
+                WHERE c.directory_id IS NOT NULL AND EXISTS (
+                    SELECT 1 FROM chunks o
+                    WHERE o.directory_id = c.directory_id AND o.original_file_name = c.original_file_name
+                        AND o.id < c.id)
+                ORDER BY c.id
+            """, nativeQuery = true)
+    List<Long> findIdsOfDuplicateOriginalFileNames();
+
+    @Modifying
+    @Query(value = "CREATE UNIQUE INDEX IF NOT EXISTS uk_chunks_directory_original_file_name ON chunks (directory_id, original_file_name)", nativeQuery = true)
+    void createUniqueOriginalFileNameIndex();
+
+    // Hibernate's @Index can not declare an operator class.
+    @Modifying
+    @Query(value = "CREATE INDEX IF NOT EXISTS idx_chunks_directory_original_file_name_pattern ON chunks (directory_id, original_file_name varchar_pattern_ops)", nativeQuery = true)
+    void createOriginalFileNamePatternIndex();
+
+    // Keyset pages of the files of a directory. Spring Data adds the conditions
+    // of the position for the properties of the sort, which are indexed together
+    // with the directory.
+    Window<Chunk> findByDirectory(Directory directory, ScrollPosition position, Sort sort, Limit limit);
+
+    Window<Chunk> findByDirectoryAndMimeTypeStartingWith(Directory directory, String mimeType,
+            ScrollPosition position, Sort sort, Limit limit);
+
+    // Files not yet moved into the blob store - pending uploads and files stored
+    // before the blob store existed.
+    @Query("SELECT c.absoluteFilePath FROM Chunk c WHERE c.blob IS NULL AND c.absoluteFilePath IN ?1")
+    List<String> findUnhashedFilePathsIn(Collection<String> absoluteFilePaths);
+
+    @Query(value = """
+            SELECT c.id, c.absolute_file_path FROM chunks c
+            WHERE c.blob_id IS NULL AND c.id > ?1
+            ORDER BY c.id ASC
+            LIMIT ?2
+            """, nativeQuery = true)
+    List<Object[]> findUnhashedFilesAfter(Long afterId, Integer limit);
+
+    // The statements below work on the Chunks journaled by one bulk delete.
+    @Query(value = """
+            SELECT COALESCE(SUM(c.size_bytes), 0) FROM chunks c
+            WHERE c.id IN (SELECT j.chunk_id FROM deletion_journal j WHERE j.batch_id = ?1)
+            """, nativeQuery = true)
+    Long sumSizeOfJournaledChunks(String batchId);
+
+    @Query(value = """
+            SELECT c.id FROM chunks c
+            WHERE c.share_option = ?2
+            AND c.id IN (SELECT j.chunk_id FROM deletion_journal j WHERE j.batch_id = ?1)
+            """, nativeQuery = true)
+    List<Long> findJournaledChunkIdsByShareOption(String batchId, String shareOption);
+
+    @Modifying
+    @Query(value = """
+            DELETE FROM chunk_shared_with
+            WHERE chunk_id IN (SELECT j.chunk_id FROM deletion_journal j WHERE j.batch_id = ?1)
+            """, nativeQuery = true)
+    int deleteSharesOfJournaledChunks(String batchId);
+
+    @Modifying
+    @Query(value = """
+            DELETE FROM chunks
+            WHERE id IN (SELECT j.chunk_id FROM deletion_journal j WHERE j.batch_id = ?1)
+            """, nativeQuery = true)
+    int deleteJournaledChunks(String batchId);
 }
@@ -0,0 +1,81 @@
+package server.filestorm.model.repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import server.filestorm.model.entity.DeletionJournalEntry;
+
+public interface DeletionJournalRepository extends JpaRepository<DeletionJournalEntry, Long> {
+
+    // Journals every Chunk below the path pattern. Flushes first, so pending
+    // changes of the caller - e.g. deleted upload sessions - are not lost to the
+    // native statements.
+    // The Chunks are locked, like by FileProcessingService while it moves a file
+    // into the blob store; a Chunk it is processing is read once it committed, so
+    // the Blob it created is released with the Chunk. Ordered by ID, so two
+    // deletes lock in the same order.
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+            INSERT INTO deletion_journal (batch_id, chunk_id, file_path, attempts, available_at, created_on)
+            SELECT ?1, c.id, CASE WHEN c.blob_id IS NULL THEN c.absolute_file_path END, 0, ?3, ?3
+            FROM chunks c JOIN directories d ON d.id = c.directory_id
+            WHERE d.path LIKE ?2
+            ORDER BY c.id
+            FOR UPDATE OF c
+            """, nativeQuery = true)
+    int journalChunksInSubtree(String batchId, String pathPattern, Long now);
+
+    // Chunks already journaled with their directory are skipped. Locks like
+    // journalChunksInSubtree.
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+            INSERT INTO deletion_journal (batch_id, chunk_id, file_path, attempts, available_at, created_on)
+            SELECT ?1, c.id, CASE WHEN c.blob_id IS NULL THEN c.absolute_file_path END, 0, ?4, ?4
+            FROM chunks c
+            WHERE c.id IN ?2 AND c.fk_user_id = ?3
+            AND NOT EXISTS (SELECT 1 FROM deletion_journal j WHERE j.batch_id = ?1 AND j.chunk_id = c.id)
+            ORDER BY c.id
+            FOR UPDATE OF c
+            """, nativeQuery = true)
+    int journalChunks(String batchId, Collection<Long> chunkIds, Long ownerId, Long now);
+
+    // The Blobs of the journaled Chunks, which are no longer referenced once the
+    // Chunks are gone. Runs after BlobRepository.releaseBlobsOfJournaledChunks.
+    @Modifying
+    @Query(value = """
+            INSERT INTO deletion_journal (batch_id, blob_hash, file_path, attempts, available_at, created_on)
+            SELECT ?1, b.hash, b.absolute_file_path, 0, ?2, ?2
+            FROM blobs b
+            WHERE b.reference_count <= 0
+            AND b.id IN (SELECT c.blob_id FROM chunks c
+                WHERE c.id IN (SELECT j.chunk_id FROM deletion_journal j WHERE j.batch_id = ?1))
+            """, nativeQuery = true)
+    int journalUnreferencedBlobs(String batchId, Long now);
+
+    // Journals a single file in the caller's transaction, so it is only unlinked
+    // once the delete is committed; a rollback keeps the file.
+    default DeletionJournalEntry journalFile(Long chunkId, String blobHash, String filePath) {
+        DeletionJournalEntry entry = new DeletionJournalEntry();
+        entry.setBatchId(UUID.randomUUID().toString());
+        entry.setChunkId(chunkId);
+        entry.setBlobHash(blobHash);
+        entry.setFilePath(filePath);
+        return save(entry);
+    }
+
+    // SKIP LOCKED lets several unlinkers drain the journal without waiting for
+    // each other.
+    @Query(value = """
+            SELECT * FROM deletion_journal
+            WHERE available_at <= ?1
+            ORDER BY id ASC
+            LIMIT ?2
+            FOR UPDATE SKIP LOCKED
+            """, nativeQuery = true)
+    List<DeletionJournalEntry> lockDueEntries(Long now, Integer limit);
+}
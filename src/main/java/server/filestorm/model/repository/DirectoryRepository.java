@@ -1,28 +1,183 @@
 package server.filestorm.model.repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Window;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 
+import server.filestorm.model.entity.Chunk;
 import server.filestorm.model.entity.Directory;
 import server.filestorm.model.entity.User;
+import server.filestorm.model.type.fileManagement.DirectoryVersion;
 
 public interface DirectoryRepository extends JpaRepository<Directory, Long> {
 
     @Query("SELECT d FROM Directory d WHERE d.id = ?1 AND d.owner = ?2")
     Optional<Directory> findDirectoryForUserById(Long directoryId, User owner);
 
+    @EntityGraph(Directory.LISTING_GRAPH)
+    @Query("SELECT d FROM Directory d WHERE d.id = ?1 AND d.owner = ?2")
+    Optional<Directory> findDirectoryWithListingForUserById(Long directoryId, User owner);
+
+    // The IDs of the children, so DirectoryReferences do not load the entities.
+    // Every row is [directory ID, child ID].
+    @Query("SELECT c.directory.id, c.id FROM Chunk c WHERE c.directory IN ?1")
+    List<Object[]> findChunkIdsByDirectories(Collection<Directory> directories);
+
+    @Query("SELECT d.parentDirectory.id, d.id FROM Directory d WHERE d.parentDirectory IN ?1")
+    List<Object[]> findSubdirectoryIdsByParentDirectories(Collection<Directory> parentDirectories);
+
+    // Keyset pages of the subdirectories, see ChunkRepository.findByDirectory.
+    Window<Directory> findByParentDirectory(Directory parentDirectory, ScrollPosition position, Sort sort,
+            Limit limit);
+
+    // The subtree queries take the path of the top directory followed by '%'; a
+    // prefix LIKE is served by the varchar_pattern_ops index on the path. Paths
+    // only contain digits and '/', so nothing needs escaping.
+    @Query("SELECT d FROM Directory d WHERE d.path LIKE ?1 ORDER BY d.path ASC")
+    List<Directory> findSubtreeByPathPattern(String pathPattern);
+
+    @Query("SELECT c FROM Chunk c JOIN c.directory d LEFT JOIN FETCH c.blob WHERE d.path LIKE ?1")
+    List<Chunk> findChunksInSubtreeByPathPattern(String pathPattern);
+
+    // Moves a subtree by replacing the path prefix of every directory in it.
+    @Modifying
+    @Query(value = """
+                UPDATE directories
+                SET path = ?2 || substr(path, length(?1) + 1)
+                WHERE path LIKE ?1 || '%'
+            """, nativeQuery = true)
+    int replacePathPrefix(String oldPathPrefix, String newPathPrefix);
+
+    // Deletes a whole subtree in one statement; the foreign key to the parent is
+    // checked at the end of the statement, so the order of the rows does not
+    // matter. The Chunks of the subtree must be deleted before.
+    @Modifying
+    @Query(value = "DELETE FROM directories WHERE path LIKE ?1", nativeQuery = true)
+    int deleteSubtreeByPathPattern(String pathPattern);
+
+    // Paths of directories created before the column existed, derived by walking
+    // the tree from the roots once.
+    @Modifying
+    @Query(value = """
+                WITH RECURSIVE tree (id, path) AS (
+                    SELECT id, '/' || id || '/' FROM directories WHERE parent_directory_id IS NULL
+                    UNION ALL
+                    SELECT d.id, tree.path || d.id || '/'
+                    FROM directories d JOIN tree ON d.parent_directory_id = tree.id
+                )
+                UPDATE directories SET path = tree.path
+                FROM tree
+                WHERE directories.id = tree.id AND directories.path IS NULL
+            """, nativeQuery = true)
+    int backfillPaths();
+
+    // Hibernate's @Index can not declare an operator class.
+    @Modifying
+    @Query(value = "CREATE INDEX IF NOT EXISTS idx_directories_path ON directories (path varchar_pattern_ops)", nativeQuery = true)
+    void createPathIndex();
+
+    @Modifying
+    @Query(value = "CREATE INDEX IF NOT EXISTS idx_directories_parent_name_pattern ON directories (parent_directory_id, name varchar_pattern_ops)", nativeQuery = true)
+    void createNamePatternIndex();
+
+    @Query(value = "SELECT EXISTS (SELECT 1 FROM pg_indexes WHERE indexname = ?1)", nativeQuery = true)
+    boolean existsIndex(String indexName);
+
+    // Subdirectories sharing their name with an older subdirectory of the same
+    // parent - from before the unique index existed.
+    @Query(value = """
+                SELECT d.id FROM directories d
+                WHERE d.parent_directory_id IS NOT NULL AND EXISTS (
+                    SELECT 1 FROM directories o
+                    WHERE o.parent_directory_id = d.parent_directory_id AND o.name = d.name AND o.id < d.id)
+                ORDER BY d.id
+            """, nativeQuery = true)
+    List<Long> findIdsOfDuplicateNames();
+
+    // The name of the constraint Hibernate created before, so an existing one is
+    // kept.
+    @Modifying
+    @Query(value = "CREATE UNIQUE INDEX IF NOT EXISTS uk_directories_parent_directory_name ON directories (parent_directory_id, name)", nativeQuery = true)
+    void createUniqueNameIndex();
+
+    // The count updates bypass @PreUpdate, so they set lastModified them selves;
+    // it is part of the directory's ETag.
+    @Modifying
+    @Query("UPDATE Directory d SET d.elementsCount = d.elementsCount + 1, d.lastModified = ?2 WHERE d.id = ?1")
+    void incrementElementsCountByOne(Long id, Long lastModified);
+
     @Modifying
-    @Query("UPDATE Directory d SET d.elementsCount = d.elementsCount + 1 WHERE d.id = ?1")
-    void incrementElementsCountByOne(Long id);
+    @Query("UPDATE Directory d SET d.elementsCount = d.elementsCount + ?2, d.lastModified = ?3 WHERE d.id = ?1")
+    void incrementElementsCount(Long id, Integer delta, Long lastModified);
 
     @Modifying
     @Query(value = """
                 UPDATE directories
-                SET elements_count = CASE WHEN elements_count > 0 THEN elements_count - 1 ELSE 0 END
+                SET elements_count = CASE WHEN elements_count > 0 THEN elements_count - 1 ELSE 0 END,
+                    last_modified = ?2
                 WHERE id = ?1
             """, nativeQuery = true)
-    void decrementElementsCountByOne(Long id);
+    void decrementElementsCountByOne(Long id, Long lastModified);
+
+    @Modifying
+    @Query(value = """
+                UPDATE directories
+                SET elements_count = CASE WHEN elements_count > ?2 THEN elements_count - ?2 ELSE 0 END,
+                    last_modified = ?3
+                WHERE id = ?1
+            """, nativeQuery = true)
+    void decrementElementsCount(Long id, Integer count, Long lastModified);
+
+    // Every row is [directory ID, elementsCount, actual number of elements].
+    @Query(value = """
+                SELECT d.id, d.elements_count,
+                    (SELECT COUNT(*) FROM chunks c WHERE c.directory_id = d.id)
+                    + (SELECT COUNT(*) FROM directories s WHERE s.parent_directory_id = d.id)
+                FROM directories d
+                WHERE d.id > ?1
+                ORDER BY d.id ASC
+                LIMIT ?2
+            """, nativeQuery = true)
+    List<Object[]> findElementsCountsAfter(Long afterId, Integer limit);
+
+    @Modifying
+    @Query(value = """
+                UPDATE directories d
+                SET elements_count = (SELECT COUNT(*) FROM chunks c WHERE c.directory_id = d.id)
+                        + (SELECT COUNT(*) FROM directories s WHERE s.parent_directory_id = d.id),
+                    last_modified = ?2
+                WHERE d.id = ?1
+            """, nativeQuery = true)
+    void recountElements(Long id, Long lastModified);
+
+    @Query("""
+                SELECT new server.filestorm.model.type.fileManagement.DirectoryVersion(
+                    d.id,
+                    d.lastModified,
+                    (SELECT COUNT(c) FROM Chunk c WHERE c.directory = d),
+                    (SELECT MAX(c.lastModified) FROM Chunk c WHERE c.directory = d),
+                    (SELECT COUNT(s) FROM Directory s WHERE s.parentDirectory = d),
+                    (SELECT MAX(s.lastModified) FROM Directory s WHERE s.parentDirectory = d))
+                FROM Directory d
+                WHERE d.id = ?1 AND d.owner = ?2
+            """)
+    Optional<DirectoryVersion> findDirectoryVersionForUserById(Long directoryId, User owner);
+
+    @Query("SELECT COUNT(d) > 0 FROM Directory d WHERE d.parentDirectory = ?1 AND d.name = ?2")
+    boolean existsInDirectoryByName(Directory parentDirectory, String name);
+
+    // The equality is served by the unique (parentDirectory_id, name) index, the
+    // counter variants by the varchar_pattern_ops index - see
+    // ChunkRepository.findCollidingOriginalFileNames.
+    @Query("SELECT d.name FROM Directory d WHERE d.parentDirectory = ?1 AND (d.name = ?2 OR d.name LIKE ?3 ESCAPE '\\')")
+    List<String> findCollidingNames(Directory parentDirectory, String name, String counterPattern);
 }
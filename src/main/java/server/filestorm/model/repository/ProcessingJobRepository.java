@@ -0,0 +1,36 @@
+package server.filestorm.model.repository;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import server.filestorm.model.entity.ProcessingJob;
+
+public interface ProcessingJobRepository extends JpaRepository<ProcessingJob, Long> {
+
+    // SKIP LOCKED lets several dispatchers claim jobs without waiting for each other.
+    @Query(value = """
+            SELECT * FROM processing_jobs
+            WHERE stage = ?1 AND status = 'PENDING' AND available_at <= ?2
+            ORDER BY id ASC
+            LIMIT ?3
+            FOR UPDATE SKIP LOCKED
+            """, nativeQuery = true)
+    List<ProcessingJob> lockPendingJobs(String stage, Long now, Integer limit);
+
+    @Modifying
+    @Query("UPDATE ProcessingJob j SET j.leaseExpiresAt = ?3 WHERE j.id IN ?1 AND j.status = ?2")
+    int extendLeases(Collection<Long> ids, ProcessingJob.Status status, Long leaseExpiresAt);
+
+    // Jobs without a lease were claimed before leases existed.
+    @Modifying
+    @Query("UPDATE ProcessingJob j SET j.status = ?2, j.leaseExpiresAt = NULL "
+            + "WHERE j.status = ?1 AND (j.leaseExpiresAt IS NULL OR j.leaseExpiresAt < ?3)")
+    int requeueExpiredJobs(ProcessingJob.Status from, ProcessingJob.Status to, Long now);
+
+    @Query("SELECT j.stage, COUNT(j) FROM ProcessingJob j WHERE j.status = ?1 GROUP BY j.stage")
+    List<Object[]> countJobsPerStage(ProcessingJob.Status status);
+}
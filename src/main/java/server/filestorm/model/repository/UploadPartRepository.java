@@ -0,0 +1,19 @@
+package server.filestorm.model.repository;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import server.filestorm.model.entity.UploadPart;
+import server.filestorm.model.entity.UploadSession;
+
+public interface UploadPartRepository extends JpaRepository<UploadPart, Long> {
+
+    @Query("SELECT p FROM UploadPart p WHERE p.uploadSession = ?1 AND p.partNumber = ?2")
+    Optional<UploadPart> findPartForSessionByNumber(UploadSession uploadSession, Integer partNumber);
+
+    @Query("SELECT p FROM UploadPart p WHERE p.uploadSession = ?1 ORDER BY p.partNumber ASC")
+    List<UploadPart> findPartsForSession(UploadSession uploadSession);
+}
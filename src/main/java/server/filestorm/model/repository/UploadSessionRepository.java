@@ -0,0 +1,39 @@
+package server.filestorm.model.repository;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import jakarta.persistence.LockModeType;
+import server.filestorm.model.entity.UploadSession;
+import server.filestorm.model.entity.User;
+
+public interface UploadSessionRepository extends JpaRepository<UploadSession, Long> {
+
+    @Query("SELECT s FROM UploadSession s WHERE s.id = ?1 AND s.owner = ?2")
+    Optional<UploadSession> findSessionForUserById(Long sessionId, User owner);
+
+    // Row lock, so that two requests writing into the same session are serialized.
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT s FROM UploadSession s WHERE s.id = ?1 AND s.owner = ?2")
+    Optional<UploadSession> lockSessionForUserById(Long sessionId, User owner);
+
+    // Acknowledges the appended bytes, unless the session was aborted, finalized
+    // or advanced by someone else in the meantime. Bypasses @PreUpdate, so it sets
+    // lastModified it self.
+    @Modifying
+    @Query("UPDATE UploadSession s SET s.receivedBytes = ?3, s.lastModified = ?4 WHERE s.id = ?1 AND s.receivedBytes = ?2")
+    int advanceReceivedBytes(Long sessionId, Long offset, Long receivedBytes, Long lastModified);
+
+    @Query("SELECT s FROM UploadSession s WHERE s.lastModified < ?1")
+    List<UploadSession> findSessionsIdleSince(Long lastModified);
+
+    // Takes the path of the top directory followed by '%', like the subtree
+    // queries of DirectoryRepository.
+    @Query("SELECT s FROM UploadSession s JOIN s.targetDirectory d WHERE d.path LIKE ?1")
+    List<UploadSession> findSessionsInSubtreeByPathPattern(String pathPattern);
+}
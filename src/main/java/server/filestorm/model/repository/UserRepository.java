@@ -27,6 +27,14 @@ public interface UserRepository extends JpaRepository<User, Long> {
     @Query("UPDATE User u SET u.bytesInStorage = u.bytesInStorage + ?2 WHERE u.id = ?1")
     void increaseBytesInStorage(Long id, Long bytesToAdd);
 
+    // Checks and increases in one statement, so concurrent uploads can not over-commit the quota.
+    @Modifying
+    @Query(value = """
+            UPDATE users SET bytes_in_storage = bytes_in_storage + ?2
+            WHERE id = ?1 AND bytes_in_storage + ?2 <= max_storage_space
+            """, nativeQuery = true)
+    int reserveBytesInStorage(Long id, Long bytesToReserve);
+
     @Modifying
     @Query(value = """
             UPDATE users SET bytes_in_storage = CASE WHEN bytes_in_storage - ?2 < 0 THEN 0 ELSE bytes_in_storage - ?2 END
@@ -36,4 +44,26 @@ public interface UserRepository extends JpaRepository<User, Long> {
 
     @Query("SELECT u.bytesInStorage FROM User u WHERE u.id = ?1")
     Optional<Long> getCurrentBytesInStorage(Long id);
-}
\ No newline at end of file
+
+    // Every row is [user ID, bytesInStorage, actual bytes]. The actual bytes are
+    // the stored files and the space reserved by open upload sessions.
+    @Query(value = """
+            SELECT u.id, u.bytes_in_storage,
+                COALESCE((SELECT SUM(c.size_bytes) FROM chunks c WHERE c.fk_user_id = u.id), 0)
+                + COALESCE((SELECT SUM(s.total_bytes) FROM upload_sessions s WHERE s.fk_user_id = u.id), 0)
+            FROM users u
+            WHERE u.id > ?1
+            ORDER BY u.id ASC
+            LIMIT ?2
+            """, nativeQuery = true)
+    List<Object[]> findBytesInStorageAfter(Long afterId, Integer limit);
+
+    @Modifying
+    @Query(value = """
+            UPDATE users u SET bytes_in_storage =
+                COALESCE((SELECT SUM(c.size_bytes) FROM chunks c WHERE c.fk_user_id = u.id), 0)
+                + COALESCE((SELECT SUM(s.total_bytes) FROM upload_sessions s WHERE s.fk_user_id = u.id), 0)
+            WHERE u.id = ?1
+            """, nativeQuery = true)
+    void recountBytesInStorage(Long id);
+}
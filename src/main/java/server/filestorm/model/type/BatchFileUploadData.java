@@ -0,0 +1,32 @@
+package server.filestorm.model.type;
+
+import java.util.List;
+
+import org.springframework.web.multipart.MultipartFile;
+
+public class BatchFileUploadData {
+
+    private List<MultipartFile> files;
+    private Long targetDirectoryId;
+
+    public BatchFileUploadData(List<MultipartFile> files, Long targetDirectoryId) {
+        this.files = files;
+        this.targetDirectoryId = targetDirectoryId;
+    }
+
+    public List<MultipartFile> getFiles() {
+        return files;
+    }
+
+    public void setFiles(List<MultipartFile> files) {
+        this.files = files;
+    }
+
+    public Long getTargetDirectoryId() {
+        return targetDirectoryId;
+    }
+
+    public void setTargetDirectoryId(Long targetDirectoryId) {
+        this.targetDirectoryId = targetDirectoryId;
+    }
+}
@@ -0,0 +1,84 @@
+package server.filestorm.model.type.fileManagement;
+
+import java.io.Serializable;
+
+/**
+ * One page of the contents of a directory - subdirectories first, then files.
+ * The nextCursor is passed back to get the following page; it is null on the
+ * last page.
+ */
+public class DirectoryPage implements Serializable {
+    private Long directoryId;
+    private String sort;
+    private String order;
+    private DirectoryReference[] subdirectories;
+    private ChunkReference[] hydratedChunks;
+    private String nextCursor;
+
+    public DirectoryPage() {
+        this.directoryId = null;
+        this.sort = null;
+        this.order = null;
+        this.subdirectories = new DirectoryReference[0];
+        this.hydratedChunks = new ChunkReference[0];
+        this.nextCursor = null;
+    }
+
+    public DirectoryPage(Long directoryId, String sort, String order, DirectoryReference[] subdirectories,
+            ChunkReference[] hydratedChunks, String nextCursor) {
+        this.directoryId = directoryId;
+        this.sort = sort;
+        this.order = order;
+        this.subdirectories = subdirectories;
+        this.hydratedChunks = hydratedChunks;
+        this.nextCursor = nextCursor;
+    }
+
+    public Long getDirectoryId() {
+        return directoryId;
+    }
+
+    public void setDirectoryId(Long directoryId) {
+        this.directoryId = directoryId;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public void setSort(String sort) {
+        this.sort = sort;
+    }
+
+    public String getOrder() {
+        return order;
+    }
+
+    public void setOrder(String order) {
+        this.order = order;
+    }
+
+    public DirectoryReference[] getSubdirectories() {
+        return subdirectories;
+    }
+
+    public void setSubdirectories(DirectoryReference[] subdirectories) {
+        this.subdirectories = subdirectories;
+    }
+
+    public ChunkReference[] getHydratedChunks() {
+        return hydratedChunks;
+    }
+
+    public void setHydratedChunks(ChunkReference[] hydratedChunks) {
+        this.hydratedChunks = hydratedChunks;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
@@ -48,6 +48,22 @@ public class DirectoryReference implements Serializable {
         this.lastModified = dir.getLastModified();
     }
 
+    /**
+     * Uses the given IDs instead of the contents of the directory, which are
+     * then not loaded.
+     */
+    public DirectoryReference(Directory dir, Long[] chunks, Long[] subdirectories) {
+        this.id = dir.getId();
+        this.ownerId = dir.getOwner().getId();
+        this.name = dir.getName();
+        this.elementsCount = dir.getElementsCount();
+        this.chunks = chunks;
+        this.subdirectories = subdirectories;
+        this.parentDirectoryId = dir.getParentDirectory().isPresent() ? dir.getParentDirectory().get().getId() : null;
+        this.createdOn = dir.getCreatedOn();
+        this.lastModified = dir.getLastModified();
+    }
+
     public Long getId() {
         return id;
     }
@@ -0,0 +1,53 @@
+package server.filestorm.model.type.fileManagement;
+
+/**
+ * The aggregates, which change whenever the data served for a directory
+ * changes: the directory it self, and the count and newest modification of it's
+ * files and subdirectories. Queried without loading the directory contents, so
+ * conditional requests can be answered cheaply.
+ */
+public class DirectoryVersion {
+    private Long id;
+    private Long lastModified;
+    private Long chunksCount;
+    private Long chunksLastModified;
+    private Long subdirectoriesCount;
+    private Long subdirectoriesLastModified;
+
+    public DirectoryVersion(Long id, Long lastModified, Long chunksCount, Long chunksLastModified,
+            Long subdirectoriesCount, Long subdirectoriesLastModified) {
+        this.id = id;
+        this.lastModified = lastModified;
+        this.chunksCount = chunksCount;
+        this.chunksLastModified = chunksLastModified == null ? 0L : chunksLastModified;
+        this.subdirectoriesCount = subdirectoriesCount;
+        this.subdirectoriesLastModified = subdirectoriesLastModified == null ? 0L : subdirectoriesLastModified;
+    }
+
+    /**
+     * @return A weak entity tag - the JSON representation is not byte-stable.
+     */
+    public String getETag() {
+        return String.format("W/\"d%1$d-%2$x-%3$x-%4$x-%5$x-%6$x\"", id, lastModified, chunksCount,
+                chunksLastModified, subdirectoriesCount, subdirectoriesLastModified);
+    }
+
+    /**
+     * @return The newest modification of the directory or any of it's elements.
+     */
+    public Long getLastModified() {
+        return Math.max(lastModified, Math.max(chunksLastModified, subdirectoriesLastModified));
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getChunksCount() {
+        return chunksCount;
+    }
+
+    public Long getSubdirectoriesCount() {
+        return subdirectoriesCount;
+    }
+}
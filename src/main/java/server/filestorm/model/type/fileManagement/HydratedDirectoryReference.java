@@ -46,6 +46,25 @@ public class HydratedDirectoryReference implements Serializable {
         this.lastModified = dir.getLastModified();
     }
 
+    /**
+     * Uses the given references of the subdirectories, so their contents are not
+     * loaded.
+     */
+    public HydratedDirectoryReference(Directory dir, DirectoryReference[] subdirectories) {
+        this.id = dir.getId();
+        this.ownerId = dir.getOwner().getId();
+        this.name = dir.getName();
+        this.elementsCount = dir.getElementsCount();
+        this.hydratedChunks = dir.getChunks().stream()
+            .map(ChunkReference::new)
+            .collect(Collectors.toList())
+            .toArray(new ChunkReference[0]);
+        this.subdirectories = subdirectories;
+        this.parentDirectoryId = dir.getParentDirectory().isPresent() ? dir.getParentDirectory().get().getId() : null;
+        this.createdOn = dir.getCreatedOn();
+        this.lastModified = dir.getLastModified();
+    }
+
     public Long getId() {
         return id;
     }
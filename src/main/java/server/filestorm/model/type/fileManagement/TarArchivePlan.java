@@ -0,0 +1,87 @@
+package server.filestorm.model.type.fileManagement;
+
+import java.util.List;
+
+/**
+ * The complete layout of a tar archive, computed before it is written: the
+ * entries with their offsets, the exact size of the archive and validators for
+ * conditional and range requests.
+ */
+public class TarArchivePlan {
+
+    public static final int RECORD_SIZE = 512;
+
+    // two zero records mark the end of the archive
+    public static final int END_OF_ARCHIVE_SIZE = 2 * RECORD_SIZE;
+
+    private List<TarEntryPlan> entries;
+    private long sizeBytes;
+    private String eTag;
+    private Long lastModified;
+
+    public TarArchivePlan(List<TarEntryPlan> entries, long sizeBytes, String eTag, Long lastModified) {
+        this.entries = entries;
+        this.sizeBytes = sizeBytes;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    public static long padToRecord(long sizeBytes) {
+        return (sizeBytes + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
+    /**
+     * Finds the entry containing the byte at the position.
+     * 
+     * @return The index of the entry, or entries.size() if the position is in
+     *         the end of archive records.
+     */
+    public int findEntryIndex(long position) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            TarEntryPlan entry = entries.get(middle);
+            if (position < entry.getOffset()) {
+                high = middle - 1;
+            } else if (position >= entry.getEndOffset()) {
+                low = middle + 1;
+            } else {
+                return middle;
+            }
+        }
+        return entries.size();
+    }
+
+    public List<TarEntryPlan> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<TarEntryPlan> entries) {
+        this.entries = entries;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    public Long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Long lastModified) {
+        this.lastModified = lastModified;
+    }
+}
@@ -0,0 +1,95 @@
+package server.filestorm.model.type.fileManagement;
+
+import server.filestorm.model.entity.Chunk;
+
+/**
+ * One entry of a tar archive, in the order it is written: a directory or a
+ * file with it's path in the archive, it's rendered header records and it's
+ * position in the archive.
+ */
+public class TarEntryPlan {
+    private String name;
+    private Chunk chunk;
+    private byte[] header;
+    private long offset;
+    private long sizeBytes;
+
+    public TarEntryPlan(String name, Chunk chunk, byte[] header, long offset, long sizeBytes) {
+        this.name = name;
+        this.chunk = chunk;
+        this.header = header;
+        this.offset = offset;
+        this.sizeBytes = sizeBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The file of the entry, null for directories.
+     */
+    public Chunk getChunk() {
+        return chunk;
+    }
+
+    public void setChunk(Chunk chunk) {
+        this.chunk = chunk;
+    }
+
+    public boolean isDirectory() {
+        return chunk == null;
+    }
+
+    /**
+     * @return The header records - including a GNU long name entry for long
+     *         names.
+     */
+    public byte[] getHeader() {
+        return header;
+    }
+
+    public void setHeader(byte[] header) {
+        this.header = header;
+    }
+
+    /**
+     * @return The position of the first header byte in the archive.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @return The size of the file content, 0 for directories.
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    /**
+     * @return The position of the first content byte in the archive.
+     */
+    public long getContentOffset() {
+        return offset + header.length;
+    }
+
+    /**
+     * @return The position after the padded content - the next entry's offset.
+     */
+    public long getEndOffset() {
+        return getContentOffset() + TarArchivePlan.padToRecord(sizeBytes);
+    }
+}
@@ -0,0 +1,59 @@
+package server.filestorm.model.type.fileManagement;
+
+import java.io.Serializable;
+
+import server.filestorm.model.entity.UploadPart;
+
+public class UploadPartReference implements Serializable {
+
+    private Long uploadSessionId;
+    private Integer partNumber;
+    private Long sizeBytes;
+    private Long createdOn;
+
+    public UploadPartReference() {
+        this.uploadSessionId = null;
+        this.partNumber = null;
+        this.sizeBytes = null;
+        this.createdOn = null;
+    }
+
+    public UploadPartReference(UploadPart part) {
+        this.uploadSessionId = part.getUploadSession().getId();
+        this.partNumber = part.getPartNumber();
+        this.sizeBytes = part.getSizeBytes();
+        this.createdOn = part.getCreatedOn();
+    }
+
+    public Long getUploadSessionId() {
+        return uploadSessionId;
+    }
+
+    public void setUploadSessionId(Long uploadSessionId) {
+        this.uploadSessionId = uploadSessionId;
+    }
+
+    public Integer getPartNumber() {
+        return partNumber;
+    }
+
+    public void setPartNumber(Integer partNumber) {
+        this.partNumber = partNumber;
+    }
+
+    public Long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(Long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public Long getCreatedOn() {
+        return createdOn;
+    }
+
+    public void setCreatedOn(Long createdOn) {
+        this.createdOn = createdOn;
+    }
+}
@@ -0,0 +1,114 @@
+package server.filestorm.model.type.fileManagement;
+
+import java.io.Serializable;
+
+import server.filestorm.model.entity.UploadSession;
+
+public class UploadSessionReference implements Serializable {
+
+    private Long id;
+    private Long ownerId;
+    private Long targetDirectoryId;
+    private String originalFileName;
+    private String mimeType;
+    private Long totalBytes;
+    private Long receivedBytes;
+    private Long createdOn;
+    private Long lastModified;
+
+    public UploadSessionReference() {
+        this.id = null;
+        this.ownerId = null;
+        this.targetDirectoryId = null;
+        this.originalFileName = null;
+        this.mimeType = null;
+        this.totalBytes = null;
+        this.receivedBytes = null;
+        this.createdOn = null;
+        this.lastModified = null;
+    }
+
+    public UploadSessionReference(UploadSession session) {
+        this.id = session.getId();
+        this.ownerId = session.getOwner().getId();
+        this.targetDirectoryId = session.getTargetDirectory().getId();
+        this.originalFileName = session.getOriginalFileName();
+        this.mimeType = session.getMimeType();
+        this.totalBytes = session.getTotalBytes();
+        this.receivedBytes = session.getReceivedBytes();
+        this.createdOn = session.getCreatedOn();
+        this.lastModified = session.getLastModified();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(Long ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public Long getTargetDirectoryId() {
+        return targetDirectoryId;
+    }
+
+    public void setTargetDirectoryId(Long targetDirectoryId) {
+        this.targetDirectoryId = targetDirectoryId;
+    }
+
+    public String getOriginalFileName() {
+        return originalFileName;
+    }
+
+    public void setOriginalFileName(String originalFileName) {
+        this.originalFileName = originalFileName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public Long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public void setTotalBytes(Long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public Long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public void setReceivedBytes(Long receivedBytes) {
+        this.receivedBytes = receivedBytes;
+    }
+
+    public Long getCreatedOn() {
+        return createdOn;
+    }
+
+    public void setCreatedOn(Long createdOn) {
+        this.createdOn = createdOn;
+    }
+
+    public Long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Long lastModified) {
+        this.lastModified = lastModified;
+    }
+}
@@ -0,0 +1,203 @@
+package server.filestorm.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Service;
+
+import server.filestorm.config.ServerConfigurationProperties;
+
+/**
+ * Shares the outgoing bandwidth between the streamed responses. Every stream
+ * draws from a token bucket of it's user and from a global one; both are
+ * optional.
+ * 
+ * Streams reserve bytes in small quanta and the buckets hand out reservations
+ * in arrival order, so active streams take turns - a stream's share is
+ * proportional to it's weight, which scales the quantum. A stream always
+ * reserves whole quanta and spends them over as many writes as it takes, so the
+ * share does not depend on the size of the writes - the channel of a single
+ * file writes 8KB at a time, an archive 1MB. A small download
+ * therefore waits for at most one quantum of every other active stream, no
+ * matter how large the bulk downloads running next to it are.
+ */
+@Service
+public class BandwidthScheduler {
+
+    // single files are usually waited for interactively, archives are bulk transfers
+    public static final int DOWNLOAD_WEIGHT = 4;
+    public static final int BULK_DOWNLOAD_WEIGHT = 1;
+
+    private static final int BASE_QUANTUM_BYTES = 16384; // 16KB
+
+    private final long perUserBytesPerSecond;
+
+    private final TokenBucket globalBucket;
+
+    private final ConcurrentHashMap<Long, UserBucket> userBuckets = new ConcurrentHashMap<>();
+
+    public BandwidthScheduler(ServerConfigurationProperties confProps) {
+        this.perUserBytesPerSecond = confProps.getBandwidthPerUserMbitPerS() * 125000L;
+        long globalBytesPerSecond = confProps.getBandwidthGlobalMbitPerS() * 125000L;
+        this.globalBucket = globalBytesPerSecond > 0 ? new TokenBucket(globalBytesPerSecond) : null;
+    }
+
+    /**
+     * @return True if any limit is configured. Throttled responses can not be
+     *         sent with sendfile.
+     */
+    public boolean isEnabled() {
+        return globalBucket != null || perUserBytesPerSecond > 0;
+    }
+
+    /**
+     * Wraps the response body of a stream. Closing the returned stream ends the
+     * stream's share, but does not close the outputStream.
+     * 
+     * @param outputStream The response body.
+     * @param userId       The downloading user, null for anonymous downloads,
+     *                     which only draw from the global bucket.
+     * @param weight       The share of the stream relative to other streams.
+     * @return The throttled stream, or the outputStream if no limit is
+     *         configured.
+     */
+    public OutputStream throttle(OutputStream outputStream, Long userId, int weight) {
+        if (!isEnabled()) {
+            return outputStream;
+        }
+        UserBucket userBucket = null;
+        if (userId != null && perUserBytesPerSecond > 0) {
+            userBucket = userBuckets.compute(userId, (id, existing) -> {
+                UserBucket bucket = existing == null ? new UserBucket(perUserBytesPerSecond) : existing;
+                bucket.activeStreams++;
+                return bucket;
+            });
+        }
+        return new ThrottledOutputStream(outputStream, userId, userBucket, weight);
+    }
+
+    private void release(Long userId) {
+        userBuckets.computeIfPresent(userId, (id, bucket) -> --bucket.activeStreams == 0 ? null : bucket);
+    }
+
+    /**
+     * A token bucket, which lets reservations go into debt. A reservation
+     * returns how long the caller has to wait, so later reservations queue behind
+     * earlier ones.
+     */
+    private static class TokenBucket {
+        private final double bytesPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            this.bytesPerNano = bytesPerSecond / 1e9;
+            // a quarter second of burst
+            this.capacity = Math.max(bytesPerSecond / 4.0, BASE_QUANTUM_BYTES * DOWNLOAD_WEIGHT);
+            this.tokens = this.capacity;
+        }
+
+        // gives back reserved bytes, which were not sent
+        synchronized void refund(long bytes) {
+            tokens = Math.min(capacity, tokens + bytes);
+        }
+
+        synchronized long reserve(long bytes) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerNano);
+            lastRefill = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens / bytesPerNano);
+        }
+    }
+
+    private static class UserBucket extends TokenBucket {
+        // guarded by the ConcurrentHashMap
+        private int activeStreams = 0;
+
+        UserBucket(long bytesPerSecond) {
+            super(bytesPerSecond);
+        }
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream {
+        private final Long userId;
+        private final UserBucket userBucket;
+        private final int quantum;
+        // reserved bytes, which were not written yet
+        private int credit = 0;
+        private boolean isClosed = false;
+
+        ThrottledOutputStream(OutputStream outputStream, Long userId, UserBucket userBucket, int weight) {
+            super(outputStream);
+            this.userId = userId;
+            this.userBucket = userBucket;
+            this.quantum = BASE_QUANTUM_BYTES * Math.max(1, weight);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (credit == 0) {
+                acquire();
+            }
+            out.write(b);
+            credit--;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (credit == 0) {
+                    acquire();
+                }
+                int slice = Math.min(len, credit);
+                out.write(b, off, slice);
+                credit -= slice;
+                off += slice;
+                len -= slice;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (credit > 0) {
+                if (userBucket != null) {
+                    userBucket.refund(credit);
+                }
+                if (globalBucket != null) {
+                    globalBucket.refund(credit);
+                }
+                credit = 0;
+            }
+            if (userBucket != null) {
+                release(userId);
+            }
+            out.flush();
+        }
+
+        // reserves the next quantum
+        private void acquire() throws IOException {
+            try {
+                if (userBucket != null) {
+                    TimeUnit.NANOSECONDS.sleep(userBucket.reserve(quantum));
+                }
+                if (globalBucket != null) {
+                    TimeUnit.NANOSECONDS.sleep(globalBucket.reserve(quantum));
+                }
+                credit = quantum;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package server.filestorm.service;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.UUID;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Blob;
+import server.filestorm.model.repository.BlobRepository;
+import server.filestorm.model.repository.DeletionJournalRepository;
+
+/**
+ * Content-addressed storage of the uploaded files. Every distinct content is
+ * stored once under blobs/<2 hex>/<2 hex>/<sha-256> in the storage root and
+ * reference counted by the Chunks pointing to it.
+ */
+@Service
+@Transactional
+public class BlobService {
+
+    private final BlobRepository blobRepository;
+
+    private final DeletionJournalRepository deletionJournalRepository;
+
+    private final Path blobsLocation;
+
+    private final Path stagingLocation;
+
+    private final TransactionTemplate newTransactionTemplate;
+
+    public BlobService(BlobRepository blobRepository, DeletionJournalRepository deletionJournalRepository,
+            ServerConfigurationProperties confProps, PlatformTransactionManager transactionManager) {
+        this.blobRepository = blobRepository;
+        this.deletionJournalRepository = deletionJournalRepository;
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        // not a user ID, so it can not collide with a root user directory
+        this.blobsLocation = Paths.get(confProps.getFileStorageLocation())
+                .resolve("blobs").normalize().toAbsolutePath();
+        this.stagingLocation = this.blobsLocation.resolve("staging");
+    }
+
+    public static MessageDigest newDigest() throws StorageException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new StorageException("SHA-256 is not available.", e);
+        }
+    }
+
+    public static String toHash(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns a path for a new file in the staging directory. Files are written
+     * there first and adopted, once their hash is known. The staging directory is
+     * on the same file system as the blobs, so adopting is a rename.
+     *
+     * @return The path of the new staging file. The file it self is not created.
+     * @throws StorageException When the staging directory could not be created.
+     */
+    public Path newStagingFile() throws StorageException {
+        try {
+            Files.createDirectories(this.stagingLocation);
+            return this.stagingLocation.resolve(UUID.randomUUID().toString() + ".tmp");
+        } catch (Exception e) {
+            throw new StorageException("Could not create the staging directory.", e);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 of the file. Static, so it can be called from worker
+     * threads without opening a transaction.
+     *
+     * @param file The file to hash.
+     * @return The hex encoded hash.
+     * @throws StorageException When the file could not be read.
+     */
+    public static String computeHash(Path file) throws StorageException {
+        MessageDigest digest = newDigest();
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1048576); // 1MB buffer
+            while (fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (Exception e) {
+            throw new StorageException("Could not read file for hashing.", e);
+        }
+        return toHash(digest);
+    }
+
+    /**
+     * Takes over the given file as content with the given hash. If a Blob with
+     * this hash already exists the file is deleted and the reference count of the
+     * existing Blob is incremented. Otherwise the file is moved into the blob store
+     * and a new Blob is created.
+     *
+     * The new Blob is inserted in a transaction of it's own, so two first uploads
+     * of the same content do not fail on the unique hash: the second one finds the
+     * Blob of the first, re-reads it by hash and increments it's reference count
+     * in the transaction of the caller, like for any existing Blob.
+     *
+     * @param file      The file to adopt. Must be on the same file system as the
+     *                  storage root.
+     * @param hash      The hex encoded SHA-256 of the file.
+     * @param sizeBytes The size of the file.
+     * @return The Blob, now holding one more reference.
+     * @throws StorageException When the file could not be moved or deleted.
+     */
+    public Blob adopt(Path file, String hash, Long sizeBytes) throws StorageException {
+        try {
+            Blob existingBlob = blobRepository.lockBlobByHash(hash).orElse(null);
+            if (existingBlob != null && existingBlob.getSizeBytes().equals(sizeBytes)
+                    && Files.exists(Path.of(existingBlob.getAbsoluteFilePath()))) {
+                Files.delete(file);
+                existingBlob.setReferenceCount(existingBlob.getReferenceCount() + 1);
+                return blobRepository.save(existingBlob);
+            }
+
+            Path blobFile = getBlobPath(hash);
+            Files.createDirectories(blobFile.getParent());
+            Files.move(file, blobFile, StandardCopyOption.ATOMIC_MOVE);
+
+            Blob blob = existingBlob;
+            if (blob == null) {
+                insertUnreferencedBlob(hash, blobFile, sizeBytes);
+                blob = blobRepository.lockBlobByHash(hash).orElseThrow();
+            }
+            // a Blob row without it's file - e.g. removed by hand - is repaired here
+            blob.setAbsoluteFilePath(blobFile.toString());
+            blob.setSizeBytes(sizeBytes);
+            blob.setReferenceCount(blob.getReferenceCount() + 1);
+            return blobRepository.save(blob);
+        } catch (Exception e) {
+            throw new StorageException("Could not store file content.", e);
+        }
+    }
+
+    /**
+     * Commits a Blob without references for the file moved into the blob store.
+     * It is referenced in the transaction of the caller, so a rollback there only
+     * leaves the Blob unreferenced - the next upload of the content takes it over.
+     * If a concurrent upload of the same content inserted it's Blob first the
+     * unique hash is violated; that Blob stands for the same file, so it is used.
+     */
+    private void insertUnreferencedBlob(String hash, Path blobFile, Long sizeBytes) {
+        try {
+            newTransactionTemplate.executeWithoutResult(status -> {
+                Blob blob = new Blob();
+                blob.setHash(hash);
+                blob.setAbsoluteFilePath(blobFile.toString());
+                blob.setSizeBytes(sizeBytes);
+                blob.setReferenceCount(0L);
+                blobRepository.save(blob);
+            });
+        } catch (DataIntegrityViolationException e) {
+            // inserted by the concurrent upload
+        }
+    }
+
+    /**
+     * Drops one reference to the Blob. Once no Chunk references the Blob any more
+     * it is deleted and it's file is journaled for the unlinker of
+     * DeletionService, so the file is only removed after the commit.
+     *
+     * @param blob The Blob, which is no longer referenced by a Chunk.
+     */
+    public void release(Blob blob) {
+        Blob lockedBlob = blobRepository.lockBlobById(blob.getId()).orElse(null);
+        if (lockedBlob == null) {
+            return;
+        }
+        long referenceCount = lockedBlob.getReferenceCount() - 1;
+        if (referenceCount > 0) {
+            lockedBlob.setReferenceCount(referenceCount);
+            blobRepository.save(lockedBlob);
+            return;
+        }
+        blobRepository.delete(lockedBlob);
+        // the unlinker keeps the file, if the content is uploaded again meanwhile
+        deletionJournalRepository.journalFile(null, lockedBlob.getHash(), lockedBlob.getAbsoluteFilePath());
+    }
+
+    private Path getBlobPath(String hash) {
+        return this.blobsLocation
+                .resolve(hash.substring(0, 2))
+                .resolve(hash.substring(2, 4))
+                .resolve(hash);
+    }
+}
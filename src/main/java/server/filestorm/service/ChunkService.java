@@ -1,7 +1,11 @@
 package server.filestorm.service;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,6 +17,7 @@ import server.filestorm.model.entity.Chunk;
 import server.filestorm.model.entity.Directory;
 import server.filestorm.model.entity.User;
 import server.filestorm.model.repository.ChunkRepository;
+import server.filestorm.model.repository.DirectoryRepository;
 import server.filestorm.model.type.fileManagement.ChunkReference;
 import server.filestorm.model.type.search.FileSearchResult;
 import server.filestorm.model.type.search.UserFileSearchResults;
@@ -25,7 +30,14 @@ public class ChunkService {
     @Autowired
     private ChunkRepository chunkRepository;
 
+    @Autowired
+    private DirectoryRepository directoryRepository;
+
+    @Autowired
+    private PublicFileCache publicFileCache;
+
     public Chunk saveChunk(Chunk chunk) {
+        publicFileCache.invalidate(chunk.getId());
         return chunkRepository.save(chunk);
     }
 
@@ -50,6 +62,17 @@ public class ChunkService {
                 .orElseThrow(() -> new FileManagementException("A file with this ID was not found for this user."));
     }
 
+    /**
+     * Finds and locks the Chunk with the given id until the end of the
+     * transaction.
+     * 
+     * @param chunkId The id of the wanted Chunk.
+     * @return The Chunk or null, if it does not exist (any more).
+     */
+    public Chunk lockChunkById(Long chunkId) {
+        return chunkRepository.lockChunkById(chunkId).orElse(null);
+    }
+
     public Chunk findPublicChunkById(Long chunkId) throws FileManagementException {
         return chunkRepository.findPublicChunkById(chunkId)
                 .orElseThrow(() -> new FileManagementException("Public file not found."));
@@ -73,21 +96,62 @@ public class ChunkService {
         String newOriginalFileName = newFileNameWithoutTheExtention + extention;
 
         // check name availability
-        List<String> allFileNamesInDir = chunk.getDirectory().getChunks().stream()
-                .map(Chunk::getOriginalFileName)
-                .collect(Collectors.toList());
-
-        for (String otherName : allFileNamesInDir) {
-            if (otherName.equals(newOriginalFileName)) {
-                throw new FileManagementException("A file with this name already exists in this directory.");
-            }
+        if (chunkRepository.existsInDirectoryByOriginalFileName(chunk.getDirectory(), newOriginalFileName)) {
+            throw new FileManagementException("A file with this name already exists in this directory.");
         }
 
         chunk.setOriginalFileName(newOriginalFileName);
+        publicFileCache.invalidate(chunk.getId());
         return chunkRepository.save(chunk);
     }
 
+    /**
+     * Finds a name for a new file in the directory. If the originalFileName is
+     * taken, a counter like " (1)" is appended or incremented until the name is
+     * free. All names, which could collide, are fetched with one indexed query.
+     * 
+     * @param directory        The directory in which the file is saved.
+     * @param originalFileName The sanitized name of the file.
+     * @return The originalFileName or the first free counter variant of it.
+     */
+    public String resolveUniqueOriginalFileName(Directory directory, String originalFileName) {
+        List<String> collidingNames = chunkRepository.findCollidingOriginalFileNames(directory, originalFileName,
+                StringUtil.uniqueCounterLikePattern(originalFileName));
+        return StringUtil.appendUniqueCounter(originalFileName, collidingNames);
+    }
+
+    /**
+     * Finds names for a batch of new files in the directory, like
+     * resolveUniqueOriginalFileName does for a single file. Names, which are also
+     * taken by an earlier file of the batch, get a counter too. Only the names
+     * which collide are checked for existing counter variants.
+     * 
+     * @param directory         The directory in which the files are saved.
+     * @param originalFileNames The sanitized names of the files.
+     * @return The names to use, in the order of the given names.
+     */
+    public List<String> resolveUniqueOriginalFileNames(Directory directory, List<String> originalFileNames) {
+        Set<String> takenNames = new HashSet<>(
+                chunkRepository.findOriginalFileNamesIn(directory, new HashSet<>(originalFileNames)));
+        List<String> uniqueNames = new ArrayList<>(originalFileNames.size());
+        for (String name : originalFileNames) {
+            if (takenNames.contains(name)) {
+                takenNames.addAll(chunkRepository.findCollidingOriginalFileNames(directory, name,
+                        StringUtil.uniqueCounterLikePattern(name)));
+                name = StringUtil.appendUniqueCounter(name, takenNames);
+            }
+            takenNames.add(name);
+            uniqueNames.add(name);
+        }
+        return uniqueNames;
+    }
+
+    public List<Chunk> saveChunks(List<Chunk> chunks) {
+        return chunkRepository.saveAll(chunks);
+    }
+
     public void delete(Chunk chunk) {
+        publicFileCache.invalidate(chunk.getId());
         chunkRepository.delete(chunk);
     }
 
@@ -110,7 +174,7 @@ public class ChunkService {
     }
 
     public boolean removeUserFromShareWith(Chunk c, User u) {
-        return c.getShareWith().remove(u);
+        return c.removeUserFromShareWithList(u);
     }
 
     /**
@@ -165,10 +229,18 @@ public class ChunkService {
         List<Chunk> sharedChunksForUser = chunkRepository.searchChunksSharedWithUser(searchValue, searchingUser)
                 .orElse(new ArrayList<Chunk>());
 
+        // the ancestors of all results with one query, by the IDs in their paths
+        Set<Long> ancestorIds = new HashSet<Long>();
+        for (Chunk chunk : chunksForUser) {
+            ancestorIds.addAll(chunk.getDirectory().getPathIds());
+        }
+        Map<Long, Directory> ancestors = directoryRepository.findAllById(ancestorIds).stream()
+                .collect(Collectors.toMap(Directory::getId, Function.identity()));
+
         FileSearchResult[] chunksForMyStorage = chunksForUser
                 .stream()
                 .map((Chunk chunk) -> {
-                    List<Object> directoryPath = extractDirPathInFormatForClient(chunk.getDirectory(), null);
+                    List<Object> directoryPath = extractDirPathInFormatForClient(chunk.getDirectory(), ancestors);
                     ChunkReference chunkReference = new ChunkReference(chunk);
                     return new FileSearchResult(directoryPath.toArray(new Object[0]), chunkReference);
                 })
@@ -188,18 +260,14 @@ public class ChunkService {
         return results;
     }
 
-    private List<Object> extractDirPathInFormatForClient(Directory dir, List<Object> dirPath) {
-        if (dirPath == null) {
-            dirPath = new ArrayList<Object>();
-        }
-        if (dir.getParentDirectory().isPresent()) {
-            dirPath.addFirst(new Object[] { dir.getId(), dir.getName() });
-            Directory parentDir = dir.getParentDirectory().get();
-            return extractDirPathInFormatForClient(parentDir, dirPath);
-        } else {
-            dirPath.addFirst(new Object[] { dir.getId(), "My Storage" });
+    private List<Object> extractDirPathInFormatForClient(Directory dir, Map<Long, Directory> ancestors) {
+        List<Object> dirPath = new ArrayList<Object>();
+        List<Long> pathIds = dir.getPathIds();
+        for (int i = 0; i < pathIds.size(); i++) {
+            Long id = pathIds.get(i);
+            // the root user storage directory is named after the user
+            dirPath.add(new Object[] { id, i == 0 ? "My Storage" : ancestors.get(id).getName() });
         }
-
         return dirPath;
     }
 }
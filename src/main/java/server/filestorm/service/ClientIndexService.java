@@ -0,0 +1,215 @@
+package server.filestorm.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.util.HttpCacheUtil;
+
+/**
+ * Serves the index.html of the FileStorm client for every deep link of the
+ * single page app. The file is held in memory together with a gzip compressed
+ * copy and it's ETag, and is reloaded when the client bundle is redeployed.
+ */
+@Service
+public class ClientIndexService {
+
+    // redeploys write several files; reload once they are done
+    private static final long RELOAD_DELAY_MILLIS = 500;
+
+    private final Path indexFile;
+
+    private volatile IndexSnapshot snapshot;
+
+    private final WatchService watchService;
+
+    private final Thread watcherThread;
+
+    Logger logger = LoggerFactory.getLogger(ClientIndexService.class);
+
+    public ClientIndexService(ServerConfigurationProperties confProps) {
+        this.indexFile = Path.of(confProps.getClientLocation()).toAbsolutePath().normalize();
+        reload();
+
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            logger.warn("Could not watch the FileStorm app file, it will not be reloaded.", e);
+        }
+        this.watchService = watchService;
+        this.watcherThread = Thread.ofPlatform().daemon().name("client-index-watcher").unstarted(this::watch);
+        if (watchService != null) {
+            this.watcherThread.start();
+        }
+    }
+
+    /**
+     * Writes the index.html to the response. Clients, which accept gzip, get
+     * the compressed copy; a current cached copy is confirmed with 304.
+     */
+    public void serve(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        IndexSnapshot current = this.snapshot;
+        if (current == null) {
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        boolean isGzip = acceptsGzip(req.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        String eTag = isGzip ? current.gzipETag : current.eTag;
+        res.setHeader(HttpHeaders.CONTENT_TYPE, "text/html;charset=UTF-8");
+        res.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        res.setHeader(HttpHeaders.ETAG, eTag);
+        res.setDateHeader(HttpHeaders.LAST_MODIFIED, current.lastModified);
+        // the index references the hashed bundle files; it must always be revalidated
+        res.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+        if (HttpCacheUtil.isNotModified(req.getHeader(HttpHeaders.IF_NONE_MATCH),
+                req.getHeader(HttpHeaders.IF_MODIFIED_SINCE), eTag, current.lastModified)) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = isGzip ? current.gzipContent : current.content;
+        res.setStatus(HttpServletResponse.SC_OK);
+        if (isGzip) {
+            res.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        res.setContentLength(body.length);
+        if (!"HEAD".equals(req.getMethod())) {
+            res.getOutputStream().write(body);
+        }
+    }
+
+    /**
+     * Reads the index file and replaces the snapshot. The previous snapshot is
+     * kept, if the file can not be read - e.g. in the middle of a redeploy.
+     */
+    private void reload() {
+        try {
+            byte[] content = Files.readAllBytes(indexFile);
+            ByteArrayOutputStream gzipContent = new ByteArrayOutputStream(content.length / 3 + 64);
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzipContent)) {
+                gzipOutputStream.write(content);
+            }
+            String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content))
+                    .substring(0, 32);
+            this.snapshot = new IndexSnapshot(content, gzipContent.toByteArray(), "\"" + hash + "\"",
+                    "\"" + hash + "-gzip\"", Files.getLastModifiedTime(indexFile).toMillis());
+            logger.info("Loaded the FileStorm app file {} ({} bytes).", indexFile, content.length);
+        } catch (Exception e) {
+            logger.error("Could not read the FileStorm app file " + indexFile, e);
+        }
+    }
+
+    private void watch() {
+        Path directory = indexFile.getParent();
+        // the file may have been written while the directory was not watched
+        boolean isChangeMissed = false;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                WatchKey watchKey = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                if (isChangeMissed) {
+                    isChangeMissed = false;
+                    reload();
+                }
+                // a valid key turns invalid when the directory is removed, e.g. by a redeploy
+                while (watchKey.isValid()) {
+                    WatchKey signalledKey = watchService.take();
+                    TimeUnit.MILLISECONDS.sleep(RELOAD_DELAY_MILLIS);
+                    // drain the events of the whole redeploy
+                    do {
+                        signalledKey.pollEvents();
+                        signalledKey.reset();
+                    } while ((signalledKey = watchService.poll()) != null);
+                    reload();
+                }
+                isChangeMissed = true;
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (IOException e) {
+                // the directory does not exist (yet); the registration is retried
+                // silently and the file is loaded once the directory is back
+                isChangeMissed = true;
+                try {
+                    TimeUnit.SECONDS.sleep(5);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // "gzip" listed without q=0
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watcherThread.interrupt();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("Could not close the FileStorm app file watcher.", e);
+            }
+        }
+    }
+
+    private static class IndexSnapshot {
+        private final byte[] content;
+        private final byte[] gzipContent;
+        private final String eTag;
+        private final String gzipETag;
+        private final long lastModified;
+
+        IndexSnapshot(byte[] content, byte[] gzipContent, String eTag, String gzipETag, long lastModified) {
+            this.content = content;
+            this.gzipContent = gzipContent;
+            this.eTag = eTag;
+            this.gzipETag = gzipETag;
+            this.lastModified = lastModified;
+        }
+    }
+}
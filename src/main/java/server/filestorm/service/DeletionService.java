@@ -0,0 +1,267 @@
+package server.filestorm.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PreDestroy;
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.exception.FileManagementException;
+import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.DeletionJournalEntry;
+import server.filestorm.model.entity.Directory;
+import server.filestorm.model.entity.User;
+import server.filestorm.model.repository.BlobRepository;
+import server.filestorm.model.repository.ChunkRepository;
+import server.filestorm.model.repository.DeletionJournalRepository;
+import server.filestorm.model.repository.DirectoryRepository;
+
+/**
+ * Bulk deletes of directories and files. The rows are removed with a fixed
+ * number of set-based statements - however many files a directory holds - and
+ * the files left on disk are written to the deletion_journal in the same
+ * transaction. A background unlinker drains the journal with a bounded number
+ * of threads, so a request never waits for the file system.
+ */
+@Service
+@Transactional
+public class DeletionService {
+
+    private static final long RETRY_DELAY_MILLIS = 60000; // 1 minute, times the attempts
+
+    // files which can not be unlinked are retried at least every hour
+    private static final int MAX_RETRY_DELAY_FACTOR = 60;
+
+    private final DeletionJournalRepository deletionJournalRepository;
+
+    private final ChunkRepository chunkRepository;
+
+    private final BlobRepository blobRepository;
+
+    private final DirectoryRepository directoryRepository;
+
+    private final DirectoryService directoryService;
+
+    private final UserService userService;
+
+    private final PublicFileCache publicFileCache;
+
+    private final FileProcessingService fileProcessingService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int unlinkBatchSize;
+
+    // unlinking is bound by the file system - a few threads keep it busy
+    private final ExecutorService unlinkExecutor;
+
+    Logger logger = LoggerFactory.getLogger(DeletionService.class);
+
+    public DeletionService(DeletionJournalRepository deletionJournalRepository, ChunkRepository chunkRepository,
+            BlobRepository blobRepository, DirectoryRepository directoryRepository,
+            DirectoryService directoryService, UserService userService, PublicFileCache publicFileCache,
+            FileProcessingService fileProcessingService, PlatformTransactionManager transactionManager,
+            ServerConfigurationProperties confProps) {
+        this.deletionJournalRepository = deletionJournalRepository;
+        this.chunkRepository = chunkRepository;
+        this.blobRepository = blobRepository;
+        this.directoryRepository = directoryRepository;
+        this.directoryService = directoryService;
+        this.userService = userService;
+        this.publicFileCache = publicFileCache;
+        this.fileProcessingService = fileProcessingService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.unlinkBatchSize = confProps.getDeletionUnlinkBatchSize();
+        this.unlinkExecutor = Executors.newFixedThreadPool(confProps.getDeletionUnlinkThreads());
+    }
+
+    /**
+     * Deletes the given directories with everything below them and the given
+     * files from DB, applies the freed storage space to the user in one update
+     * and journals the files for the unlinker. Shares of the deleted files are
+     * removed with them; their pending processing jobs are dropped by the
+     * worker.
+     *
+     * @param directories The top directories to delete. Directories inside
+     *                    another given directory are deleted with it.
+     * @param chunks      Single files to delete.
+     * @param owner       The user owner of the directories and chunks.
+     * @throws FileManagementException When one of the directories is the root
+     *                                 user storage directory.
+     */
+    public void deleteDirectoriesAndFiles(
+            Collection<Directory> directories,
+            Collection<Chunk> chunks,
+            User owner) throws FileManagementException {
+        Map<Long, Directory> topDirectories = new LinkedHashMap<>();
+        for (Directory directory : directories) {
+            if (!directory.getOwner().getId().equals(owner.getId())) {
+                continue;
+            }
+            if (directory.getParentDirectory().isEmpty()) {
+                throw new FileManagementException("The root user storage directory can not be deleted.");
+            }
+            topDirectories.put(directory.getId(), directory);
+        }
+        List<Directory> nestedDirectories = topDirectories.values().stream()
+                .filter(directory -> topDirectories.values().stream()
+                        .anyMatch(other -> !other.getId().equals(directory.getId())
+                                && directory.getPath().startsWith(other.getPath())))
+                .toList();
+        for (Directory directory : nestedDirectories) {
+            topDirectories.remove(directory.getId());
+        }
+
+        // the parents outside of the deleted subtrees lose these elements;
+        // decrementing a deleted parent updates no row
+        Map<Long, Integer> removedElements = new LinkedHashMap<>();
+        for (Directory directory : topDirectories.values()) {
+            removedElements.merge(directory.getParentDirectory().get().getId(), 1, Integer::sum);
+        }
+        Set<Long> chunkIds = new LinkedHashSet<>();
+        for (Chunk chunk : chunks) {
+            if (!chunk.getOwner().getId().equals(owner.getId()) || !chunkIds.add(chunk.getId())) {
+                continue;
+            }
+            removedElements.merge(chunk.getDirectory().getId(), 1, Integer::sum);
+        }
+
+        String batchId = UUID.randomUUID().toString();
+        long now = new Date().getTime();
+        for (Directory directory : topDirectories.values()) {
+            deletionJournalRepository.journalChunksInSubtree(batchId, directory.getPath() + "%", now);
+        }
+        if (!chunkIds.isEmpty()) {
+            deletionJournalRepository.journalChunks(batchId, chunkIds, owner.getId(), now);
+        }
+
+        Long bytesToRemove = chunkRepository.sumSizeOfJournaledChunks(batchId);
+        List<Long> publicChunkIds = chunkRepository.findJournaledChunkIdsByShareOption(batchId,
+                Chunk.ShareOption.SHARE_WITH_ALL_WITH_LINK.name());
+
+        blobRepository.releaseBlobsOfJournaledChunks(batchId);
+        deletionJournalRepository.journalUnreferencedBlobs(batchId, now);
+        chunkRepository.deleteSharesOfJournaledChunks(batchId);
+        int deletedChunks = chunkRepository.deleteJournaledChunks(batchId);
+        blobRepository.deleteJournaledBlobs(batchId);
+        int deletedDirectories = 0;
+        for (Directory directory : topDirectories.values()) {
+            deletedDirectories += directoryRepository.deleteSubtreeByPathPattern(directory.getPath() + "%");
+        }
+
+        removedElements.forEach(directoryService::decrementElementsCount);
+        userService.decreaseBytesInStorage(owner, bytesToRemove);
+        for (Long chunkId : publicChunkIds) {
+            publicFileCache.invalidate(chunkId);
+        }
+        logger.debug("Deleted {} directories and {} files of user {}, batch {}.", deletedDirectories,
+                deletedChunks, owner.getId(), batchId);
+    }
+
+    /**
+     * Unlinks the journaled files in batches, until no entry is due any more.
+     * Every batch is claimed and removed from the journal in it's own
+     * transaction.
+     */
+    @Scheduled(fixedDelay = 5000, initialDelay = 30000)
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void unlinkJournaledFiles() {
+        Integer claimed;
+        do {
+            claimed = transactionTemplate.execute(status -> unlinkDueEntries());
+        } while (claimed != null && claimed == unlinkBatchSize);
+    }
+
+    private int unlinkDueEntries() {
+        List<DeletionJournalEntry> entries = deletionJournalRepository.lockDueEntries(new Date().getTime(),
+                unlinkBatchSize);
+        if (entries.isEmpty()) {
+            return 0;
+        }
+
+        // A Blob uploaded again after it's delete has the same path; it's file is
+        // kept. An upload adopting the content right now is not visible yet; the
+        // window is the time between this query and the unlink.
+        List<String> blobHashes = entries.stream().map(DeletionJournalEntry::getBlobHash)
+                .filter(Objects::nonNull).toList();
+        Set<String> reusedBlobHashes = blobHashes.isEmpty() ? Set.of()
+                : new HashSet<>(blobRepository.findHashesIn(blobHashes));
+
+        List<CompletableFuture<Void>> unlinks = new ArrayList<>(entries.size());
+        for (DeletionJournalEntry entry : entries) {
+            boolean isFileInUse = entry.getBlobHash() != null && reusedBlobHashes.contains(entry.getBlobHash());
+            unlinks.add(CompletableFuture.runAsync(() -> unlink(entry, isFileInUse), unlinkExecutor));
+        }
+
+        List<DeletionJournalEntry> unlinked = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            DeletionJournalEntry entry = entries.get(i);
+            try {
+                unlinks.get(i).join();
+                unlinked.add(entry);
+            } catch (CompletionException e) {
+                markFailed(entry, e.getCause() != null ? e.getCause() : e);
+            }
+        }
+        deletionJournalRepository.deleteAllInBatch(unlinked);
+        return entries.size();
+    }
+
+    private void unlink(DeletionJournalEntry entry, boolean isFileInUse) throws StorageException {
+        try {
+            if (entry.getChunkId() != null) {
+                Files.deleteIfExists(fileProcessingService.getThumbnailPath(entry.getChunkId()));
+            }
+            if (entry.getFilePath() != null && !isFileInUse) {
+                Files.deleteIfExists(Path.of(entry.getFilePath()));
+            }
+        } catch (Exception e) {
+            throw new StorageException("Could not delete file: " + entry.getFilePath(), e);
+        }
+    }
+
+    private void markFailed(DeletionJournalEntry entry, Throwable e) {
+        int attempts = entry.getAttempts() + 1;
+        logger.warn("Unlinking deletion journal entry {} failed {} times: {}", entry.getId(), attempts,
+                e.getMessage());
+        entry.setAttempts(attempts);
+        String message = String.valueOf(e.getMessage());
+        entry.setLastError(message.length() > 2500 ? message.substring(0, 2500) : message);
+        entry.setAvailableAt(new Date().getTime()
+                + RETRY_DELAY_MILLIS * Math.min(attempts, MAX_RETRY_DELAY_FACTOR));
+        deletionJournalRepository.save(entry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // unlinked entries of an interrupted batch stay in the journal and are
+        // unlinked again - deleting a missing file succeeds
+        unlinkExecutor.shutdownNow();
+    }
+}
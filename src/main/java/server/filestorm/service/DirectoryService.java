@@ -1,9 +1,24 @@
 package server.filestorm.service;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Window;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -12,16 +27,106 @@ import server.filestorm.exception.StorageException;
 import server.filestorm.model.entity.Chunk;
 import server.filestorm.model.entity.Directory;
 import server.filestorm.model.entity.User;
+import server.filestorm.model.repository.ChunkRepository;
 import server.filestorm.model.repository.DirectoryRepository;
+import server.filestorm.model.type.fileManagement.ChunkReference;
+import server.filestorm.model.type.fileManagement.DirectoryPage;
+import server.filestorm.model.type.fileManagement.DirectoryReference;
+import server.filestorm.model.type.fileManagement.DirectoryVersion;
+import server.filestorm.model.type.fileManagement.HydratedDirectoryReference;
 import server.filestorm.util.StringUtil;
 
 @Service
 @Transactional
 public class DirectoryService {
 
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    public static final int MAX_PAGE_SIZE = 500;
+
+    // the sort property of the subdirectories and of the files per sort key
+    private static final Map<String, String[]> PAGE_SORT_PROPERTIES = Map.of(
+            "name", new String[] { "name", "originalFileName" },
+            "size", new String[] { "name", "sizeBytes" },
+            "createdOn", new String[] { "createdOn", "createdOn" },
+            "lastModified", new String[] { "lastModified", "lastModified" });
+
     @Autowired
     private DirectoryRepository directoryRepository;
 
+    @Autowired
+    private ChunkRepository chunkRepository;
+
+    Logger logger = LoggerFactory.getLogger(DirectoryService.class);
+
+    /**
+     * Creates the index of the directory paths and derives the paths of
+     * directories created before the column existed.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void maintainPaths() {
+        directoryRepository.createPathIndex();
+        int backfilled = directoryRepository.backfillPaths();
+        if (backfilled > 0) {
+            logger.info("Backfilled the paths of {} directories.", backfilled);
+        }
+    }
+
+    /**
+     * Creates the indexes, which find the counter variants of a name - "report
+     * (1).pdf" - when a file or directory name is made unique.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void createNamePatternIndexes() {
+        directoryRepository.createNamePatternIndex();
+        chunkRepository.createOriginalFileNamePatternIndex();
+    }
+
+    /**
+     * Creates the unique indexes of the file and directory names per directory.
+     * Files and directories, which were given a taken name before the indexes
+     * existed, are renamed first with a counter - like a new upload would be. If
+     * an index still can not be created the exception fails the startup, instead
+     * of running without it.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void createUniqueNameIndexes() {
+        if (!directoryRepository.existsIndex("uk_directories_parent_directory_name")) {
+            int renamed = 0;
+            for (Long directoryId : directoryRepository.findIdsOfDuplicateNames()) {
+                Directory dir = directoryRepository.findById(directoryId).orElseThrow();
+                String name = dir.getName();
+                // flushes the earlier renames, so they are taken too
+                List<String> collidingNames = directoryRepository.findCollidingNames(
+                        dir.getParentDirectory().get(), name, StringUtil.uniqueCounterLikePattern(name));
+                dir.setName(StringUtil.appendUniqueCounter(name, collidingNames));
+                directoryRepository.save(dir);
+                renamed++;
+            }
+            if (renamed > 0) {
+                logger.warn("Renamed {} directories with the name of another directory in the same directory.",
+                        renamed);
+            }
+            directoryRepository.createUniqueNameIndex();
+        }
+        if (!directoryRepository.existsIndex("uk_chunks_directory_original_file_name")) {
+            int renamed = 0;
+            for (Long chunkId : chunkRepository.findIdsOfDuplicateOriginalFileNames()) {
+                Chunk chunk = chunkRepository.findById(chunkId).orElseThrow();
+                String name = chunk.getOriginalFileName();
+                List<String> collidingNames = chunkRepository.findCollidingOriginalFileNames(chunk.getDirectory(),
+                        name, StringUtil.uniqueCounterLikePattern(name));
+                chunk.setOriginalFileName(StringUtil.appendUniqueCounter(name, collidingNames));
+                chunkRepository.save(chunk);
+                renamed++;
+            }
+            if (renamed > 0) {
+                logger.warn("Renamed {} files with the name of another file in the same directory.", renamed);
+            }
+            chunkRepository.createUniqueOriginalFileNameIndex();
+        }
+    }
+
     public Directory saveDirectory(Directory dir) {
         return directoryRepository.save(dir);
     }
@@ -38,6 +143,8 @@ public class DirectoryService {
         dir.setName(name);
         dir.setOwner(owner);
         dir.setParentDirectory(null);
+        dir = directoryRepository.save(dir);
+        dir.setPath("/" + dir.getId() + "/");
         return directoryRepository.save(dir);
     }
 
@@ -50,34 +157,85 @@ public class DirectoryService {
      */
     public Directory createNewDirectory(String name, User owner, Directory parentDirectory) {
         Directory dir = new Directory();
-        while (doesDirectoryIncludeSubdirectoryWithThisName(parentDirectory, name)) {
-            name = StringUtil.appendUniqueCounter(name);
-        }
+        List<String> collidingNames = directoryRepository.findCollidingNames(parentDirectory, name,
+                StringUtil.uniqueCounterLikePattern(name));
+        name = StringUtil.appendUniqueCounter(name, collidingNames);
         dir.setName(name);
         dir.setOwner(owner);
         dir.setParentDirectory(parentDirectory);
         this.incrementElementsCountByOne(parentDirectory);
+        dir = directoryRepository.save(dir);
+        dir.setPath(parentDirectory.getPath() + dir.getId() + "/");
         return directoryRepository.save(dir);
     }
 
+    /**
+     * Moves the directory with everything in it into another directory. The
+     * paths of the whole subtree are rewritten with one query.
+     * 
+     * @param directory       The directory to move. Not a root directory.
+     * @param targetDirectory The new parent directory.
+     * @return The moved directory.
+     * @throws FileManagementException When the directory would be moved into it
+     *                                 self or the name is taken in the target.
+     */
+    public Directory moveDirectory(Directory directory, Directory targetDirectory) throws FileManagementException {
+        Directory parentDirectory = directory.getParentDirectory()
+                .orElseThrow(() -> new FileManagementException("This directory can not be moved."));
+        if (targetDirectory.getPath().startsWith(directory.getPath())) {
+            throw new FileManagementException("A directory can not be moved into it self.");
+        }
+        if (doesDirectoryIncludeSubdirectoryWithThisName(targetDirectory, directory.getName())) {
+            throw new FileManagementException("A directory with this name already exists here.");
+        }
+
+        String oldPath = directory.getPath();
+        String newPath = targetDirectory.getPath() + directory.getId() + "/";
+        directory.setParentDirectory(targetDirectory);
+        directory = directoryRepository.save(directory);
+        directoryRepository.replacePathPrefix(oldPath, newPath);
+        directory.setPath(newPath);
+
+        this.decrementElementsCountByOne(parentDirectory);
+        this.incrementElementsCountByOne(targetDirectory);
+        return directory;
+    }
+
     public void delete(Directory directory) {
         directoryRepository.delete(directory);
     }
 
     public void incrementElementsCountByOne(Long directoryId) {
-        directoryRepository.incrementElementsCountByOne(directoryId);
+        directoryRepository.incrementElementsCountByOne(directoryId, new Date().getTime());
     }
 
     public void incrementElementsCountByOne(Directory directory) {
-        directoryRepository.incrementElementsCountByOne(directory.getId());
+        directoryRepository.incrementElementsCountByOne(directory.getId(), new Date().getTime());
+    }
+
+    public void incrementElementsCount(Directory directory, Integer delta) {
+        directoryRepository.incrementElementsCount(directory.getId(), delta, new Date().getTime());
     }
 
     public void decrementElementsCountByOne(Long directoryId) {
-        directoryRepository.decrementElementsCountByOne(directoryId);
+        directoryRepository.decrementElementsCountByOne(directoryId, new Date().getTime());
     }
     
     public void decrementElementsCountByOne(Directory directory) {
-        directoryRepository.decrementElementsCountByOne(directory.getId());
+        directoryRepository.decrementElementsCountByOne(directory.getId(), new Date().getTime());
+    }
+
+    public void decrementElementsCount(Long directoryId, Integer count) {
+        directoryRepository.decrementElementsCount(directoryId, count, new Date().getTime());
+    }
+
+    /**
+     * Returns the version of the directory, from which it's ETag is derived.
+     * 
+     * @return The version or null if the user has no such directory.
+     */
+    public DirectoryVersion findDirectoryVersionForUserById(Long directoryId, User owner) {
+        return directoryRepository.findDirectoryVersionForUserById(directoryId, owner).orElse(null);
     }
 
     public Directory findDirectoryForUserById(Long directoryId, User owner) throws StorageException {
@@ -85,6 +243,193 @@ public class DirectoryService {
                 .orElseThrow(() -> new StorageException("Directory could not be found."));
     }
 
+    /**
+     * Lists the directory: it's files and the references of it's subdirectories.
+     * Only the IDs of the contents of the subdirectories are loaded.
+     * 
+     * @throws StorageException When the user has no such directory.
+     */
+    @Transactional(readOnly = true)
+    public HydratedDirectoryReference findHydratedDirectoryForUserById(Long directoryId, User owner)
+            throws StorageException {
+        Directory directory = directoryRepository.findDirectoryWithListingForUserById(directoryId, owner)
+                .orElseThrow(() -> new StorageException("Directory could not be found."));
+        return new HydratedDirectoryReference(directory,
+                toDirectoryReferences(directory.getSubdirectories()).toArray(new DirectoryReference[0]));
+    }
+
+    /**
+     * Returns one page of the contents of the directory - the subdirectories
+     * first, then the files - sorted by the given key and the ID. Every page is
+     * read with a keyset query from the position in the cursor, so a page costs
+     * the same at the start and at the end of a large directory.
+     *
+     * @param directoryId The ID of the directory.
+     * @param owner       The user owner of the directory.
+     * @param sort        One of name, size, createdOn and lastModified.
+     *                    Subdirectories have no size and are sorted by name then.
+     * @param order       asc or desc.
+     * @param limit       The number of elements on the page; capped at
+     *                    MAX_PAGE_SIZE.
+     * @param cursor      The nextCursor of the previous page, null for the first
+     *                    page.
+     * @param mimeType    Optional prefix of the MIME type of the files, e.g.
+     *                    "image/". Subdirectories are left out with it.
+     * @return The page.
+     * @throws StorageException        When the directory could not be found.
+     * @throws FileManagementException When the sort, order or cursor is not
+     *                                 valid.
+     */
+    @Transactional(readOnly = true)
+    public DirectoryPage findDirectoryPageForUserById(Long directoryId, User owner, String sort, String order,
+            Integer limit, String cursor, String mimeType) throws StorageException, FileManagementException {
+        Directory directory = directoryRepository.findDirectoryForUserById(directoryId, owner)
+                .orElseThrow(() -> new StorageException("Directory could not be found."));
+        String[] sortProperties = PAGE_SORT_PROPERTIES.get(sort);
+        if (sortProperties == null) {
+            throw new FileManagementException("Files can be sorted by name, size, createdOn or lastModified.");
+        }
+        if (!order.equals("asc") && !order.equals("desc")) {
+            throw new FileManagementException("The order must be asc or desc.");
+        }
+        Sort.Direction direction = order.equals("asc") ? Sort.Direction.ASC : Sort.Direction.DESC;
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        boolean isFiltered = mimeType != null && !mimeType.isBlank();
+
+        // the cursor is "<phase>|<sort>|<order>|<id>|<value>"; phase 0 are the
+        // subdirectories, phase 1 the files, which start without id and value
+        int phase = isFiltered ? 1 : 0;
+        ScrollPosition position = ScrollPosition.keyset();
+        if (cursor != null && !cursor.isBlank()) {
+            String[] parts;
+            try {
+                parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 5);
+                phase = Integer.parseInt(parts[0]);
+            } catch (Exception e) {
+                throw new FileManagementException("The cursor is not valid.");
+            }
+            if ((parts.length != 3 && parts.length != 5) || phase < (isFiltered ? 1 : 0) || phase > 1
+                    || !parts[1].equals(sort) || !parts[2].equals(order)) {
+                throw new FileManagementException("The cursor does not belong to this listing.");
+            }
+            if (parts.length == 5) {
+                String property = sortProperties[phase];
+                Map<String, Object> keys = new LinkedHashMap<>();
+                try {
+                    keys.put(property, isNameProperty(property) ? parts[4] : Long.valueOf(parts[4]));
+                    keys.put("id", Long.valueOf(parts[3]));
+                } catch (NumberFormatException e) {
+                    throw new FileManagementException("The cursor is not valid.");
+                }
+                position = ScrollPosition.forward(keys);
+            }
+        }
+
+        List<DirectoryReference> subdirectories = new ArrayList<>();
+        if (phase == 0) {
+            Window<Directory> window = directoryRepository.findByParentDirectory(directory, position,
+                    pageSort(direction, sortProperties[0]), Limit.of(pageSize));
+            subdirectories = toDirectoryReferences(window.getContent());
+            if (window.hasNext()) {
+                Directory last = window.getContent().get(window.size() - 1);
+                return new DirectoryPage(directory.getId(), sort, order,
+                        subdirectories.toArray(new DirectoryReference[0]), new ChunkReference[0],
+                        encodeCursor(0, sort, order, last.getId(), pageSortValue(last, sortProperties[0])));
+            }
+            position = ScrollPosition.keyset();
+        }
+
+        int remaining = pageSize - subdirectories.size();
+        List<Chunk> chunks = List.of();
+        String nextCursor = null;
+        if (remaining == 0) {
+            // the subdirectories filled the page, the files follow on the next one
+            nextCursor = encodeCursor(1, sort, order, null, null);
+        } else {
+            Sort chunkSort = pageSort(direction, sortProperties[1]);
+            Window<Chunk> window = isFiltered
+                    ? chunkRepository.findByDirectoryAndMimeTypeStartingWith(directory, mimeType, position,
+                            chunkSort, Limit.of(remaining))
+                    : chunkRepository.findByDirectory(directory, position, chunkSort, Limit.of(remaining));
+            chunks = window.getContent();
+            if (window.hasNext()) {
+                Chunk last = chunks.get(chunks.size() - 1);
+                nextCursor = encodeCursor(1, sort, order, last.getId(), pageSortValue(last, sortProperties[1]));
+            }
+        }
+
+        return new DirectoryPage(directory.getId(), sort, order,
+                subdirectories.toArray(new DirectoryReference[0]),
+                chunks.stream().map(ChunkReference::new).toArray(ChunkReference[]::new),
+                nextCursor);
+    }
+
+    private static Sort pageSort(Sort.Direction direction, String property) {
+        // the ID makes the key unique, so no element is skipped between pages
+        return Sort.by(direction, property, "id");
+    }
+
+    private static boolean isNameProperty(String property) {
+        return property.equals("name") || property.equals("originalFileName");
+    }
+
+    private static Object pageSortValue(Directory directory, String property) {
+        return switch (property) {
+            case "createdOn" -> directory.getCreatedOn();
+            case "lastModified" -> directory.getLastModified();
+            default -> directory.getName();
+        };
+    }
+
+    private static Object pageSortValue(Chunk chunk, String property) {
+        return switch (property) {
+            case "sizeBytes" -> chunk.getSizeBytes();
+            case "createdOn" -> chunk.getCreatedOn();
+            case "lastModified" -> chunk.getLastModified();
+            default -> chunk.getOriginalFileName();
+        };
+    }
+
+    private static String encodeCursor(int phase, String sort, String order, Long id, Object value) {
+        // the first page of the files has no position yet
+        String cursor = id == null
+                ? String.format("%1$d|%2$s|%3$s", phase, sort, order)
+                : String.format("%1$d|%2$s|%3$s|%4$d|%5$s", phase, sort, order, id, value);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Transactional(readOnly = true)
+    public DirectoryReference toDirectoryReference(Directory directory) {
+        return toDirectoryReferences(List.of(directory)).get(0);
+    }
+
+    /**
+     * Builds the references of the directories with two queries for the IDs of
+     * their contents, instead of loading the contents of every directory.
+     */
+    @Transactional(readOnly = true)
+    public List<DirectoryReference> toDirectoryReferences(List<Directory> directories) {
+        if (directories.isEmpty()) {
+            return new ArrayList<DirectoryReference>();
+        }
+        Map<Long, List<Long>> chunkIds = groupChildIds(directoryRepository.findChunkIdsByDirectories(directories));
+        Map<Long, List<Long>> subdirectoryIds = groupChildIds(
+                directoryRepository.findSubdirectoryIdsByParentDirectories(directories));
+        return directories.stream()
+                .map(directory -> new DirectoryReference(directory,
+                        chunkIds.getOrDefault(directory.getId(), List.of()).toArray(new Long[0]),
+                        subdirectoryIds.getOrDefault(directory.getId(), List.of()).toArray(new Long[0])))
+                .collect(Collectors.toList());
+    }
+
+    private static Map<Long, List<Long>> groupChildIds(List<Object[]> rows) {
+        Map<Long, List<Long>> childIds = new HashMap<Long, List<Long>>();
+        for (Object[] row : rows) {
+            childIds.computeIfAbsent((Long) row[0], id -> new ArrayList<Long>()).add((Long) row[1]);
+        }
+        return childIds;
+    }
+
     public Directory[] bulkCheckDirectoryOwnershipAndCollect(Long[] directoryIds, User owner) throws StorageException {
         if (directoryIds == null) {
             return new Directory[0];
@@ -99,19 +444,14 @@ public class DirectoryService {
 
     /**
      * Collects all chunks from the given directory, it´s subdirectories and all
-     * other subdirectories down the directory tree.
+     * other subdirectories down the directory tree - with one query by path,
+     * together with their Blobs.
      * 
      * @param dir The directory from which the chunk collection must start.
      * @return All collected chunks.
      */
     public ArrayList<Chunk> extractChunksFromDirAndSubDirs(Directory dir) {
-        ArrayList<Chunk> chunks = new ArrayList<Chunk>(dir.getChunks());
-        List<Directory> subdirectories = dir.getSubdirectories();
-        for (Directory subdir : subdirectories) {
-            ArrayList<Chunk> subChunks = extractChunksFromDirAndSubDirs(subdir);
-            chunks.addAll(subChunks);
-        }
-        return chunks;
+        return new ArrayList<Chunk>(directoryRepository.findChunksInSubtreeByPathPattern(dir.getPath() + "%"));
     }
 
     /**
@@ -132,7 +472,8 @@ public class DirectoryService {
 
     /**
      * Collects all subdirectories form the given directory and from all directories
-     * found down the directory tree. The initially given (first) directory IS NOT
+     * found down the directory tree - with one query by path, parents before their
+     * subdirectories. The initially given (first) directory IS NOT
      * included in the final result.
      * 
      * @param dir The initial (first) directory, from which the collection must
@@ -140,11 +481,9 @@ public class DirectoryService {
      * @return All collected directories.
      */
     public ArrayList<Directory> extractDirectoriesFromDirAndSubDirs(Directory dir) {
-        ArrayList<Directory> subdirectories = new ArrayList<Directory>(dir.getSubdirectories());
-        for (Directory subdir : subdirectories) {
-            ArrayList<Directory> deeperSubdirs = extractDirectoriesFromDirAndSubDirs(subdir);
-            subdirectories.addAll(deeperSubdirs);
-        }
+        ArrayList<Directory> subdirectories = new ArrayList<Directory>(
+                directoryRepository.findSubtreeByPathPattern(dir.getPath() + "%"));
+        subdirectories.removeIf(subdir -> subdir.getId().equals(dir.getId()));
         return subdirectories;
     }
 
@@ -160,32 +499,13 @@ public class DirectoryService {
      */
     public ArrayList<Directory> extractDirectoriesFromDirAndSubDirs(Directory[] dirs) {
         ArrayList<Directory> allDirs = new ArrayList<Directory>();
-        for (Directory dir : allDirs) {
+        for (Directory dir : dirs) {
             ArrayList<Directory> subdirs = extractDirectoriesFromDirAndSubDirs(dir);
             allDirs.addAll(subdirs);
         }
         return allDirs;
     }
 
-    /**
-     * Checks if the directory already includes a chunk with this originalFileName.
-     * 
-     * @param directory        The directory in which the check is conducted.
-     * @param originalFileName The originalFileName, the availability of which must
-     *                         be checked.
-     * @return True if the directory includes a chunk with this originalFileName,
-     *         false otherwise.
-     */
-    public Boolean doesDirectoryIncludeChunk(Directory directory, String originalFileName) {
-        List<Chunk> chunks = directory.getChunks();
-        for (Chunk c : chunks) {
-            if (c.getOriginalFileName().equals(originalFileName)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Checks if the given Directory includes a subdirectory with the same name as
      * the given nameToCheck.
@@ -196,13 +516,7 @@ public class DirectoryService {
      *         the given nameToCheck exists in the directory, false otherwise.
      */
     public Boolean doesDirectoryIncludeSubdirectoryWithThisName(Directory directory, String nameToCheck) {
-        List<Directory> allSubdirectories = directory.getSubdirectories();
-        for (Directory subDir : allSubdirectories) {
-            if (subDir.getName().equals(nameToCheck)) {
-                return true;
-            }
-        }
-        return false;
+        return directoryRepository.existsInDirectoryByName(directory, nameToCheck);
     }
 
     public Directory changeDirectoryName(Directory directory, String newName) {
@@ -0,0 +1,533 @@
+package server.filestorm.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import jakarta.servlet.http.HttpServletRequest;
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.exception.FileManagementException;
+import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.type.fileManagement.TarArchivePlan;
+import server.filestorm.util.HttpCacheUtil;
+
+/**
+ * Builds the responses of the file download endpoints. Supports HTTP range
+ * requests (RFC 9110, section 14), so interrupted downloads can be resumed and
+ * media players can seek: a single range is answered with 206 and
+ * Content-Range, several ranges with a multipart/byteranges body.
+ * 
+ * Whole files and single ranges are sent with Tomcat's sendfile when the
+ * connector supports it, so the bytes go from the page cache to the socket
+ * without passing through the JVM. Otherwise - over TLS, with bandwidth limits
+ * or for small files - they are read into pooled direct buffers; see
+ * FileSystemService.streamFileRangeToClient.
+ * 
+ * Every response carries a strong ETag and Last-Modified, and conditional
+ * requests for an unchanged file are answered with 304. Public downloads are
+ * sent with the configured Cache-Control, private ones are revalidated.
+ * 
+ * Bulk downloads are planned tar archives, served the same way, so they have a
+ * Content-Length and can be resumed as well.
+ */
+@Service
+public class FileDownloadService {
+
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    private final FileSystemService fileSystemService;
+
+    private final ChunkService chunkService;
+
+    private final PublicFileCache publicFileCache;
+
+    private final BandwidthScheduler bandwidthScheduler;
+
+    private final TarArchiveService tarArchiveService;
+
+    private final long sendfileMinSizeBytes;
+
+    private final String publicFileCacheControl;
+
+    public FileDownloadService(FileSystemService fileSystemService, ChunkService chunkService,
+            PublicFileCache publicFileCache, BandwidthScheduler bandwidthScheduler,
+            TarArchiveService tarArchiveService, ServerConfigurationProperties confProps) {
+        this.fileSystemService = fileSystemService;
+        this.chunkService = chunkService;
+        this.publicFileCache = publicFileCache;
+        this.bandwidthScheduler = bandwidthScheduler;
+        this.tarArchiveService = tarArchiveService;
+        this.sendfileMinSizeBytes = confProps.getSendfileMinSizeKb() * 1024L;
+        this.publicFileCacheControl = confProps.getPublicFileCacheControl();
+    }
+
+    /**
+     * Derives a strong entity tag for the content of the chunk. Deduplicated
+     * content has a SHA-256, which identifies the bytes; content still waiting for
+     * the checksum stage is identified by the chunk, it's modification time and
+     * size. The chunk ID is part of both, as the response headers - e.g. the file
+     * name - differ per chunk.
+     * 
+     * @return The quoted entity tag.
+     */
+    public String getETag(Chunk chunk) {
+        if (chunk.getBlob() != null) {
+            return String.format("\"%1$d-%2$s\"", chunk.getId(), chunk.getBlob().getHash());
+        }
+        return String.format("\"%1$d-%2$x-%3$x\"", chunk.getId(), chunk.getLastModified(), chunk.getSizeBytes());
+    }
+
+    /**
+     * Builds the response for downloading the chunk, or the requested ranges of
+     * it.
+     * 
+     * @param chunk         The file to download.
+     * @param rangeHeader   The Range request header, may be null.
+     * @param ifRangeHeader The If-Range request header, may be null.
+     * @param headers       Headers to add to the response - e.g. Content-Type or
+     *                      Content-Disposition.
+     * @param userId        The downloading user, whose bandwidth share is used.
+     * @param req           The download request. Carries the sendfile attributes
+     *                      to the servlet container.
+     * @return 200 with the whole file, 206 with the requested ranges, 304 if the
+     *         client's copy is current or 416 if none of the ranges is
+     *         satisfiable.
+     */
+    public ResponseEntity<StreamingResponseBody> buildDownloadResponse(Chunk chunk, String rangeHeader,
+            String ifRangeHeader, HttpHeaders headers, Long userId, HttpServletRequest req) {
+        return buildResponse(new ChunkContent(chunk), rangeHeader, ifRangeHeader, headers, userId, req);
+    }
+
+    /**
+     * Builds the response for a public download link. Hot files are served from
+     * the PublicFileCache, without looking up the chunk.
+     * 
+     * @param chunkId       The ID of the public file.
+     * @param rangeHeader   The Range request header, may be null.
+     * @param ifRangeHeader The If-Range request header, may be null.
+     * @param req           The download request.
+     * @return See buildDownloadResponse.
+     * @throws FileManagementException When the file does not exist or is not
+     *                                 public.
+     */
+    public ResponseEntity<StreamingResponseBody> buildPublicDownloadResponse(Long chunkId, String rangeHeader,
+            String ifRangeHeader, HttpServletRequest req) throws FileManagementException {
+        PublicFileCache.CachedFile cachedFile = publicFileCache.get(chunkId);
+        DownloadContent content;
+        if (cachedFile != null) {
+            content = new CachedContent(cachedFile);
+        } else {
+            long generation = publicFileCache.getGeneration();
+            Chunk chunk = chunkService.findPublicChunkById(chunkId);
+            cachedFile = publicFileCache.admit(chunk, getETag(chunk), fileSystemService.getReadableFilePath(chunk),
+                    generation);
+            content = cachedFile != null ? new CachedContent(cachedFile) : new ChunkContent(chunk);
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"" + content.getOriginalFileName() + "\"");
+        headers.setCacheControl(publicFileCacheControl);
+        // anonymous - only the global bandwidth limit applies
+        return buildResponse(content, rangeHeader, ifRangeHeader, headers, null, req);
+    }
+
+    /**
+     * Builds the response for downloading a planned tar archive, or the requested
+     * ranges of it. The archive is always written by the application, sendfile
+     * is not used.
+     * 
+     * @param plan          The planned archive.
+     * @param rangeHeader   The Range request header, may be null.
+     * @param ifRangeHeader The If-Range request header, may be null.
+     * @param headers       Headers to add to the response - e.g.
+     *                      Content-Disposition.
+     * @param userId        The downloading user, whose bandwidth share is used.
+     * @param req           The download request.
+     * @return See buildDownloadResponse.
+     */
+    public ResponseEntity<StreamingResponseBody> buildArchiveDownloadResponse(TarArchivePlan plan,
+            String rangeHeader, String ifRangeHeader, HttpHeaders headers, Long userId, HttpServletRequest req) {
+        return buildResponse(new ArchiveContent(plan), rangeHeader, ifRangeHeader, headers, userId, req);
+    }
+
+    /**
+     * Builds the response for downloading a planned tar archive gzip compressed.
+     * The compressed size is not known up front, so the archive is streamed
+     * without Content-Length and range requests are not supported.
+     * 
+     * @param plan    The planned archive.
+     * @param headers Headers to add to the response - e.g. Content-Disposition.
+     * @param userId  The downloading user, whose bandwidth share is used.
+     * @return 200 with the compressed archive.
+     */
+    public ResponseEntity<StreamingResponseBody> buildCompressedArchiveDownloadResponse(TarArchivePlan plan,
+            HttpHeaders headers, Long userId) {
+        headers.set(HttpHeaders.CONTENT_TYPE, "application/gzip");
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(out -> {
+                    try (OutputStream throttledOut = bandwidthScheduler.throttle(out, userId,
+                            BandwidthScheduler.BULK_DOWNLOAD_WEIGHT)) {
+                        tarArchiveService.writeCompressed(plan, throttledOut);
+                    } catch (Exception e) {
+                        throw new StorageException("Erro occured while streaming the file.", e);
+                    }
+                });
+    }
+
+    private ResponseEntity<StreamingResponseBody> buildResponse(DownloadContent content, String rangeHeader,
+            String ifRangeHeader, HttpHeaders headers, Long userId, HttpServletRequest req) {
+        long fileLength = content.getSizeBytes();
+        String eTag = content.getETag();
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.setETag(eTag);
+        headers.setLastModified(content.getLastModified());
+        if (headers.getCacheControl() == null) {
+            headers.setCacheControl("private, no-cache");
+        }
+
+        if (HttpCacheUtil.isNotModified(req.getHeader(HttpHeaders.IF_NONE_MATCH),
+                req.getHeader(HttpHeaders.IF_MODIFIED_SINCE), eTag, content.getLastModified())) {
+            HttpHeaders notModifiedHeaders = new HttpHeaders();
+            notModifiedHeaders.setETag(eTag);
+            notModifiedHeaders.setLastModified(content.getLastModified());
+            notModifiedHeaders.setCacheControl(headers.getCacheControl());
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(notModifiedHeaders).build();
+        }
+
+        // a Range with a stale If-Range validator is ignored - the whole file is sent
+        List<ByteRange> ranges = rangeHeader == null
+                || !HttpCacheUtil.isIfRangeFresh(ifRangeHeader, eTag, content.getLastModified())
+                ? null
+                : parseRanges(rangeHeader, fileLength);
+
+        if (ranges == null) {
+            headers.setContentLength(fileLength);
+            if (trySendfile(content, req, 0, fileLength)) {
+                return ResponseEntity.ok().headers(headers).build();
+            }
+            return ResponseEntity.ok()
+                    .headers(headers)
+                    .body(out -> {
+                        try (OutputStream throttledOut = bandwidthScheduler.throttle(out, userId,
+                                content.getBandwidthWeight())) {
+                            content.writeTo(throttledOut, 0, fileLength);
+                        } catch (Exception e) {
+                            throw new StorageException("Erro occured while streaming the file.", e);
+                        }
+                    });
+        }
+
+        if (ranges.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + fileLength)
+                    .build();
+        }
+
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            headers.set(HttpHeaders.CONTENT_RANGE, range.toContentRange(fileLength));
+            headers.setContentLength(range.getLength());
+            if (trySendfile(content, req, range.start, range.getLength())) {
+                return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(headers).build();
+            }
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .headers(headers)
+                    .body(out -> {
+                        try (OutputStream throttledOut = bandwidthScheduler.throttle(out, userId,
+                                content.getBandwidthWeight())) {
+                            content.writeTo(throttledOut, range.start, range.getLength());
+                        } catch (Exception e) {
+                            throw new StorageException("Erro occured while streaming the file.", e);
+                        }
+                    });
+        }
+
+        // multipart/byteranges - every part has it's own Content-Type and Content-Range
+        String boundary = new String(MimeTypeUtils.generateMultipartBoundary(), StandardCharsets.US_ASCII);
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = String.format("\r\n--%1$s\r\nContent-Type: %2$s\r\nContent-Range: %3$s\r\n\r\n",
+                    boundary, content.getMimeType(), range.toContentRange(fileLength))
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range.getLength();
+        }
+        byte[] closingBoundary = String.format("\r\n--%1$s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+        contentLength += closingBoundary.length;
+
+        headers.set(HttpHeaders.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        headers.setContentLength(contentLength);
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .headers(headers)
+                .body(out -> {
+                    try (OutputStream throttledOut = bandwidthScheduler.throttle(out, userId,
+                            content.getBandwidthWeight())) {
+                        for (int i = 0; i < ranges.size(); i++) {
+                            ByteRange range = ranges.get(i);
+                            throttledOut.write(partHeaders.get(i));
+                            content.writeTo(throttledOut, range.start, range.getLength());
+                        }
+                        throttledOut.write(closingBoundary);
+                    } catch (Exception e) {
+                        throw new StorageException("Erro occured while streaming the file.", e);
+                    }
+                });
+    }
+
+    /**
+     * Hands the file over to the servlet container, which sends it after the
+     * response headers with sendfile. Only done for plain HTTP - over TLS the
+     * bytes have to be encrypted in user space anyway - and for files large
+     * enough to be worth it. Not done while bandwidth is limited, as the
+     * container's write can not be throttled.
+     * 
+     * @return True if the container will send the bytes, false if the response
+     *         body has to be written.
+     */
+    private boolean trySendfile(DownloadContent content, HttpServletRequest req, long start, long length) {
+        Chunk chunk = content.getChunk();
+        if (chunk == null
+                || length < this.sendfileMinSizeBytes
+                || bandwidthScheduler.isEnabled()
+                || req.isSecure()
+                || !Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))
+                || !HttpMethod.GET.matches(req.getMethod())) {
+            return false;
+        }
+        Path path = fileSystemService.getReadableFilePath(chunk);
+        req.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, path.toString());
+        req.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(start));
+        req.setAttribute(SENDFILE_END_ATTRIBUTE, Long.valueOf(start + length));
+        return true;
+    }
+
+    /**
+     * Parses the Range header and resolves the ranges against the file length.
+     * Overlapping and adjacent ranges are coalesced, as RFC 9110 allows.
+     * 
+     * @return Null if the header is not a valid bytes range - it is ignored then;
+     *         an empty list if no range is satisfiable; the ranges in ascending
+     *         order otherwise.
+     */
+    private List<ByteRange> parseRanges(String rangeHeader, long fileLength) {
+        List<HttpRange> httpRanges;
+        try {
+            httpRanges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (httpRanges.isEmpty()) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(httpRanges.size());
+        for (HttpRange httpRange : httpRanges) {
+            if (fileLength == 0) {
+                break;
+            }
+            long start = httpRange.getRangeStart(fileLength);
+            long end = httpRange.getRangeEnd(fileLength);
+            if (start >= fileLength || start > end) {
+                // unsatisfiable; the other ranges may still be served
+                continue;
+            }
+            ranges.add(new ByteRange(start, end));
+        }
+        ranges.sort(Comparator.comparingLong(range -> range.start));
+
+        List<ByteRange> coalescedRanges = new ArrayList<>(ranges.size());
+        for (ByteRange range : ranges) {
+            ByteRange last = coalescedRanges.isEmpty() ? null : coalescedRanges.get(coalescedRanges.size() - 1);
+            if (last != null && range.start <= last.end + 1) {
+                coalescedRanges.set(coalescedRanges.size() - 1, new ByteRange(last.start, Math.max(last.end, range.end)));
+            } else {
+                coalescedRanges.add(range);
+            }
+        }
+        return coalescedRanges;
+    }
+
+    /**
+     * The file being downloaded - on disk, in the PublicFileCache or a tar
+     * archive of several files.
+     */
+    private interface DownloadContent {
+        String getOriginalFileName();
+
+        String getMimeType();
+
+        String getETag();
+
+        long getLastModified();
+
+        long getSizeBytes();
+
+        // null if the content is not read from disk
+        Chunk getChunk();
+
+        default int getBandwidthWeight() {
+            return BandwidthScheduler.DOWNLOAD_WEIGHT;
+        }
+
+        void writeTo(OutputStream outputStream, long start, long length);
+    }
+
+    private class ChunkContent implements DownloadContent {
+        private final Chunk chunk;
+
+        ChunkContent(Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+        public String getOriginalFileName() {
+            return chunk.getOriginalFileName();
+        }
+
+        public String getMimeType() {
+            return chunk.getMimeType();
+        }
+
+        public String getETag() {
+            return FileDownloadService.this.getETag(chunk);
+        }
+
+        public long getLastModified() {
+            return chunk.getLastModified();
+        }
+
+        public long getSizeBytes() {
+            return chunk.getSizeBytes();
+        }
+
+        public Chunk getChunk() {
+            return chunk;
+        }
+
+        public void writeTo(OutputStream outputStream, long start, long length) {
+            fileSystemService.streamFileRangeToClient(chunk, outputStream, start, length);
+        }
+    }
+
+    private static class CachedContent implements DownloadContent {
+        private final PublicFileCache.CachedFile cachedFile;
+
+        CachedContent(PublicFileCache.CachedFile cachedFile) {
+            this.cachedFile = cachedFile;
+        }
+
+        public String getOriginalFileName() {
+            return cachedFile.getOriginalFileName();
+        }
+
+        public String getMimeType() {
+            return cachedFile.getMimeType();
+        }
+
+        public String getETag() {
+            return cachedFile.getETag();
+        }
+
+        public long getLastModified() {
+            return cachedFile.getLastModified();
+        }
+
+        public long getSizeBytes() {
+            return cachedFile.getSizeBytes();
+        }
+
+        public Chunk getChunk() {
+            return null;
+        }
+
+        public void writeTo(OutputStream outputStream, long start, long length) {
+            cachedFile.writeTo(outputStream, start, length);
+        }
+    }
+
+    private class ArchiveContent implements DownloadContent {
+        private final TarArchivePlan plan;
+
+        ArchiveContent(TarArchivePlan plan) {
+            this.plan = plan;
+        }
+
+        public String getOriginalFileName() {
+            return "FileStorm.tar";
+        }
+
+        public String getMimeType() {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
+
+        public String getETag() {
+            return plan.getETag();
+        }
+
+        public long getLastModified() {
+            return plan.getLastModified();
+        }
+
+        public long getSizeBytes() {
+            return plan.getSizeBytes();
+        }
+
+        public Chunk getChunk() {
+            return null;
+        }
+
+        public int getBandwidthWeight() {
+            return BandwidthScheduler.BULK_DOWNLOAD_WEIGHT;
+        }
+
+        public void writeTo(OutputStream outputStream, long start, long length) {
+            try {
+                tarArchiveService.writeRange(plan, outputStream, start, length);
+            } catch (IOException e) {
+                throw new StorageException("Could not write the archive.", e);
+            }
+        }
+    }
+
+    /**
+     * A satisfiable byte range, both positions inclusive.
+     */
+    private static class ByteRange {
+        private final long start;
+        private final long end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long getLength() {
+            return end - start + 1;
+        }
+
+        String toContentRange(long fileLength) {
+            return String.format("bytes %1$d-%2$d/%3$d", start, end, fileLength);
+        }
+    }
+}
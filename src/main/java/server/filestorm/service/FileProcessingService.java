@@ -0,0 +1,217 @@
+package server.filestorm.service;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import javax.imageio.ImageIO;
+
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.exception.ProcessingException;
+import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Blob;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.ProcessingJob;
+
+/**
+ * The work done for an uploaded file after the upload response was sent. Each
+ * method is one stage of the processing pipeline run by ProcessingJobService.
+ * The files are read without a transaction; only the result is written in a
+ * short one, with the Chunk locked and checked again.
+ */
+@Service
+@Transactional
+public class FileProcessingService {
+
+    private static final int THUMBNAIL_SIZE = 256;
+
+    // ImageIO decodes the whole image into memory
+    private static final long MAX_THUMBNAIL_SOURCE_BYTES = 52428800L; // 50MB
+
+    private final ChunkService chunkService;
+
+    private final BlobService blobService;
+
+    private final Path thumbnailsLocation;
+
+    private final TransactionTemplate transactionTemplate;
+
+    public FileProcessingService(ChunkService chunkService, BlobService blobService,
+            ServerConfigurationProperties confProps, PlatformTransactionManager transactionManager) {
+        this.chunkService = chunkService;
+        this.blobService = blobService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // not a user ID, so it can not collide with a root user directory
+        this.thumbnailsLocation = Paths.get(confProps.getFileStorageLocation())
+                .resolve("thumbnails").normalize().toAbsolutePath();
+    }
+
+    /**
+     * Runs the stage for the Chunk. The file is read outside of any transaction -
+     * hashing a large file takes a while - and the result is stored in a short
+     * transaction, which locks the Chunk, so it does not race with a rename or a
+     * delete.
+     *
+     * @param stage   The stage to run.
+     * @param chunkId The ID of the uploaded Chunk.
+     * @return False if the Chunk was deleted in the meantime, true otherwise.
+     * @throws ProcessingException When the stage failed and should be retried.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public boolean process(ProcessingJob.Stage stage, Long chunkId) throws ProcessingException {
+        // a snapshot; waits for a rename or delete of the Chunk to commit
+        Chunk chunk = transactionTemplate.execute(status -> chunkService.lockChunkById(chunkId));
+        if (chunk == null) {
+            return false;
+        }
+        return switch (stage) {
+            case CHECKSUM -> computeChecksum(chunk);
+            case MIME_TYPE -> detectMimeType(chunk);
+            case THUMBNAIL -> generateThumbnail(chunk);
+        };
+    }
+
+    /**
+     * Hashes the file and moves it into the blob store. Until then the Chunk
+     * points to it's file in the staging directory.
+     */
+    private boolean computeChecksum(Chunk chunk) throws StorageException {
+        if (chunk.getBlob() != null) {
+            return true;
+        }
+        String stagedFilePath = chunk.getAbsoluteFilePath();
+        String hash = BlobService.computeHash(Path.of(stagedFilePath));
+        Boolean chunkExists = transactionTemplate.execute(status -> {
+            Chunk lockedChunk = chunkService.lockChunkById(chunk.getId());
+            if (lockedChunk == null) {
+                // the staged file was journaled with the Chunk
+                return false;
+            }
+            if (lockedChunk.getBlob() != null || !stagedFilePath.equals(lockedChunk.getAbsoluteFilePath())) {
+                // adopted by an earlier attempt
+                return true;
+            }
+            Blob blob = blobService.adopt(Path.of(stagedFilePath), hash, lockedChunk.getSizeBytes());
+            lockedChunk.setBlob(blob);
+            chunkService.saveChunk(lockedChunk);
+            return true;
+        });
+        return Boolean.TRUE.equals(chunkExists);
+    }
+
+    /**
+     * Detects the MIME type of files, for which the client did not send one. The
+     * MIME type given by the client is kept otherwise.
+     */
+    private boolean detectMimeType(Chunk chunk) throws ProcessingException {
+        if (!MediaType.APPLICATION_OCTET_STREAM_VALUE.equals(chunk.getMimeType())) {
+            return true;
+        }
+        String detectedMimeType;
+        try (InputStream inputStream = new BufferedInputStream(
+                Files.newInputStream(Path.of(chunk.getAbsoluteFilePath())))) {
+            // magic bytes first, the file extention second
+            detectedMimeType = URLConnection.guessContentTypeFromStream(inputStream);
+        } catch (Exception e) {
+            throw new ProcessingException("Could not read file for MIME type detection.", e);
+        }
+        String mimeType = detectedMimeType;
+        Boolean chunkExists = transactionTemplate.execute(status -> {
+            Chunk lockedChunk = chunkService.lockChunkById(chunk.getId());
+            if (lockedChunk == null) {
+                return false;
+            }
+            if (!MediaType.APPLICATION_OCTET_STREAM_VALUE.equals(lockedChunk.getMimeType())) {
+                return true;
+            }
+            // the name may have changed while the file was read
+            String newMimeType = mimeType != null ? mimeType
+                    : URLConnection.guessContentTypeFromName(lockedChunk.getOriginalFileName());
+            if (newMimeType != null) {
+                lockedChunk.setMimeType(newMimeType);
+                chunkService.saveChunk(lockedChunk);
+            }
+            return true;
+        });
+        return Boolean.TRUE.equals(chunkExists);
+    }
+
+    /**
+     * Writes a PNG thumbnail, at most 256px wide and high, for images ImageIO can
+     * read. Deleting the Chunk deletes the thumbnail after the commit, so a
+     * thumbnail written for a Chunk deleted in the meantime is removed here.
+     */
+    private boolean generateThumbnail(Chunk chunk) throws ProcessingException {
+        if (!chunk.getMimeType().startsWith("image/") || chunk.getSizeBytes() > MAX_THUMBNAIL_SOURCE_BYTES) {
+            return true;
+        }
+        Path thumbnailFile = getThumbnailPath(chunk);
+        try {
+            BufferedImage image = ImageIO.read(Path.of(chunk.getAbsoluteFilePath()).toFile());
+            if (image == null) {
+                // no reader for this format
+                return true;
+            }
+            double scale = Math.min(1.0,
+                    (double) THUMBNAIL_SIZE / Math.max(image.getWidth(), image.getHeight()));
+            int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = thumbnail.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(image, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+
+            Files.createDirectories(thumbnailFile.getParent());
+            Path temporaryFile = thumbnailFile.resolveSibling(thumbnailFile.getFileName() + ".tmp");
+            ImageIO.write(thumbnail, "png", temporaryFile.toFile());
+            Files.move(temporaryFile, thumbnailFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            throw new ProcessingException("Could not generate thumbnail.", e);
+        }
+
+        // locked, so a delete either committed before - and it's unlinker may have
+        // missed the thumbnail - or journals the thumbnail after this
+        Boolean chunkExists = transactionTemplate
+                .execute(status -> chunkService.lockChunkById(chunk.getId()) != null);
+        if (!Boolean.TRUE.equals(chunkExists)) {
+            try {
+                Files.deleteIfExists(thumbnailFile);
+            } catch (Exception e) {
+                throw new ProcessingException("Could not delete thumbnail of deleted file.", e);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public Path getThumbnailPath(Chunk chunk) {
+        return getThumbnailPath(chunk.getId());
+    }
+
+    public Path getThumbnailPath(Long chunkId) {
+        return this.thumbnailsLocation
+                .resolve(Long.toString(chunkId % 1000))
+                .resolve(chunkId + ".png");
+    }
+}
@@ -1,33 +1,54 @@
 package server.filestorm.service;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.tomcat.util.http.fileupload.IOUtils;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
+import jakarta.annotation.PreDestroy;
 import server.filestorm.config.ServerConfigurationProperties;
 import server.filestorm.exception.ConfigurationException;
 import server.filestorm.exception.FileManagementException;
 import server.filestorm.exception.ProcessingException;
 import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Blob;
 import server.filestorm.model.entity.Chunk;
 import server.filestorm.model.entity.Directory;
+import server.filestorm.model.entity.ProcessingJob;
 import server.filestorm.model.entity.User;
+import server.filestorm.model.repository.DeletionJournalRepository;
 import server.filestorm.model.type.FileUploadData;
+import server.filestorm.util.DirectBufferPool;
+import server.filestorm.util.FileTransferUtil;
 import server.filestorm.util.PathUtil;
 import server.filestorm.util.StringUtil;
 
@@ -41,20 +62,52 @@ public class FileSystemService {
 
     private final DirectoryService directoryService;
 
+    private final BlobService blobService;
+
+    private final ProcessingJobService processingJobService;
+
+    private final DeletionJournalRepository deletionJournalRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
     private final Path rootLocation;
 
-    private final String clientLocation;
+    private final Path uploadSessionsLocation;
+
+    private final boolean isSpoolOnStorageFileSystem;
+
+    // moves the files of batch uploads
+    private final ExecutorService batchExecutor;
+
+    // 4MB direct buffers for the uploads written from the request body - at most
+    // 64MB of direct memory; further concurrent uploads get 64KB heap buffers
+    private final DirectBufferPool bufferPool = new DirectBufferPool(4194304, 16, 65536);
+
+    // 256KB direct buffers for the downloads, which are not sent with sendfile -
+    // at most 8MB of direct memory
+    private final DirectBufferPool downloadBufferPool = new DirectBufferPool(262144, 32, 65536);
 
     public FileSystemService(ServerConfigurationProperties confProps, ChunkService chunkService,
-            DirectoryService directoryService, UserService userService) {
+            DirectoryService directoryService, UserService userService, BlobService blobService,
+            ProcessingJobService processingJobService, DeletionJournalRepository deletionJournalRepository,
+            MultipartProperties multipartProperties, PlatformTransactionManager transactionManager) {
         if (confProps.getFileStorageLocation().trim().length() == 0) {
             throw new ConfigurationException("File upload location can not be empty.");
         }
         this.rootLocation = Paths.get(confProps.getFileStorageLocation());
+        // not a user ID, so it can not collide with a root user directory
+        this.uploadSessionsLocation = this.rootLocation.resolve("upload_sessions").normalize().toAbsolutePath();
         this.chunkService = chunkService;
         this.directoryService = directoryService;
-        this.clientLocation = confProps.getClientLocation();
+        this.blobService = blobService;
+        this.processingJobService = processingJobService;
+        this.deletionJournalRepository = deletionJournalRepository;
         this.userService = userService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        String multipartLocation = multipartProperties.getLocation();
+        this.isSpoolOnStorageFileSystem = multipartLocation != null && !multipartLocation.isBlank()
+                && FileTransferUtil.isSameFileStore(Paths.get(multipartLocation), this.rootLocation);
+        this.batchExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
     }
 
     /**
@@ -77,110 +130,611 @@ public class FileSystemService {
                 throw new StorageException("Failed to store empty file.");
             }
 
-            // check file name is valid and available
-            String originalFileName = StringUtil.sanitizeFileName(file.getOriginalFilename());
-            while (directoryService.doesDirectoryIncludeChunk(targetDirectory, originalFileName)) {
-                originalFileName = StringUtil.appendUniqueCounter(originalFileName);
+            Chunk chunk = registerChunk(file.getOriginalFilename(), file.getSize(), file.getContentType(), user,
+                    targetDirectory);
+
+            // save file
+            Path stagingFile = blobService.newStagingFile();
+            try {
+                moveSpooledFile(file, stagingFile);
+                // the spooled file was moved, not streamed; it is hashed after the response
+                chunk = attachPendingContent(chunk, stagingFile);
+            } catch (Exception e) {
+                Files.deleteIfExists(stagingFile);
+                throw e;
             }
 
-            // check directory existence
-            boolean uploadDirExists = this.verifyExistance(Long.toString(user.getId()));
-            if (!uploadDirExists) {
-                throw new FileManagementException("The upload directory does not exist.");
+            // return Chunk
+            return chunk;
+
+        } catch (Exception e) {
+            throw new FileManagementException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Saves all given files into the same directory. The files are moved in
+     * parallel, while the bookkeeping is done once for the whole batch -
+     * the names are resolved together, the Chunks are saved with one saveAll and
+     * the directory is updated with a single counter delta. The storage space for
+     * all files must have been reserved by the caller.
+     * 
+     * @param files           The uploaded files.
+     * @param user            The user submitting the files.
+     * @param targetDirectory The directory under which the files are to be saved.
+     * @return The Chunks created for the files, in the order of the files.
+     * @throws FileManagementException When one of the files is empty or could not
+     *                                 be saved. No file of the batch is saved then.
+     */
+    public List<Chunk> storeBatch(List<MultipartFile> files, User user, Directory targetDirectory)
+            throws FileManagementException {
+        List<Path> stagingFiles = new ArrayList<>(files.size());
+        List<CompletableFuture<Void>> moves = new ArrayList<>(files.size());
+        try {
+            // check files are not empty
+            List<String> fileNames = new ArrayList<>(files.size());
+            for (MultipartFile file : files) {
+                if (file.isEmpty() || file.getOriginalFilename() == null) {
+                    throw new StorageException("Failed to store empty file.");
+                }
+                fileNames.add(StringUtil.sanitizeFileName(file.getOriginalFilename()));
             }
 
-            Chunk chunk = new Chunk();
-            chunk.setOwner(user);
-            chunk.setDirectory(targetDirectory);
-            chunk.setAbsoluteFilePath("tempVal");
-            chunk.setName("tempVal");
-            chunk.setOriginalFileName(originalFileName);
-            chunk.setSizeBytes(file.getSize());
-            chunk.setMimeType(file.getContentType());
+            // check file names are valid and available
+            List<String> originalFileNames = chunkService.resolveUniqueOriginalFileNames(targetDirectory, fileNames);
+
+            // move the files in parallel
+            for (MultipartFile file : files) {
+                Path stagingFile = blobService.newStagingFile();
+                stagingFiles.add(stagingFile);
+                moves.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        moveSpooledFile(file, stagingFile);
+                    } catch (IOException e) {
+                        throw new StorageException("Could not save file: " + file.getOriginalFilename(), e);
+                    }
+                }, this.batchExecutor));
+            }
 
-            // save chunk for it to recieve an ID
-            chunk = chunkService.saveChunk(chunk);
+            List<Chunk> chunks = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                MultipartFile file = files.get(i);
+                Chunk chunk = newChunk(originalFileNames.get(i), file.getSize(), file.getContentType(), user,
+                        targetDirectory);
+                chunk.setAbsoluteFilePath(stagingFiles.get(i).toString());
+                chunks.add(chunk);
+            }
+            for (CompletableFuture<Void> move : moves) {
+                joinMove(move);
+            }
 
-            String fileName = String.format("%1$s___%2$s", Long.toString(chunk.getId()), originalFileName);
-            chunk.setName(fileName);
-            chunk.setAbsoluteFilePath(
-                    getAbsolutePath(Long.toString(user.getId()), fileName).toString());
+            chunks = chunkService.saveChunks(chunks);
+            for (Chunk chunk : chunks) {
+                assignStoredFileName(chunk);
+                processingJobService.enqueue(chunk, ProcessingJob.Stage.CHECKSUM);
+            }
 
             // update directory
-            directoryService.incrementElementsCountByOne(targetDirectory);
+            directoryService.incrementElementsCount(targetDirectory, chunks.size());
 
-            // increase bytesInStorage for user
-            userService.increaseBytesInStorage(user, chunk.getSizeBytes());
+            return chunks;
+        } catch (Exception e) {
+            // files still being moved must not reappear after the cleanup
+            CompletableFuture.allOf(moves.toArray(new CompletableFuture<?>[0])).exceptionally(ex -> null).join();
+            for (Path stagingFile : stagingFiles) {
+                try {
+                    Files.deleteIfExists(stagingFile);
+                } catch (IOException ex) {
+                    // the file is left behind in the staging directory
+                }
+            }
+            throw new FileManagementException(e.getMessage(), e);
+        }
+    }
 
-            // build path to save file
-            Path destinationFile = getAbsolutePath(chunk);
+    private void joinMove(CompletableFuture<Void> move) throws StorageException {
+        try {
+            move.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof StorageException storageException) {
+                throw storageException;
+            }
+            throw new StorageException("Could not save file.", e.getCause());
+        }
+    }
 
-            // check if file with this name already exists
-            boolean fileExistsInDir = this.verifyExistance(destinationFile);
-            if (fileExistsInDir) {
-                throw new FileManagementException(
-                        "A file with this name exists in this directory.");
+    /**
+     * Moves the multipart file, spooled by the servlet container, to it's
+     * destination. When the spool directory and the storage are on the same file
+     * system, the container renames the spooled file (an atomic move). Otherwise
+     * the file is copied with FileChannel.transferTo.
+     * 
+     * @param file            The uploaded file.
+     * @param destinationFile The final location of the file.
+     * @throws IOException
+     */
+    private void moveSpooledFile(MultipartFile file, Path destinationFile) throws IOException {
+        if (this.isSpoolOnStorageFileSystem) {
+            // Tomcat renames the spooled file, if it is not held in memory
+            file.transferTo(destinationFile.toFile());
+            return;
+        }
+        try (InputStream inputStream = file.getInputStream()) {
+            long bytesCopied = FileTransferUtil.transfer(inputStream, destinationFile);
+            if (bytesCopied != file.getSize()) {
+                throw new StorageException("The uploaded file could not be copied completely.");
             }
+        }
+    }
 
-            // check file is not being saved in server root storage
-            if (destinationFile.equals(this.rootLocation.toAbsolutePath())) {
-                throw new StorageException("Can not save file outside of the predefined user-specific root directory.");
+    /**
+     * Saves the file, read directly from the request body, and assigns it the user
+     * as owner and the directory as the one containing the file. Unlike store, the
+     * bytes are not spooled to the multipart location first - they are written
+     * only once, straight into the storage, and hashed while being written.
+     * 
+     * No transaction is held while the body is received. The Chunk is registered
+     * and the directory updated in a short transaction once the file is written,
+     * so an upload does not keep a pooled connection or the rows of the directory
+     * and the file name for the whole transfer.
+     * 
+     * @param inputStream     The request body - the content of the file.
+     * @param fileName        The name of the file, as given by the client.
+     * @param sizeBytes       The size of the file, as declared by Content-Length.
+     * @param mimeType        The MIME type of the file, as given by the client.
+     * @param user            The user submitting the file.
+     * @param targetDirectory The directory under which the file is to be saved.
+     * @return The Chunk created for this file.
+     * @throws FileManagementException When the body does not match the declared
+     *                                 size or the file could not be written.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Chunk storeStream(InputStream inputStream, String fileName, Long sizeBytes, String mimeType, User user,
+            Directory targetDirectory) throws FileManagementException {
+        Path destinationFile = null;
+        try {
+            // check file is not empty
+            if (sizeBytes == null || sizeBytes <= 0 || fileName == null) {
+                throw new StorageException("Failed to store empty file.");
             }
 
+            destinationFile = blobService.newStagingFile();
+
             // save file
-            try (InputStream inputStream = file.getInputStream();
-                    OutputStream outputStream = Files.newOutputStream(destinationFile, StandardOpenOption.CREATE);) {
-                byte[] buffer = new byte[8192]; // 8KB buffer
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
+            MessageDigest digest = BlobService.newDigest();
+            long bytesWritten = 0;
+            ByteBuffer buffer = this.bufferPool.acquire();
+            try (ReadableByteChannel source = Channels.newChannel(inputStream);
+                    FileChannel fileChannel = FileChannel.open(destinationFile, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE)) {
+                boolean isSourceOpen = true;
+                while (isSourceOpen) {
+                    isSourceOpen = FileTransferUtil.fill(source, buffer);
+                    if (bytesWritten + buffer.position() > sizeBytes) {
+                        throw new StorageException("The uploaded bytes exceed the declared file size.");
+                    }
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        bytesWritten += fileChannel.write(buffer);
+                    }
+                    buffer.clear();
                 }
+            } finally {
+                this.bufferPool.release(buffer);
+            }
+            if (bytesWritten != sizeBytes) {
+                throw new StorageException("The upload is incomplete.");
             }
 
-            // return Chunk
-            return chunk;
+            Path writtenFile = destinationFile;
+            String hash = BlobService.toHash(digest);
+            return transactionTemplate.execute(status -> {
+                Chunk chunk = registerChunk(fileName, sizeBytes, mimeType, user, targetDirectory);
+                chunk = attachContent(chunk, writtenFile, hash);
+                processingJobService.enqueue(chunk, ProcessingJob.Stage.MIME_TYPE);
+                return chunk;
+            });
+        } catch (Exception e) {
+            // no Chunk was committed for the file, so the file must go too
+            if (destinationFile != null) {
+                try {
+                    Files.deleteIfExists(destinationFile);
+                } catch (IOException ioe) {
+                    e.addSuppressed(ioe);
+                }
+            }
+            throw new FileManagementException(e.getMessage(), e);
+        }
+    }
 
+    /**
+     * Saves a fully received partial file (of an upload session) as a new file of
+     * the user. The partial file is moved into the staging directory, so no bytes
+     * are copied.
+     * 
+     * @param partialFile      The path of the completed partial file.
+     * @param originalFileName The name of the file, as given by the client.
+     * @param sizeBytes        The size of the file.
+     * @param mimeType         The MIME type of the file, as given by the client.
+     * @param user             The user submitting the file.
+     * @param targetDirectory  The directory under which the file is to be saved.
+     * @return The Chunk created for this file.
+     * @throws FileManagementException
+     */
+    public Chunk storePartialFile(Path partialFile, String originalFileName, Long sizeBytes, String mimeType,
+            User user, Directory targetDirectory) throws FileManagementException {
+        try {
+            if (!verifyExistance(partialFile) || Files.size(partialFile) != sizeBytes) {
+                throw new StorageException("The uploaded file is incomplete.");
+            }
+
+            Chunk chunk = registerChunk(originalFileName, sizeBytes, mimeType, user, targetDirectory);
+
+            // partial files live under rootLocation, so this is a rename on the same file system
+            Path stagingFile = blobService.newStagingFile();
+            Files.move(partialFile, stagingFile, StandardCopyOption.ATOMIC_MOVE);
+            return attachPendingContent(chunk, stagingFile);
         } catch (Exception e) {
             throw new FileManagementException(e.getMessage(), e);
         }
     }
 
-    public void streamFileToClient(Chunk chunk, BufferedOutputStream bufferedOutputStream) {
+    /**
+     * Creates the Chunk for a new file and does the bookkeeping for it - resolves
+     * the file name and updates the directory. The storage space must have been
+     * reserved with UserService.reserveStorageSpace and the content of the file
+     * must be attached with attachContent by the caller.
+     * 
+     * @param fileName        The name of the file, as given by the client.
+     * @param sizeBytes       The size of the file.
+     * @param mimeType        The MIME type of the file, as given by the client.
+     * @param user            The user submitting the file.
+     * @param targetDirectory The directory under which the file is to be saved.
+     * @return The saved Chunk, with it's final name.
+     */
+    private Chunk registerChunk(String fileName, Long sizeBytes, String mimeType, User user,
+            Directory targetDirectory) throws FileManagementException, StorageException, ProcessingException {
+        // check file name is valid and available
+        String originalFileName = chunkService.resolveUniqueOriginalFileName(targetDirectory,
+                StringUtil.sanitizeFileName(fileName));
+
+        Chunk chunk = newChunk(originalFileName, sizeBytes, mimeType, user, targetDirectory);
+
+        // save chunk for it to recieve an ID
+        chunk = chunkService.saveChunk(chunk);
+        assignStoredFileName(chunk);
+
+        // update directory
+        directoryService.incrementElementsCountByOne(targetDirectory);
+
+        return chunk;
+    }
+
+    private Chunk newChunk(String originalFileName, Long sizeBytes, String mimeType, User user,
+            Directory targetDirectory) {
+        Chunk chunk = new Chunk();
+        chunk.setOwner(user);
+        chunk.setDirectory(targetDirectory);
+        chunk.setAbsoluteFilePath("tempVal");
+        chunk.setName("tempVal");
+        chunk.setOriginalFileName(originalFileName);
+        chunk.setSizeBytes(sizeBytes);
+        chunk.setMimeType(mimeType == null ? MediaType.APPLICATION_OCTET_STREAM_VALUE : mimeType);
+        return chunk;
+    }
+
+    // the name is unique, as it starts with the ID of the saved Chunk
+    private void assignStoredFileName(Chunk chunk) {
+        chunk.setName(String.format("%1$s___%2$s", Long.toString(chunk.getId()), chunk.getOriginalFileName()));
+    }
+
+    /**
+     * Points the Chunk to the Blob holding the given file. Identical content is
+     * stored only once - if a Blob with this hash exists, the file is dropped.
+     * 
+     * @param chunk The Chunk created by registerChunk.
+     * @param file  The file with the content of the Chunk, on the same file system
+     *              as the storage root.
+     * @param hash  The SHA-256 of the file.
+     * @return The updated Chunk.
+     */
+    private Chunk attachContent(Chunk chunk, Path file, String hash) throws StorageException {
+        Blob blob = blobService.adopt(file, hash, chunk.getSizeBytes());
+        chunk.setBlob(blob);
+        return chunkService.saveChunk(chunk);
+    }
+
+    /**
+     * Points the Chunk to the file in the staging directory and enqueues the
+     * processing of the file. The CHECKSUM stage moves it into the blob store
+     * later, so the upload does not wait for the file to be hashed.
+     * 
+     * @param chunk       The Chunk created by registerChunk.
+     * @param stagingFile The file with the content of the Chunk.
+     * @return The updated Chunk.
+     */
+    private Chunk attachPendingContent(Chunk chunk, Path stagingFile) {
+        chunk.setAbsoluteFilePath(stagingFile.toString());
+        chunk = chunkService.saveChunk(chunk);
+        processingJobService.enqueue(chunk, ProcessingJob.Stage.CHECKSUM);
+        return chunk;
+    }
+
+    /**
+     * Creates a new, empty partial file for the upload session with the given ID.
+     * 
+     * @param uploadSessionId The ID of the upload session.
+     * @return The absolute path of the partial file.
+     * @throws StorageException When the file could not be created.
+     */
+    public Path createPartialFile(Long uploadSessionId) throws StorageException {
         try {
-            Path path = this.getAbsolutePath(chunk);
-            boolean isValidFile = this.verifyExistance(path);
-            if (!isValidFile) {
-                throw new StorageException("File could not be accessed.");
+            Path partialFile = this.uploadSessionsLocation
+                    .resolve(String.format("%1$d.part", uploadSessionId))
+                    .normalize().toAbsolutePath();
+            Files.createDirectories(this.uploadSessionsLocation);
+            Files.deleteIfExists(partialFile);
+            return Files.createFile(partialFile);
+        } catch (Exception e) {
+            throw new StorageException("Could not create the upload file.", e);
+        }
+    }
+
+    /**
+     * Writes the bytes of the inputStream into the partial file, starting at the
+     * given offset. Anything after the offset, which was not acknowledged, is
+     * discarded first. If the client drops the connection the bytes, which were
+     * already received, are kept so the upload can be resumed from there.
+     * 
+     * @param partialFile The path of the partial file.
+     * @param offset      The position in the file at which to start writing.
+     * @param inputStream The bytes to write.
+     * @param maxBytes    The maximum number of bytes which may be written.
+     * @return The new size of the partial file - the offset from which the upload
+     *         is to be continued.
+     * @throws StorageException When more than maxBytes are sent or the file could
+     *                          not be written.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public long writeToPartialFile(Path partialFile, long offset, InputStream inputStream, long maxBytes)
+            throws StorageException {
+        try (FileChannel fileChannel = FileChannel.open(partialFile, StandardOpenOption.WRITE)) {
+            return writeToPartialFile(fileChannel, offset, inputStream, maxBytes);
+        } catch (StorageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new StorageException("Could not write to the upload file.", e);
+        }
+    }
+
+    /**
+     * Like writeToPartialFile(Path, ...), but writes into an already opened - e.g.
+     * locked - channel. The channel is left open.
+     * 
+     * @param fileChannel The channel of the partial file, opened for writing.
+     * @param offset      The position in the file at which to start writing.
+     * @param inputStream The bytes to write.
+     * @param maxBytes    The maximum number of bytes which may be written.
+     * @return The new size of the partial file.
+     * @throws StorageException When more than maxBytes are sent or the file could
+     *                          not be written.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public long writeToPartialFile(FileChannel fileChannel, long offset, InputStream inputStream, long maxBytes)
+            throws StorageException {
+        ByteBuffer buffer = this.bufferPool.acquire();
+        try (ReadableByteChannel source = Channels.newChannel(inputStream)) {
+            fileChannel.truncate(offset);
+
+            long position = offset;
+            long limit = offset + maxBytes;
+            boolean isSourceOpen = true;
+            while (isSourceOpen) {
+                try {
+                    isSourceOpen = FileTransferUtil.fill(source, buffer);
+                } catch (IOException e) {
+                    // connection dropped; keep what has been received so far
+                    isSourceOpen = false;
+                }
+                if (position + buffer.position() > limit) {
+                    throw new StorageException("The uploaded bytes exceed the declared file size.");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+                buffer.clear();
             }
-            File file = path.toFile();
 
-            try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                boolean isChunkSizeOverTwoGB = chunk.getSizeBytes() >= Long.valueOf("2147483648") ? true : false;
-                if (isChunkSizeOverTwoGB) {
-                    IOUtils.copyLarge(fileInputStream, bufferedOutputStream);
-                } else {
-                    IOUtils.copy(fileInputStream, bufferedOutputStream);
+            // only acknowledge bytes which are durably on disk
+            fileChannel.force(false);
+            return position;
+        } catch (StorageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new StorageException("Could not write to the upload file.", e);
+        } finally {
+            this.bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Creates an empty file for one part of a multi-part upload. Every upload of a
+     * part gets it's own file, so a part which is sent again does not overwrite the
+     * one already acknowledged until it is completely received.
+     * 
+     * @param uploadSessionId The ID of the upload session.
+     * @param partNumber      The number of the part.
+     * @return The path of the new part file.
+     * @throws StorageException When the file could not be created.
+     */
+    public Path createPartFile(Long uploadSessionId, Integer partNumber) throws StorageException {
+        try {
+            Path partFile = this.uploadSessionsLocation
+                    .resolve(String.format("%1$d.part.%2$d.%3$s", uploadSessionId, partNumber, UUID.randomUUID()))
+                    .normalize().toAbsolutePath();
+            Files.createDirectories(this.uploadSessionsLocation);
+            return Files.createFile(partFile);
+        } catch (Exception e) {
+            throw new StorageException("Could not create the upload file.", e);
+        }
+    }
+
+    /**
+     * Concatenates the part files, in the given order, into the partial file of
+     * the session. The bytes are copied with FileChannel.transferTo, so they do
+     * not pass through the JVM heap.
+     * 
+     * @param partFiles   The part files, ordered by their part number.
+     * @param partialFile The partial file of the session. It's content is
+     *                    replaced.
+     * @return The size of the assembled file.
+     * @throws StorageException When a part could not be read or the partial file
+     *                          could not be written.
+     */
+    public long assembleParts(List<Path> partFiles, Path partialFile) throws StorageException {
+        try (FileChannel destinationChannel = FileChannel.open(partialFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path partFile : partFiles) {
+                try (FileChannel sourceChannel = FileChannel.open(partFile, StandardOpenOption.READ)) {
+                    FileTransferUtil.transfer(sourceChannel, destinationChannel);
                 }
             }
+            destinationChannel.force(false);
+            return destinationChannel.size();
         } catch (Exception e) {
-            throw new StorageException("Could not read file: " + chunk.getName(), e);
+            throw new StorageException("Could not assemble the uploaded parts.", e);
         }
     }
 
-    public void streamFileStormIndexHtmlToClient(BufferedOutputStream bufferedOutputStream) {
+    /**
+     * Opens the partial file of an upload session and takes an exclusive lock on
+     * it, which is held until the returned channel is closed. It keeps two
+     * requests from appending to the same session at once, without holding a DB
+     * lock while the request body is received. The lock is released by the OS
+     * when the process dies, so a crash does not leave the session locked.
+     * 
+     * @param partialFile The path of the partial file.
+     * @return The locked channel, opened for writing.
+     * @throws StorageException When the file is locked by another request or could
+     *                          not be opened.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public FileChannel lockPartialFile(Path partialFile) throws StorageException {
+        FileChannel fileChannel = null;
         try {
-            Path path = Path.of(this.clientLocation);
-            boolean isValidFile = this.verifyExistance(path);
-            if (!isValidFile) {
-                throw new StorageException("File could not be accessed.");
+            fileChannel = FileChannel.open(partialFile, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = fileChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // held by another thread of this process
+                lock = null;
+            }
+            if (lock == null) {
+                throw new StorageException("Another upload into this session is in progress.");
             }
-            File fileStormApp = path.toFile();
+            return fileChannel;
+        } catch (Exception e) {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            if (e instanceof StorageException storageException) {
+                throw storageException;
+            }
+            throw new StorageException("Could not open the upload file.", e);
+        }
+    }
+
+    public void deletePartialFile(Path partialFile) throws StorageException {
+        try {
+            Files.deleteIfExists(partialFile);
+        } catch (Exception e) {
+            throw new StorageException("Could not delete the upload file.", e);
+        }
+    }
 
-            try (FileInputStream fileInputStream = new FileInputStream(fileStormApp)) {
-                IOUtils.copy(fileInputStream, bufferedOutputStream);
+    /**
+     * Returns the path of the file content, e.g. to let the servlet container send
+     * it with sendfile.
+     * 
+     * @param chunk The file.
+     * @return The absolute path of an existing file.
+     * @throws StorageException When the file does not exist.
+     */
+    public Path getReadableFilePath(Chunk chunk) throws StorageException {
+        Path path = this.getAbsolutePath(chunk);
+        if (!this.verifyExistance(path)) {
+            throw new StorageException("File could not be accessed.");
+        }
+        return path;
+    }
+
+    /**
+     * Writes the whole file to the outputStream.
+     * 
+     * @param chunk        The file to read from.
+     * @param outputStream The response body.
+     */
+    public void streamFileToClient(Chunk chunk, OutputStream outputStream) {
+        this.streamFileRangeToClient(chunk, outputStream, 0, chunk.getSizeBytes());
+    }
+
+    /**
+     * Writes a range of the file to the outputStream. This is not zero-copy - the
+     * file is read into a pooled 256KB direct buffer. When the outputStream is the
+     * response of Tomcat, the direct buffer is handed to it as it is and written
+     * to the socket, or encrypted for TLS, without another copy onto the heap.
+     * Other streams - e.g. a throttled response - get the bytes through a heap
+     * array. Responses, which the servlet container can send with sendfile, use
+     * getReadableFilePath instead.
+     * 
+     * @param chunk        The file to read from.
+     * @param outputStream The response body.
+     * @param start        The position of the first byte to write.
+     * @param length       The number of bytes to write.
+     */
+    public void streamFileRangeToClient(Chunk chunk, OutputStream outputStream, long start, long length) {
+        ByteBuffer buffer = this.downloadBufferPool.acquire();
+        try (FileChannel fileChannel = FileChannel.open(this.getAbsolutePath(chunk), StandardOpenOption.READ)) {
+            byte[] heapArray = null;
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining()) {
+                    if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                        throw new StorageException("The file is shorter than expected.");
+                    }
+                }
+                buffer.flip();
+                position += buffer.remaining();
+
+                if (outputStream instanceof CoyoteOutputStream coyoteOutputStream) {
+                    coyoteOutputStream.write(buffer);
+                } else if (buffer.hasArray()) {
+                    outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+                } else {
+                    if (heapArray == null) {
+                        heapArray = new byte[buffer.capacity()];
+                    }
+                    int count = buffer.remaining();
+                    buffer.get(heapArray, 0, count);
+                    outputStream.write(heapArray, 0, count);
+                }
             }
+            outputStream.flush();
+        } catch (StorageException e) {
+            throw e;
         } catch (Exception e) {
-            throw new StorageException("Could not read the FileStorm app file.", e);
+            throw new StorageException("Could not read file: " + chunk.getName(), e);
+        } finally {
+            this.downloadBufferPool.release(buffer);
         }
     }
 
@@ -213,73 +767,37 @@ public class FileSystemService {
         return newDir;
     }
 
-    /**
-     * Deletes all given directories from DB and then all chunks from FS and DB.
-     * 
-     * @param directories Directories to delete.
-     * @param chunks      Chunks to delete.
-     * @param owner       The user owner of the directories and chunks.
-     */
-    public void deleteDirectoriesAndFiles(
-            ArrayList<Directory> directories,
-            ArrayList<Chunk> chunks,
-            User owner) {
-        for (Chunk c : chunks) {
-            if (c.getOwner().getId() != owner.getId()) {
-                continue;
-            }
-            deleteFileFromFileSystem(c);
-
-            Directory parenDirectory = c.getDirectory();
-            parenDirectory.removeChunk(c);
-            directoryService.decrementElementsCountByOne(parenDirectory);
-
-            userService.decreaseBytesInStorage(owner, c.getSizeBytes());
-            chunkService.delete(c);
+    public void deleteFile(Chunk chunk, User user) throws FileManagementException {
+        // The checksum stage holds this lock while it moves the file into the blob
+        // store, so the content is read once it has committed - not from a stale
+        // staging path and without missing the Blob it just created.
+        Chunk lockedChunk = chunkService.lockChunkById(chunk.getId());
+        if (lockedChunk == null) {
+            throw new FileManagementException("A file with this ID was not found.");
         }
-        for (Directory d : directories) {
-            if (d.getOwner().getId() != owner.getId()) {
-                continue;
-            }
-            d.getParentDirectory().ifPresent((parentDirectory) -> {
-                parentDirectory.removeSubdirectory(d);
-                directoryService.decrementElementsCountByOne(parentDirectory);
-            });
-            directoryService.delete(d);
-        }
-    }
+        chunkService.delete(lockedChunk);
+        deleteContent(lockedChunk);
 
-    public void deleteFile(Chunk chunk, User user) {
-        chunkService.delete(chunk);
-        deleteFileFromFileSystem(chunk);
-
-        Directory parenDirectory = chunk.getDirectory();
-        parenDirectory.removeChunk(chunk);
+        Directory parenDirectory = lockedChunk.getDirectory();
+        parenDirectory.removeChunk(lockedChunk);
         directoryService.decrementElementsCountByOne(parenDirectory);
 
-        userService.decreaseBytesInStorage(user, chunk.getSizeBytes());
+        userService.decreaseBytesInStorage(user, lockedChunk.getSizeBytes());
     }
 
     /**
-     * Deletes the file referenced in the chunk.
+     * Releases the content of the chunk. Blobs are deleted once the last Chunk
+     * referencing them is gone; the thumbnail and files without a Blob - not yet
+     * hashed or uploaded before the blob store existed - are journaled for the
+     * unlinker of DeletionService, like the ones of a bulk delete.
      * 
-     * @param chunk The chunk referencing the file, which is to be deleted.
-     * @return true if the file was deleted successfully, false otherwise.
-     * @throws FileManagementException When the path is not valid or an unexpected
-     *                                 exeption occurs.
+     * @param chunk The locked chunk, which is being deleted.
      */
-    private Boolean deleteFileFromFileSystem(Chunk chunk)
-            throws FileManagementException, ProcessingException {
-        try {
-            Path absolutePath = getAbsolutePath(chunk);
-            boolean isValid = verifyExistance(absolutePath);
-            if (!isValid) {
-                throw new FileManagementException("Directory path is invalid: " + absolutePath.toString());
-            }
-            File targetFile = absolutePath.toFile();
-            return targetFile.delete();
-        } catch (Exception e) {
-            throw new FileManagementException("A problem occured while deleting: " + chunk.getName());
+    private void deleteContent(Chunk chunk) {
+        deletionJournalRepository.journalFile(chunk.getId(), null,
+                chunk.getBlob() == null ? chunk.getAbsoluteFilePath() : null);
+        if (chunk.getBlob() != null) {
+            blobService.release(chunk.getBlob());
         }
     }
 
@@ -349,65 +867,8 @@ public class FileSystemService {
         return (file.exists() && file.canRead() && file.canWrite());
     }
 
-    public void tarChunks(TarArchiveOutputStream tarOutputStream, Chunk[] chunks, String containingDirPathInTar)
-            throws IOException {
-        for (Chunk chunk : chunks) {
-            File file = getAbsolutePath(chunk).toFile();
-            try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                TarArchiveEntry tarEntity = new TarArchiveEntry(
-                        file,
-                        (containingDirPathInTar == null ? "" : containingDirPathInTar) + chunk.getOriginalFileName());
-
-                tarOutputStream.putArchiveEntry(tarEntity);
-
-                byte[] bytes = new byte[2048];
-                Integer bytesCount;
-                while ((bytesCount = fileInputStream.read(bytes)) != -1) {
-                    tarOutputStream.write(bytes, 0, bytesCount);
-                }
-                tarOutputStream.closeArchiveEntry();
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw e;
-            }
-        }
-    }
-
-    public void tarDirectory(TarArchiveOutputStream tarOutputStream, Directory directory,
-            String containingDirPathInTar)
-            throws IOException {
-        try {
-            // cteate new empty directory in the tar file
-            String dirPathInTar = (containingDirPathInTar == null ? "" : containingDirPathInTar) + directory.getName()
-                    + "/";
-            TarArchiveEntry tarEntry = new TarArchiveEntry(dirPathInTar);
-            tarEntry.setMode(0755);
-            tarOutputStream.putArchiveEntry(tarEntry);
-            tarOutputStream.closeArchiveEntry();
-
-            Chunk[] chunks = directory.getChunks().toArray(new Chunk[0]);
-            tarChunks(tarOutputStream, chunks, dirPathInTar);
-
-            Directory[] subdirectories = directory.getSubdirectories().toArray(new Directory[0]);
-            for (Directory subdirectory : subdirectories) {
-                tarDirectory(tarOutputStream, subdirectory, dirPathInTar);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw e;
-        }
-    }
-    
-    public void tarEtities(TarArchiveOutputStream tarOutputStream, Chunk[] chunks, Directory[] directories)
-            throws IOException {
-        if (chunks != null) {
-            tarChunks(tarOutputStream, chunks, null);
-        }
-        if (directories != null) {
-            for (Directory directory : directories) {
-                tarDirectory(tarOutputStream, directory, null);
-            }
-        }
+    @PreDestroy
+    public void shutdown() {
+        batchExecutor.shutdownNow();
     }
 }
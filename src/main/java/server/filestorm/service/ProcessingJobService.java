@@ -0,0 +1,284 @@
+package server.filestorm.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PreDestroy;
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.ProcessingJob;
+import server.filestorm.model.repository.ProcessingJobRepository;
+
+/**
+ * Durable queue for the post-upload processing of files. Uploads only enqueue
+ * the first stage in their own transaction; a dispatcher claims pending jobs
+ * from the processing_jobs table and hands them to a bounded worker pool per
+ * stage. A finished stage enqueues the next one, so the work survives
+ * restarts at stage granularity. Claimed jobs hold a lease, which is extended
+ * while they are queued or running; jobs of a stopped or stuck server are
+ * requeued once their lease expired.
+ */
+@Service
+@Transactional
+public class ProcessingJobService {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final long RETRY_DELAY_MILLIS = 60000; // 1 minute, times the attempts
+
+    private static final long LEASE_MILLIS = 300000; // 5 minutes, extended every minute
+
+    private final ProcessingJobRepository processingJobRepository;
+
+    private final FileProcessingService fileProcessingService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Map<ProcessingJob.Stage, StageWorkers> stageWorkers = new EnumMap<>(ProcessingJob.Stage.class);
+
+    // claimed by this server, queued or running
+    private final Set<Long> claimedJobIds = ConcurrentHashMap.newKeySet();
+
+    Logger logger = LoggerFactory.getLogger(ProcessingJobService.class);
+
+    public ProcessingJobService(ProcessingJobRepository processingJobRepository,
+            FileProcessingService fileProcessingService, PlatformTransactionManager transactionManager,
+            ServerConfigurationProperties confProps) {
+        this.processingJobRepository = processingJobRepository;
+        this.fileProcessingService = fileProcessingService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        int threads = confProps.getProcessingThreadsPerStage();
+        for (ProcessingJob.Stage stage : ProcessingJob.Stage.values()) {
+            this.stageWorkers.put(stage, new StageWorkers(stage, threads));
+        }
+    }
+
+    /**
+     * Enqueues the stage for the Chunk. Joins the transaction of the caller, so
+     * the job is only persisted together with the uploaded Chunk.
+     *
+     * @param chunk The uploaded Chunk.
+     * @param stage The first stage to run for it.
+     */
+    public void enqueue(Chunk chunk, ProcessingJob.Stage stage) {
+        enqueue(chunk.getId(), stage);
+    }
+
+    private void enqueue(Long chunkId, ProcessingJob.Stage stage) {
+        ProcessingJob job = new ProcessingJob();
+        job.setChunkId(chunkId);
+        job.setStage(stage);
+        processingJobRepository.save(job);
+    }
+
+    /**
+     * Jobs, whose lease expired, are picked up again - their server stopped or
+     * can not reach the database any more. Jobs another server is working on
+     * are left alone.
+     */
+    @Scheduled(fixedDelay = 60000, initialDelay = 5000) // every minute
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void requeueExpiredJobs() {
+        Integer requeued = transactionTemplate.execute(status -> processingJobRepository.requeueExpiredJobs(
+                ProcessingJob.Status.RUNNING, ProcessingJob.Status.PENDING, new Date().getTime()));
+        if (requeued != null && requeued > 0) {
+            logger.info("Requeued {} interrupted processing jobs.", requeued);
+        }
+    }
+
+    /**
+     * Extends the lease of the jobs claimed by this server, however long they
+     * wait in the queue or take to run.
+     */
+    @Scheduled(fixedDelay = 60000, initialDelay = 60000) // every minute
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void extendLeases() {
+        if (claimedJobIds.isEmpty()) {
+            return;
+        }
+        List<Long> jobIds = new ArrayList<>(claimedJobIds);
+        transactionTemplate.executeWithoutResult(status -> processingJobRepository.extendLeases(jobIds,
+                ProcessingJob.Status.RUNNING, new Date().getTime() + LEASE_MILLIS));
+    }
+
+    /**
+     * Claims as many pending jobs per stage as the workers of the stage can
+     * queue, so the in-memory queues stay bounded and everything else waits in
+     * the table.
+     */
+    @Scheduled(fixedDelay = 1000, initialDelay = 10000)
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void dispatchJobs() {
+        for (StageWorkers workers : stageWorkers.values()) {
+            int freeCapacity = workers.getFreeCapacity();
+            if (freeCapacity == 0) {
+                continue;
+            }
+            List<Long> jobIds = transactionTemplate.execute(status -> {
+                long now = new Date().getTime();
+                List<ProcessingJob> jobs = processingJobRepository.lockPendingJobs(
+                        workers.stage.name(), now, freeCapacity);
+                List<Long> ids = new ArrayList<>(jobs.size());
+                for (ProcessingJob job : jobs) {
+                    job.setStatus(ProcessingJob.Status.RUNNING);
+                    job.setLeaseExpiresAt(now + LEASE_MILLIS);
+                    ids.add(job.getId());
+                }
+                return ids;
+            });
+            for (Long jobId : jobIds) {
+                claimedJobIds.add(jobId);
+                workers.execute(() -> runJob(jobId, workers));
+            }
+        }
+    }
+
+    /**
+     * Runs the job without a transaction of it's own - the stage opens short
+     * ones, where it needs them - and completes it in a short transaction.
+     */
+    private void runJob(Long jobId, StageWorkers workers) {
+        long start = System.nanoTime();
+        try {
+            ProcessingJob job = transactionTemplate
+                    .execute(status -> processingJobRepository.findById(jobId).orElse(null));
+            if (job == null) {
+                return;
+            }
+            boolean chunkExists = fileProcessingService.process(job.getStage(), job.getChunkId());
+            transactionTemplate.executeWithoutResult(status -> {
+                processingJobRepository.deleteById(jobId);
+                ProcessingJob.Stage nextStage = job.getStage().next();
+                if (chunkExists && nextStage != null) {
+                    enqueue(job.getChunkId(), nextStage);
+                }
+            });
+            workers.recordSuccess(System.nanoTime() - start);
+        } catch (Exception e) {
+            workers.recordFailure();
+            logger.warn("Processing job {} failed: {}", jobId, e.getMessage());
+            transactionTemplate.executeWithoutResult(status -> markFailed(jobId, e));
+        } finally {
+            claimedJobIds.remove(jobId);
+        }
+    }
+
+    private void markFailed(Long jobId, Exception e) {
+        ProcessingJob job = processingJobRepository.findById(jobId).orElse(null);
+        if (job == null) {
+            return;
+        }
+        int attempts = job.getAttempts() + 1;
+        job.setAttempts(attempts);
+        String message = String.valueOf(e.getMessage());
+        job.setLastError(message.length() > 2500 ? message.substring(0, 2500) : message);
+        job.setLeaseExpiresAt(null);
+        if (attempts >= MAX_ATTEMPTS) {
+            job.setStatus(ProcessingJob.Status.FAILED);
+        } else {
+            job.setStatus(ProcessingJob.Status.PENDING);
+            job.setAvailableAt(new Date().getTime() + RETRY_DELAY_MILLIS * attempts);
+        }
+        processingJobRepository.save(job);
+    }
+
+    /**
+     * Logs throughput and queue depth of every stage since the last call.
+     */
+    @Scheduled(fixedDelay = 60000, initialDelay = 60000) // every minute
+    public void logMetrics() {
+        Map<ProcessingJob.Stage, Long> pendingJobs = new EnumMap<>(ProcessingJob.Stage.class);
+        for (Object[] row : processingJobRepository.countJobsPerStage(ProcessingJob.Status.PENDING)) {
+            pendingJobs.put((ProcessingJob.Stage) row[0], (Long) row[1]);
+        }
+        Map<ProcessingJob.Stage, Long> failedJobs = new EnumMap<>(ProcessingJob.Stage.class);
+        for (Object[] row : processingJobRepository.countJobsPerStage(ProcessingJob.Status.FAILED)) {
+            failedJobs.put((ProcessingJob.Stage) row[0], (Long) row[1]);
+        }
+        for (StageWorkers workers : stageWorkers.values()) {
+            long processed = workers.processed.getAndSet(0);
+            long failures = workers.failures.getAndSet(0);
+            long nanos = workers.processingNanos.getAndSet(0);
+            logger.info(
+                    "Processing stage {}: {} done, {} failed in the last minute, avg {} ms | pending {}, queued {}, active {}, failed permanently {}",
+                    workers.stage,
+                    processed,
+                    failures,
+                    processed == 0 ? 0 : nanos / processed / 1000000,
+                    pendingJobs.getOrDefault(workers.stage, 0L),
+                    workers.executor.getQueue().size(),
+                    workers.executor.getActiveCount(),
+                    failedJobs.getOrDefault(workers.stage, 0L));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (StageWorkers workers : stageWorkers.values()) {
+            // the leases of queued and running jobs expire, then they are requeued
+            workers.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The worker pool of one stage together with it's counters.
+     */
+    private static class StageWorkers {
+        private final ProcessingJob.Stage stage;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong processingNanos = new AtomicLong();
+
+        StageWorkers(ProcessingJob.Stage stage, int threads) {
+            this.stage = stage;
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads * 4),
+                    runnable -> {
+                        Thread thread = new Thread(runnable,
+                                "processing-" + stage.name().toLowerCase() + "-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+
+        int getFreeCapacity() {
+            return executor.getQueue().remainingCapacity();
+        }
+
+        void execute(Runnable runnable) {
+            executor.execute(runnable);
+        }
+
+        void recordSuccess(long nanos) {
+            processed.incrementAndGet();
+            processingNanos.addAndGet(nanos);
+        }
+
+        void recordFailure() {
+            failures.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package server.filestorm.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Chunk;
+
+/**
+ * Keeps the content of hot public files in direct (off-heap) buffers, so
+ * popular share links are served from memory without a database query or a
+ * read from the storage volume.
+ * 
+ * The cache is bounded by the total bytes held and evicts the least recently
+ * used files. A file is admitted on it's second download within the tracked
+ * window, so one-off downloads do not displace hot files. Entries are
+ * invalidated on every change of their chunk - rename, share option, delete or
+ * processing - and once more after the changing transaction completed, so a
+ * concurrent download can not re-admit the old state.
+ */
+@Service
+public class PublicFileCache {
+
+    // IDs of files downloaded once, which are admitted on their next download
+    private static final int MAX_TRACKED_CANDIDATES = 10000;
+
+    // IDs of recently invalidated files, against which running admissions are
+    // checked
+    private static final int MAX_TRACKED_INVALIDATIONS = 10000;
+
+    private final long maxCacheBytes;
+
+    private final long maxFileBytes;
+
+    // access ordered - iteration starts at the least recently used entry
+    private final LinkedHashMap<Long, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<Long, Boolean> candidates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_TRACKED_CANDIDATES;
+        }
+    };
+
+    // the generation of the last invalidation of each chunk, in insertion order
+    private final LinkedHashMap<Long, Long> invalidations = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            if (size() > MAX_TRACKED_INVALIDATIONS) {
+                forgottenGeneration = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // the newest generation, which is no longer tracked per chunk
+    private long forgottenGeneration = 0;
+
+    private long cachedBytes = 0;
+
+    // incremented by every invalidation; an admission is discarded, if it's chunk
+    // was invalidated after the admission started
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    Logger logger = LoggerFactory.getLogger(PublicFileCache.class);
+
+    public PublicFileCache(ServerConfigurationProperties confProps) {
+        this.maxCacheBytes = confProps.getPublicFileCacheSizeMb() * 1048576L;
+        this.maxFileBytes = Math.min(confProps.getPublicFileCacheMaxFileSizeMb() * 1048576L, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return The cached file or null on a miss.
+     */
+    public CachedFile get(Long chunkId) {
+        CachedFile cachedFile;
+        synchronized (this) {
+            cachedFile = entries.get(chunkId);
+        }
+        if (cachedFile == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return cachedFile;
+    }
+
+    /**
+     * Returns the current generation. Must be read before the chunk, which is
+     * passed to admit, is loaded.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Reads the file into the cache, if it is small enough and was requested
+     * before.
+     * 
+     * @param chunk      The public chunk, which is being downloaded.
+     * @param eTag       The entity tag of the chunk.
+     * @param file       The path of the content.
+     * @param generation The generation read before the chunk was loaded.
+     * @return The cached file or null if it was not admitted.
+     */
+    public CachedFile admit(Chunk chunk, String eTag, Path file, long generation) {
+        long sizeBytes = chunk.getSizeBytes();
+        if (sizeBytes == 0 || sizeBytes > maxFileBytes || sizeBytes > maxCacheBytes) {
+            return null;
+        }
+        synchronized (this) {
+            if (candidates.remove(chunk.getId()) == null) {
+                candidates.put(chunk.getId(), Boolean.TRUE);
+                return null;
+            }
+        }
+
+        ByteBuffer content = ByteBuffer.allocateDirect((int) sizeBytes);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content) == -1) {
+                    // shorter than expected - not cached, the download reports it
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        content.flip();
+        CachedFile cachedFile = new CachedFile(chunk, eTag, content.asReadOnlyBuffer());
+
+        synchronized (this) {
+            if (isInvalidatedSince(chunk.getId(), generation)) {
+                // the next download tries again with the new state
+                candidates.put(chunk.getId(), Boolean.TRUE);
+                return cachedFile;
+            }
+            CachedFile previous = entries.put(chunk.getId(), cachedFile);
+            if (previous != null) {
+                cachedBytes -= previous.getSizeBytes();
+            }
+            cachedBytes += sizeBytes;
+            // evict least recently used files until the new one fits
+            Iterator<CachedFile> iterator = entries.values().iterator();
+            while (cachedBytes > maxCacheBytes && iterator.hasNext()) {
+                CachedFile eldest = iterator.next();
+                if (eldest == cachedFile) {
+                    continue;
+                }
+                iterator.remove();
+                cachedBytes -= eldest.getSizeBytes();
+                evictions.incrementAndGet();
+            }
+        }
+        return cachedFile;
+    }
+
+    /**
+     * Removes the chunk from the cache. When called in a transaction, it is
+     * removed again after the transaction completed.
+     * 
+     * @param chunkId The ID of the changed or deleted chunk.
+     */
+    public void invalidate(Long chunkId) {
+        if (chunkId == null) {
+            return;
+        }
+        remove(chunkId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    remove(chunkId);
+                }
+            });
+        }
+    }
+
+    private synchronized void remove(Long chunkId) {
+        invalidations.remove(chunkId);
+        invalidations.put(chunkId, generation.incrementAndGet());
+        CachedFile removed = entries.remove(chunkId);
+        if (removed != null) {
+            cachedBytes -= removed.getSizeBytes();
+        }
+    }
+
+    // Must be called with the monitor held. Once the chunk is no longer tracked,
+    // any invalidation after the generation counts.
+    private boolean isInvalidatedSince(Long chunkId, long generation) {
+        Long invalidatedGeneration = invalidations.get(chunkId);
+        if (invalidatedGeneration != null) {
+            return invalidatedGeneration > generation;
+        }
+        return forgottenGeneration > generation;
+    }
+
+    @Scheduled(fixedDelay = 60000, initialDelay = 60000) // every minute
+    public void logMetrics() {
+        long hitCount = hits.getAndSet(0);
+        long missCount = misses.getAndSet(0);
+        long evictionCount = evictions.getAndSet(0);
+        int entryCount;
+        long bytes;
+        synchronized (this) {
+            entryCount = entries.size();
+            bytes = cachedBytes;
+        }
+        if (hitCount + missCount == 0 && entryCount == 0) {
+            return;
+        }
+        logger.info("Public file cache: {} hits, {} misses, {} evictions in the last minute | {} files, {} of {} bytes",
+                hitCount,
+                missCount,
+                evictionCount,
+                entryCount,
+                bytes,
+                maxCacheBytes);
+    }
+
+    /**
+     * A snapshot of a public chunk and it's content. The buffer is read only and
+     * only read through duplicates, so it can be served to many clients at once.
+     * It's memory is freed by the garbage collector, once no download uses it.
+     */
+    public static class CachedFile {
+        private final Long id;
+        private final String originalFileName;
+        private final String mimeType;
+        private final Long lastModified;
+        private final String eTag;
+        private final ByteBuffer content;
+
+        private CachedFile(Chunk chunk, String eTag, ByteBuffer content) {
+            this.id = chunk.getId();
+            this.originalFileName = chunk.getOriginalFileName();
+            this.mimeType = chunk.getMimeType();
+            this.lastModified = chunk.getLastModified();
+            this.eTag = eTag;
+            this.content = content;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String getOriginalFileName() {
+            return originalFileName;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public Long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public long getSizeBytes() {
+            return content.capacity();
+        }
+
+        /**
+         * Writes a range of the content to the outputStream.
+         */
+        public void writeTo(OutputStream outputStream, long start, long length) throws StorageException {
+            ByteBuffer range = content.duplicate();
+            range.position((int) start).limit((int) (start + length));
+            try {
+                WritableByteChannel target = Channels.newChannel(outputStream);
+                while (range.hasRemaining()) {
+                    target.write(range);
+                }
+                outputStream.flush();
+            } catch (IOException e) {
+                throw new StorageException("Could not write cached file: " + id, e);
+            }
+        }
+    }
+}
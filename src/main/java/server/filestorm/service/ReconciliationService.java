@@ -0,0 +1,457 @@
+package server.filestorm.service;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PreDestroy;
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.model.entity.DeletionJournalEntry;
+import server.filestorm.model.repository.BlobRepository;
+import server.filestorm.model.repository.ChunkRepository;
+import server.filestorm.model.repository.DeletionJournalRepository;
+import server.filestorm.model.repository.DirectoryRepository;
+import server.filestorm.model.repository.UserRepository;
+
+/**
+ * Finds where the storage and the DB disagree: files without a Blob or Chunk
+ * row, Blobs and Chunks whose file is missing, and drifted
+ * Directory.elementsCount and User.bytesInStorage counters - the decrement
+ * queries clamp at 0, so drift is not visible otherwise.
+ *
+ * A pass walks the blob store in hash order, the other storage directories and
+ * the tables in ID order, in batches with their own short transactions. Every
+ * file touched and every row checked draws from an I/O budget, so the pass
+ * trickles along next to the user traffic on it's own low priority thread.
+ *
+ * Discrepancies are logged. With reconciler_repair orphan files older than a
+ * day are handed to the deletion journal and counters are recomputed, once the
+ * same drift was found by two passes in a row - a single finding may be an
+ * upload in flight. Missing files are only reported; they can not be restored.
+ */
+@Service
+public class ReconciliationService {
+
+    private static final int BATCH_SIZE = 500;
+
+    // younger files may belong to an upload, which is not committed yet
+    private static final long ORPHAN_MIN_AGE_MILLIS = 86400000; // 1 day
+
+    // details are logged up to this number per kind and pass, the rest is counted
+    private static final int MAX_REPORTED_PER_KIND = 100;
+
+    private static final Pattern BLOB_HASH = Pattern.compile("[0-9a-f]{64}");
+
+    // above every hex encoded hash
+    private static final String HASH_UPPER_BOUND = "g";
+
+    private final BlobRepository blobRepository;
+
+    private final ChunkRepository chunkRepository;
+
+    private final DirectoryRepository directoryRepository;
+
+    private final UserRepository userRepository;
+
+    private final DeletionJournalRepository deletionJournalRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Path rootLocation;
+
+    private final Path blobsLocation;
+
+    private final int ioOperationsPerSecond;
+
+    private final long passIntervalMillis;
+
+    private final boolean isRepairEnabled;
+
+    private final ExecutorService passExecutor;
+
+    private final AtomicBoolean isPassRunning = new AtomicBoolean(false);
+
+    private volatile long lastPassStart = 0;
+
+    // the drift found by the previous pass, per ID - only repeated drift is repaired
+    private Map<Long, Long> previousDirectoryDrift = new HashMap<>();
+    private Map<Long, Long> previousUserDrift = new HashMap<>();
+
+    Logger logger = LoggerFactory.getLogger(ReconciliationService.class);
+
+    public ReconciliationService(BlobRepository blobRepository, ChunkRepository chunkRepository,
+            DirectoryRepository directoryRepository, UserRepository userRepository,
+            DeletionJournalRepository deletionJournalRepository, PlatformTransactionManager transactionManager,
+            ServerConfigurationProperties confProps) {
+        this.blobRepository = blobRepository;
+        this.chunkRepository = chunkRepository;
+        this.directoryRepository = directoryRepository;
+        this.userRepository = userRepository;
+        this.deletionJournalRepository = deletionJournalRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.rootLocation = Paths.get(confProps.getFileStorageLocation()).normalize().toAbsolutePath();
+        this.blobsLocation = this.rootLocation.resolve("blobs");
+        this.ioOperationsPerSecond = confProps.getReconcilerIoOperationsPerS();
+        this.passIntervalMillis = confProps.getReconcilerIntervalHours() * 3600000L;
+        this.isRepairEnabled = confProps.isReconcilerRepair();
+        this.passExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-reconciler");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts a pass on the reconciler thread, once the interval since the start
+     * of the previous one has passed. Passes never overlap.
+     */
+    @Scheduled(fixedDelay = 3600000, initialDelay = 600000) // every hour
+    public void startPass() {
+        if (ioOperationsPerSecond <= 0 || System.currentTimeMillis() - lastPassStart < passIntervalMillis) {
+            return;
+        }
+        if (!isPassRunning.compareAndSet(false, true)) {
+            return;
+        }
+        lastPassStart = System.currentTimeMillis();
+        passExecutor.execute(() -> {
+            try {
+                runPass();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.error("Storage reconciliation failed: " + e.getMessage(), e);
+            } finally {
+                isPassRunning.set(false);
+            }
+        });
+    }
+
+    private void runPass() throws Exception {
+        long start = System.currentTimeMillis();
+        Pass pass = new Pass(new IoBudget(ioOperationsPerSecond));
+        logger.info("Storage reconciliation started{}.", isRepairEnabled ? " with repair" : "");
+
+        reconcileBlobFiles(pass);
+        reconcileUnhashedFiles(pass, blobsLocation.resolve("staging"));
+        for (Path userDirectory : listSortedChildren(rootLocation, pass)) {
+            // only the root user directories; blobs, thumbnails etc. are not user IDs
+            if (userDirectory.getFileName().toString().matches("\\d+")) {
+                reconcileUnhashedFiles(pass, userDirectory);
+            }
+        }
+        reconcileChunkFiles(pass);
+        reconcileDirectoryCounts(pass);
+        reconcileUserBytes(pass);
+
+        previousDirectoryDrift = pass.directoryDrift;
+        previousUserDrift = pass.userDrift;
+        logger.info(
+                "Storage reconciliation finished in {} s: {} orphan files, {} missing files, {} drifted directory counts, {} drifted user quotas, {} repaired.",
+                (System.currentTimeMillis() - start) / 1000,
+                pass.orphanFiles,
+                pass.missingFiles,
+                pass.directoryDrift.size(),
+                pass.userDrift.size(),
+                pass.repaired);
+    }
+
+    /**
+     * Walks blobs/<2 hex>/<2 hex>/<hash> in hash order and compares every batch
+     * of files with the Blob rows in the same hash range.
+     */
+    private void reconcileBlobFiles(Pass pass) throws Exception {
+        String afterHash = "";
+        while (true) {
+            List<Path> files = listBlobFilesAfter(afterHash, pass);
+            boolean isLastBatch = files.size() < BATCH_SIZE;
+            String toHash = isLastBatch ? HASH_UPPER_BOUND : files.get(files.size() - 1).getFileName().toString();
+
+            String fromHash = afterHash;
+            Set<String> knownHashes = new HashSet<>(
+                    transactionTemplate.execute(status -> blobRepository.findHashesInRange(fromHash, toHash)));
+            pass.ioBudget.acquire(knownHashes.size());
+
+            for (Path file : files) {
+                String hash = file.getFileName().toString();
+                if (!knownHashes.remove(hash)) {
+                    reportOrphanFile(pass, file, hash);
+                }
+            }
+            for (String hash : knownHashes) {
+                pass.missingFiles++;
+                report(pass.missingFiles, "Blob {} has no file.", hash);
+            }
+
+            if (isLastBatch) {
+                return;
+            }
+            afterHash = toHash;
+        }
+    }
+
+    private List<Path> listBlobFilesAfter(String afterHash, Pass pass) throws Exception {
+        List<Path> files = new ArrayList<>(BATCH_SIZE);
+        for (Path first : listSortedChildren(blobsLocation, pass)) {
+            String firstName = first.getFileName().toString();
+            if (firstName.length() != 2 || firstName.compareTo(prefix(afterHash, 2)) < 0) {
+                continue; // staging or already checked
+            }
+            for (Path second : listSortedChildren(first, pass)) {
+                if ((firstName + second.getFileName()).compareTo(prefix(afterHash, 4)) < 0) {
+                    continue;
+                }
+                for (Path file : listSortedChildren(second, pass)) {
+                    String hash = file.getFileName().toString();
+                    if (!BLOB_HASH.matcher(hash).matches() || hash.compareTo(afterHash) <= 0) {
+                        continue;
+                    }
+                    files.add(file);
+                    if (files.size() == BATCH_SIZE) {
+                        return files;
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String prefix(String hash, int length) {
+        return hash.length() < length ? hash : hash.substring(0, length);
+    }
+
+    /**
+     * Compares the files below the directory with the Chunks, which still point
+     * to a file outside of the blob store.
+     */
+    private void reconcileUnhashedFiles(Pass pass, Path directory) throws Exception {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> batch = new ArrayList<>(BATCH_SIZE);
+        try (Stream<Path> files = Files.walk(directory)) {
+            Iterator<Path> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                pass.ioBudget.acquire(1);
+                Path file = iterator.next();
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                batch.add(file);
+                if (batch.size() == BATCH_SIZE) {
+                    checkUnhashedFiles(pass, batch);
+                    batch.clear();
+                }
+            }
+        }
+        checkUnhashedFiles(pass, batch);
+    }
+
+    private void checkUnhashedFiles(Pass pass, List<Path> files) throws Exception {
+        if (files.isEmpty()) {
+            return;
+        }
+        List<String> paths = files.stream().map(Path::toString).toList();
+        Set<String> referencedPaths = new HashSet<>(
+                transactionTemplate.execute(status -> chunkRepository.findUnhashedFilePathsIn(paths)));
+        for (Path file : files) {
+            if (!referencedPaths.contains(file.toString())) {
+                reportOrphanFile(pass, file, null);
+            }
+        }
+    }
+
+    private void reportOrphanFile(Pass pass, Path file, String blobHash) throws Exception {
+        pass.ioBudget.acquire(1);
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() < ORPHAN_MIN_AGE_MILLIS) {
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            return; // moved into the blob store or deleted meanwhile
+        }
+        pass.orphanFiles++;
+        report(pass.orphanFiles, "File {} is not referenced.", file);
+        if (isRepairEnabled) {
+            // the unlinker keeps Blob files, which got their row back in between
+            DeletionJournalEntry entry = new DeletionJournalEntry();
+            entry.setBatchId(pass.batchId);
+            entry.setBlobHash(blobHash);
+            entry.setFilePath(file.toString());
+            transactionTemplate.executeWithoutResult(status -> deletionJournalRepository.save(entry));
+            pass.repaired++;
+        }
+    }
+
+    /**
+     * Checks the files of the Chunks, which are not in the blob store. Files of
+     * Blobs are checked by reconcileBlobFiles.
+     */
+    private void reconcileChunkFiles(Pass pass) throws Exception {
+        long afterId = 0;
+        while (true) {
+            long fromId = afterId;
+            List<Object[]> rows = transactionTemplate
+                    .execute(status -> chunkRepository.findUnhashedFilesAfter(fromId, BATCH_SIZE));
+            for (Object[] row : rows) {
+                pass.ioBudget.acquire(1);
+                Long chunkId = ((Number) row[0]).longValue();
+                String path = (String) row[1];
+                // a pending upload may have been moved into the blob store meanwhile
+                if (!Files.exists(Path.of(path)) && !transactionTemplate
+                        .execute(status -> chunkRepository.findUnhashedFilePathsIn(List.of(path))).isEmpty()) {
+                    pass.missingFiles++;
+                    report(pass.missingFiles, "Chunk {} has no file at {}.", chunkId, row[1]);
+                }
+                afterId = chunkId;
+            }
+            if (rows.size() < BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private void reconcileDirectoryCounts(Pass pass) throws Exception {
+        long afterId = 0;
+        while (true) {
+            long fromId = afterId;
+            List<Object[]> rows = transactionTemplate
+                    .execute(status -> directoryRepository.findElementsCountsAfter(fromId, BATCH_SIZE));
+            pass.ioBudget.acquire(rows.size());
+            for (Object[] row : rows) {
+                Long directoryId = ((Number) row[0]).longValue();
+                long drift = ((Number) row[2]).longValue() - ((Number) row[1]).longValue();
+                if (drift != 0) {
+                    pass.directoryDrift.put(directoryId, drift);
+                    report(pass.directoryDrift.size(), "Directory {} counts {} elements, {} are stored.",
+                            directoryId, row[1], row[2]);
+                    if (isRepairEnabled && Long.valueOf(drift).equals(previousDirectoryDrift.get(directoryId))) {
+                        transactionTemplate.executeWithoutResult(status -> directoryRepository
+                                .recountElements(directoryId, System.currentTimeMillis()));
+                        pass.repaired++;
+                    }
+                }
+                afterId = directoryId;
+            }
+            if (rows.size() < BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private void reconcileUserBytes(Pass pass) throws Exception {
+        long afterId = 0;
+        while (true) {
+            long fromId = afterId;
+            List<Object[]> rows = transactionTemplate
+                    .execute(status -> userRepository.findBytesInStorageAfter(fromId, BATCH_SIZE));
+            pass.ioBudget.acquire(rows.size());
+            for (Object[] row : rows) {
+                Long userId = ((Number) row[0]).longValue();
+                long drift = ((Number) row[2]).longValue() - ((Number) row[1]).longValue();
+                if (drift != 0) {
+                    pass.userDrift.put(userId, drift);
+                    report(pass.userDrift.size(), "User {} counts {} bytes in storage, {} are stored or reserved.",
+                            userId, row[1], row[2]);
+                    if (isRepairEnabled && Long.valueOf(drift).equals(previousUserDrift.get(userId))) {
+                        transactionTemplate.executeWithoutResult(status -> userRepository.recountBytesInStorage(userId));
+                        pass.repaired++;
+                    }
+                }
+                afterId = userId;
+            }
+            if (rows.size() < BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private List<Path> listSortedChildren(Path directory, Pass pass) throws Exception {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> children = Files.list(directory)) {
+            List<Path> sortedChildren = children.sorted().toList();
+            pass.ioBudget.acquire(1 + sortedChildren.size());
+            return sortedChildren;
+        }
+    }
+
+    private void report(long count, String message, Object... arguments) {
+        if (count <= MAX_REPORTED_PER_KIND) {
+            logger.warn(message, arguments);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // a pass is not resumed; the next one starts from the beginning
+        passExecutor.shutdownNow();
+    }
+
+    /**
+     * The findings of one pass.
+     */
+    private static class Pass {
+        private final IoBudget ioBudget;
+        // orphan files handed to the deletion journal share one batch
+        private final String batchId = UUID.randomUUID().toString();
+        private final Map<Long, Long> directoryDrift = new HashMap<>();
+        private final Map<Long, Long> userDrift = new HashMap<>();
+        private long orphanFiles = 0;
+        private long missingFiles = 0;
+        private long repaired = 0;
+
+        Pass(IoBudget ioBudget) {
+            this.ioBudget = ioBudget;
+        }
+    }
+
+    /**
+     * Paces the pass to a number of I/O operations per second. Idle time is not
+     * saved up, so the pass never bursts.
+     */
+    private static class IoBudget {
+        private final long nanosPerOperation;
+        private long nextFree = System.nanoTime();
+
+        IoBudget(int operationsPerSecond) {
+            this.nanosPerOperation = 1000000000L / operationsPerSecond;
+        }
+
+        void acquire(int operations) throws InterruptedException {
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now) + operations * nanosPerOperation;
+            // the operations were done already or follow right away - wait for their share
+            long wait = nextFree - now - nanosPerOperation;
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
@@ -28,10 +28,14 @@ public class SharingService {
     @Autowired
     private LinkGeneratorService linkGeneratorService;
 
+    @Autowired
+    private PublicFileCache publicFileCache;
+
     @Transactional
     public void updateChunkShareOption(Chunk c, String shareOption) throws StorageException {
         ShareOption option = matchStringToShareOption(shareOption);
         c.setShareOption(option);
+        publicFileCache.invalidate(c.getId());
         chunkRepository.save(c);
     }
 
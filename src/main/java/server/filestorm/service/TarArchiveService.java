@@ -0,0 +1,450 @@
+package server.filestorm.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import jakarta.annotation.PreDestroy;
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.Directory;
+import server.filestorm.model.entity.User;
+import server.filestorm.model.type.fileManagement.TarArchivePlan;
+import server.filestorm.model.type.fileManagement.TarEntryPlan;
+import server.filestorm.util.ByteArrayPool;
+import server.filestorm.util.ParallelGzipOutputStream;
+
+/**
+ * Writes the tar archives of bulk downloads. The archive is planned up front
+ * from the metadata in the DB: every header is rendered and every entry has
+ * it's offset, so the exact size of the archive is known before the first
+ * byte is sent and any byte range can be written without writing what comes
+ * before it. As headers only contain DB values, the same selection always
+ * results in the same bytes, which makes resuming a download with a Range
+ * request safe.
+ * 
+ * While an entry is written, the next files are opened and read ahead - on
+ * network storage the latency of opening a file and reading it's first bytes
+ * dominates archives of many small files.
+ * 
+ * Archives can be sent gzip compressed as well; the blocks are compressed on
+ * all cores and their size is not known up front.
+ */
+@Service
+public class TarArchiveService {
+
+    private static final byte[] ZERO_RECORD = new byte[TarArchivePlan.RECORD_SIZE];
+
+    // large enough that a member's missing history costs little ratio
+    private static final int GZIP_BLOCK_SIZE = 131072;
+
+    private static final Set<String> COMPRESSED_APPLICATION_TYPES = Set.of(
+            "application/zip",
+            "application/gzip",
+            "application/x-gzip",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/zstd",
+            "application/x-7z-compressed",
+            "application/vnd.rar",
+            "application/x-rar-compressed",
+            "application/java-archive",
+            "application/epub+zip",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation");
+
+    private static final Comparator<Chunk> CHUNK_ORDER = Comparator.comparing(Chunk::getId);
+
+    private static final Comparator<Directory> DIRECTORY_ORDER = Comparator.comparing(Directory::getId);
+
+    private final FileSystemService fileSystemService;
+
+    private final DirectoryService directoryService;
+
+    // the number of files read ahead of the entry being written
+    private final int prefetchEntries;
+
+    // files up to this size are read completely ahead
+    private final ByteArrayPool bufferPool = new ByteArrayPool(1048576, 64);
+
+    // the reads block on I/O, not on CPU
+    private final ExecutorService prefetchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final int compressionThreads;
+
+    private final int gzipLevel;
+
+    // compression is bound by CPU - shared by all downloads, one thread per core
+    private final ExecutorService compressionExecutor;
+
+    public TarArchiveService(FileSystemService fileSystemService, DirectoryService directoryService,
+            ServerConfigurationProperties confProps) {
+        this.fileSystemService = fileSystemService;
+        this.directoryService = directoryService;
+        this.prefetchEntries = Math.max(1, confProps.getTarPrefetchEntries());
+        this.compressionThreads = confProps.getArchiveGzipThreads() > 0
+                ? confProps.getArchiveGzipThreads()
+                : Runtime.getRuntime().availableProcessors();
+        this.gzipLevel = confProps.getArchiveGzipLevel();
+        this.compressionExecutor = Executors.newFixedThreadPool(compressionThreads);
+    }
+
+    /**
+     * Plans the archive of the chunks and directories: the chunks first, then
+     * every directory followed by it's chunks and subdirectories. Siblings are
+     * ordered by ID, so the order does not depend on the DB.
+     * 
+     * Every directory tree is loaded with two queries by path - the directories
+     * and the files in it - in one read only transaction.
+     * 
+     * @param chunks       The files to archive, may be null.
+     * @param directoryIds The directories to archive, may be null.
+     * @param owner        The user, who must own the directories.
+     * @return The layout of the archive with it's size and validators.
+     * @throws StorageException When the user has no such directory or a header
+     *                          could not be rendered.
+     */
+    @Transactional(readOnly = true)
+    public TarArchivePlan planArchive(Chunk[] chunks, Long[] directoryIds, User owner) throws StorageException {
+        ArchivePlanner planner = new ArchivePlanner();
+        if (chunks != null) {
+            planner.addChunks(Arrays.asList(chunks), "");
+        }
+        for (Directory directory : directoryService.bulkCheckDirectoryOwnershipAndCollect(directoryIds, owner)) {
+            Map<Long, List<Directory>> subdirectories = directoryService.extractDirectoriesFromDirAndSubDirs(directory)
+                    .stream()
+                    .collect(Collectors.groupingBy(subdirectory -> subdirectory.getParentDirectory().get().getId()));
+            Map<Long, List<Chunk>> chunksByDirectory = directoryService.extractChunksFromDirAndSubDirs(directory)
+                    .stream()
+                    .collect(Collectors.groupingBy(chunk -> chunk.getDirectory().getId()));
+            planner.addDirectory(directory, "", subdirectories, chunksByDirectory);
+        }
+        return planner.finish();
+    }
+
+    /**
+     * Writes the given range of the planned archive. The files of the next
+     * prefetchEntries entries within the range are opened and read into pooled
+     * buffers on virtual threads. Larger files are read ahead up to the buffer
+     * size and continued from the open channel when their entry is written.
+     *
+     * @param plan         The planned archive.
+     * @param outputStream The response. Is not closed.
+     * @param start        The first byte of the archive to write.
+     * @param length       The number of bytes to write.
+     * @throws IOException When a file could not be read, is shorter than when the
+     *                     archive was planned, or the archive could not be
+     *                     written - e.g. the client aborted the download.
+     */
+    public void writeRange(TarArchivePlan plan, OutputStream outputStream, long start, long length)
+            throws IOException {
+        writeRange(plan, outputStream, start, length, null);
+    }
+
+    /**
+     * Writes the planned archive gzip compressed, on the compression threads.
+     * Files of a compressed MIME type - images, videos, archives - are stored
+     * without recompression, if they span at least one block.
+     *
+     * @param plan         The planned archive.
+     * @param outputStream The response. Is not closed.
+     * @throws IOException See writeRange.
+     */
+    public void writeCompressed(TarArchivePlan plan, OutputStream outputStream) throws IOException {
+        ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(outputStream, compressionExecutor,
+                GZIP_BLOCK_SIZE, 2 * compressionThreads, gzipLevel);
+        try {
+            writeRange(plan, gzipOutputStream, 0, plan.getSizeBytes(), gzipOutputStream);
+            gzipOutputStream.finish();
+        } finally {
+            gzipOutputStream.abort();
+        }
+    }
+
+    private void writeRange(TarArchivePlan plan, OutputStream outputStream, long start, long length,
+            ParallelGzipOutputStream gzipOutputStream) throws IOException {
+        long end = start + length;
+        List<TarEntryPlan> entries = plan.getEntries();
+        int first = plan.findEntryIndex(start);
+        int last = first;
+        while (last < entries.size() && entries.get(last).getOffset() < end) {
+            last++;
+        }
+
+        ArrayDeque<CompletableFuture<PrefetchedFile>> prefetched = new ArrayDeque<>();
+        int nextToPrefetch = first;
+        try {
+            for (int i = first; i < last; i++) {
+                TarEntryPlan entry = entries.get(i);
+                writeSlice(outputStream, entry.getHeader(), entry.getOffset(), start, end);
+
+                if (hasContentInRange(entry, start, end)) {
+                    // keep the window full; the entry written now is always the oldest one
+                    while (nextToPrefetch < last && prefetched.size() <= prefetchEntries) {
+                        TarEntryPlan next = entries.get(nextToPrefetch++);
+                        if (hasContentInRange(next, start, end)) {
+                            prefetched.add(CompletableFuture.supplyAsync(() -> prefetch(next, start, end),
+                                    prefetchExecutor));
+                        }
+                    }
+
+                    // smaller files share their blocks with headers and other files
+                    boolean isStored = gzipOutputStream != null
+                            && entry.getSizeBytes() >= GZIP_BLOCK_SIZE
+                            && isCompressedMimeType(entry.getChunk().getMimeType());
+                    if (isStored) {
+                        gzipOutputStream.setLevel(Deflater.NO_COMPRESSION);
+                    }
+                    try (PrefetchedFile file = join(prefetched.poll())) {
+                        writeFile(outputStream, file);
+                    }
+                    if (isStored) {
+                        gzipOutputStream.setLevel(gzipLevel);
+                    }
+                }
+
+                long contentEnd = entry.getContentOffset() + entry.getSizeBytes();
+                writeZeros(outputStream, Math.max(contentEnd, start), Math.min(entry.getEndOffset(), end));
+            }
+        } finally {
+            for (CompletableFuture<PrefetchedFile> future : prefetched) {
+                future.thenAccept(PrefetchedFile::close);
+            }
+        }
+
+        // the end of archive records
+        writeZeros(outputStream, Math.max(plan.getSizeBytes() - TarArchivePlan.END_OF_ARCHIVE_SIZE, start), end);
+    }
+
+    private static boolean isCompressedMimeType(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        // svg and bmp are uncompressed images
+        return (mimeType.startsWith("image/") && !mimeType.equals("image/svg+xml") && !mimeType.equals("image/bmp"))
+                || mimeType.startsWith("video/")
+                || (mimeType.startsWith("audio/") && !mimeType.equals("audio/wav") && !mimeType.equals("audio/x-wav"))
+                || COMPRESSED_APPLICATION_TYPES.contains(mimeType);
+    }
+
+    private static boolean hasContentInRange(TarEntryPlan entry, long start, long end) {
+        return entry.getSizeBytes() > 0
+                && entry.getContentOffset() < end
+                && entry.getContentOffset() + entry.getSizeBytes() > start;
+    }
+
+    private static void writeSlice(OutputStream outputStream, byte[] bytes, long offset, long start, long end)
+            throws IOException {
+        int from = (int) Math.max(0, start - offset);
+        int to = (int) Math.min(bytes.length, end - offset);
+        if (from < to) {
+            outputStream.write(bytes, from, to - from);
+        }
+    }
+
+    private static void writeZeros(OutputStream outputStream, long from, long to) throws IOException {
+        while (from < to) {
+            int count = (int) Math.min(ZERO_RECORD.length, to - from);
+            outputStream.write(ZERO_RECORD, 0, count);
+            from += count;
+        }
+    }
+
+    private PrefetchedFile prefetch(TarEntryPlan entry, long start, long end) {
+        long contentOffset = entry.getContentOffset();
+        long position = Math.max(start, contentOffset) - contentOffset;
+        long length = Math.min(end, contentOffset + entry.getSizeBytes()) - contentOffset - position;
+
+        PrefetchedFile prefetchedFile = new PrefetchedFile(length, bufferPool.acquire());
+        try {
+            prefetchedFile.channel = FileChannel.open(fileSystemService.getReadableFilePath(entry.getChunk()),
+                    StandardOpenOption.READ);
+            prefetchedFile.channel.position(position);
+            ByteBuffer buffer = ByteBuffer.wrap(prefetchedFile.buffer, 0,
+                    (int) Math.min(prefetchedFile.buffer.length, length));
+            while (buffer.hasRemaining()) {
+                if (prefetchedFile.channel.read(buffer) == -1) {
+                    break;
+                }
+            }
+            prefetchedFile.bufferedBytes = buffer.position();
+            return prefetchedFile;
+        } catch (Exception e) {
+            prefetchedFile.close();
+            throw new CompletionException(e instanceof IOException ? e : new IOException(e));
+        }
+    }
+
+    private void writeFile(OutputStream outputStream, PrefetchedFile file) throws IOException {
+        outputStream.write(file.buffer, 0, file.bufferedBytes);
+        long written = file.bufferedBytes;
+        ByteBuffer buffer = ByteBuffer.wrap(file.buffer);
+        while (written < file.length) {
+            buffer.clear().limit((int) Math.min(file.buffer.length, file.length - written));
+            if (file.channel.read(buffer) == -1) {
+                // the planned size is already sent in the headers; the archive can not be completed
+                throw new IOException("File is shorter than when the download started.");
+            }
+            outputStream.write(file.buffer, 0, buffer.position());
+            written += buffer.position();
+        }
+    }
+
+    private static PrefetchedFile join(CompletableFuture<PrefetchedFile> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Renders the header records of the entry exactly as TarArchiveOutputStream
+     * writes them, including GNU long name and PAX records where needed.
+     */
+    private static byte[] renderHeader(TarArchiveEntry tarEntry) throws StorageException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(TarArchivePlan.RECORD_SIZE);
+        // one record per block, so every record is passed through right away
+        TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(headerBytes, TarArchivePlan.RECORD_SIZE,
+                StandardCharsets.UTF_8.name());
+        tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        tarOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        try {
+            tarOutputStream.putArchiveEntry(tarEntry);
+        } catch (Exception e) {
+            throw new StorageException("Could not plan the archive.", e);
+        }
+        // not closed - the content of the entry is written by writeRange, and the
+        // stream only holds the in memory buffer
+        return headerBytes.toByteArray();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+        compressionExecutor.shutdownNow();
+    }
+
+    /**
+     * Collects the entries with their offsets and hashes everything that makes up
+     * the archive into the ETag.
+     */
+    private static class ArchivePlanner {
+        private final List<TarEntryPlan> entries = new ArrayList<>();
+        private final MessageDigest digest = BlobService.newDigest();
+        private long offset = 0;
+        private long lastModified = 0;
+
+        void addChunks(List<Chunk> chunks, String containingDirPathInTar) {
+            for (Chunk chunk : chunks.stream().sorted(CHUNK_ORDER).toList()) {
+                TarArchiveEntry tarEntry = new TarArchiveEntry(containingDirPathInTar + chunk.getOriginalFileName());
+                tarEntry.setSize(chunk.getSizeBytes());
+                tarEntry.setModTime(new Date(chunk.getLastModified()));
+                add(tarEntry, chunk, chunk.getSizeBytes(), chunk.getLastModified());
+                // the content identity; two versions of a file may have the same size and time
+                digest.update(String.valueOf(chunk.getId()).getBytes(StandardCharsets.US_ASCII));
+                if (chunk.getBlob() != null) {
+                    digest.update(chunk.getBlob().getHash().getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+        }
+
+        /**
+         * @param subdirectories    The subdirectories in the tree by the ID of
+         *                          their parent.
+         * @param chunksByDirectory The chunks in the tree by the ID of their
+         *                          directory.
+         */
+        void addDirectory(Directory directory, String containingDirPathInTar,
+                Map<Long, List<Directory>> subdirectories, Map<Long, List<Chunk>> chunksByDirectory) {
+            String dirPathInTar = containingDirPathInTar + directory.getName() + "/";
+            TarArchiveEntry tarEntry = new TarArchiveEntry(dirPathInTar);
+            tarEntry.setMode(0755);
+            tarEntry.setModTime(new Date(directory.getLastModified()));
+            add(tarEntry, null, 0, directory.getLastModified());
+            addChunks(chunksByDirectory.getOrDefault(directory.getId(), List.of()), dirPathInTar);
+            for (Directory subdirectory : subdirectories.getOrDefault(directory.getId(), List.of()).stream()
+                    .sorted(DIRECTORY_ORDER).toList()) {
+                addDirectory(subdirectory, dirPathInTar, subdirectories, chunksByDirectory);
+            }
+        }
+
+        private void add(TarArchiveEntry tarEntry, Chunk chunk, long sizeBytes, Long entryLastModified) {
+            // the owner of the server process is none of the recipient's business
+            tarEntry.setUserName("");
+            tarEntry.setGroupName("");
+            byte[] header = renderHeader(tarEntry);
+            TarEntryPlan entry = new TarEntryPlan(tarEntry.getName(), chunk, header, offset, sizeBytes);
+            entries.add(entry);
+            digest.update(header);
+            offset = entry.getEndOffset();
+            if (entryLastModified != null) {
+                lastModified = Math.max(lastModified, entryLastModified);
+            }
+        }
+
+        TarArchivePlan finish() {
+            String eTag = "\"tar-" + BlobService.toHash(digest).substring(0, 32) + "\"";
+            return new TarArchivePlan(entries, offset + TarArchivePlan.END_OF_ARCHIVE_SIZE, eTag, lastModified);
+        }
+    }
+
+    /**
+     * A file opened and read ahead. Closing it closes the channel and returns
+     * the buffer to the pool.
+     */
+    private class PrefetchedFile implements AutoCloseable {
+        // the number of bytes of the file to write
+        private final long length;
+        private byte[] buffer;
+        private FileChannel channel;
+        private int bufferedBytes = 0;
+
+        PrefetchedFile(long length, byte[] buffer) {
+            this.length = length;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // read only - nothing is lost
+            }
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package server.filestorm.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.exception.FileManagementException;
+import server.filestorm.exception.StorageException;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.Directory;
+import server.filestorm.model.entity.UploadPart;
+import server.filestorm.model.entity.UploadSession;
+import server.filestorm.model.entity.User;
+import server.filestorm.model.repository.DeletionJournalRepository;
+import server.filestorm.model.repository.UploadPartRepository;
+import server.filestorm.model.repository.UploadSessionRepository;
+import server.filestorm.util.StringUtil;
+
+@Service
+@Transactional
+public class UploadSessionService {
+
+    // the same limit as S3 multipart uploads
+    private static final int MAX_PART_NUMBER = 10000;
+
+    private final UploadSessionRepository uploadSessionRepository;
+
+    private final UploadPartRepository uploadPartRepository;
+
+    private final DeletionJournalRepository deletionJournalRepository;
+
+    private final FileSystemService fileSystemService;
+
+    private final UserService userService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final long maxFileSizeBytes;
+
+    private final long sessionTtlMillis;
+
+    Logger logger = LoggerFactory.getLogger(UploadSessionService.class);
+
+    public UploadSessionService(UploadSessionRepository uploadSessionRepository,
+            UploadPartRepository uploadPartRepository, DeletionJournalRepository deletionJournalRepository,
+            FileSystemService fileSystemService, UserService userService, MultipartProperties multipartProperties,
+            PlatformTransactionManager transactionManager, ServerConfigurationProperties confProps) {
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.uploadPartRepository = uploadPartRepository;
+        this.deletionJournalRepository = deletionJournalRepository;
+        this.fileSystemService = fileSystemService;
+        this.userService = userService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // resumable uploads follow the same size limit as the single request upload
+        this.maxFileSizeBytes = multipartProperties.getMaxFileSize().toBytes();
+        this.sessionTtlMillis = confProps.getUploadSessionTtlHours() * 60L * 60L * 1000L;
+    }
+
+    /**
+     * Creates a new upload session and an empty partial file for it. The storage
+     * space for the whole file is reserved with the session and released again,
+     * when the session is aborted.
+     *
+     * @param fileName        The name of the file, as given by the client.
+     * @param totalBytes      The size of the whole file.
+     * @param mimeType        The MIME type of the file, as given by the client.
+     * @param owner           The user uploading the file.
+     * @param targetDirectory The directory under which the file is to be saved.
+     * @return The new session.
+     * @throws FileManagementException When the size is not valid or the user does
+     *                                 not have enough free storage space.
+     */
+    public UploadSession createSession(String fileName, Long totalBytes, String mimeType, User owner,
+            Directory targetDirectory) throws FileManagementException {
+        if (totalBytes == null || totalBytes <= 0) {
+            throw new FileManagementException("Failed to store empty file.");
+        }
+        if (totalBytes > this.maxFileSizeBytes) {
+            throw new FileManagementException("The file exceeds the maximum upload size.");
+        }
+        userService.reserveStorageSpace(owner, totalBytes);
+        try {
+            UploadSession session = new UploadSession();
+            session.setOwner(owner);
+            session.setTargetDirectory(targetDirectory);
+            session.setOriginalFileName(StringUtil.sanitizeFileName(fileName));
+            session.setMimeType(mimeType == null || mimeType.isBlank() ? MediaType.APPLICATION_OCTET_STREAM_VALUE : mimeType);
+            session.setTotalBytes(totalBytes);
+            session.setPartialFilePath("tempVal");
+
+            // save session for it to recieve an ID
+            session = uploadSessionRepository.save(session);
+
+            Path partialFile = fileSystemService.createPartialFile(session.getId());
+            session.setPartialFilePath(partialFile.toString());
+            return uploadSessionRepository.save(session);
+        } catch (Exception e) {
+            userService.releaseStorageSpace(owner, totalBytes);
+            throw e;
+        }
+    }
+
+    public UploadSession findSessionForUserById(Long sessionId, User owner) throws FileManagementException {
+        return uploadSessionRepository.findSessionForUserById(sessionId, owner)
+                .orElseThrow(() -> new FileManagementException("Upload session not found."));
+    }
+
+    /**
+     * Appends the received bytes to the partial file of the session. The offset
+     * must be the one last acknowledged by the server - the receivedBytes of the
+     * session.
+     *
+     * @param sessionId   The ID of the session.
+     * @param owner       The user owning the session.
+     * @param offset      The offset at which the client continues the upload.
+     * @param inputStream The bytes of the file, starting at the offset.
+     * @return The updated session.
+     * @throws FileManagementException When the offset does not match or another
+     *                                 request appends to the session.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public UploadSession appendBytes(Long sessionId, User owner, Long offset, InputStream inputStream)
+            throws FileManagementException {
+        // The body may take hours over a slow link, so no transaction - and no
+        // pooled connection - is held while it is received. Concurrent appends are
+        // kept apart by the lock on the partial file instead of the session row.
+        UploadSession session = findSessionForUserById(sessionId, owner);
+        try (FileChannel partialFile = fileSystemService.lockPartialFile(Path.of(session.getPartialFilePath()))) {
+            // read again under the file lock; an append which just finished may
+            // have advanced it
+            UploadSession claimed = transactionTemplate.execute(status -> findSessionForUserById(sessionId, owner));
+            if (offset == null || !offset.equals(claimed.getReceivedBytes())) {
+                throw new FileManagementException(
+                        String.format("Offset mismatch. The upload must continue at offset %1$d.",
+                                claimed.getReceivedBytes()));
+            }
+
+            long receivedBytes = fileSystemService.writeToPartialFile(
+                    partialFile,
+                    offset,
+                    inputStream,
+                    claimed.getTotalBytes() - offset);
+
+            long now = new Date().getTime();
+            Integer updated = transactionTemplate.execute(status -> uploadSessionRepository
+                    .advanceReceivedBytes(sessionId, offset, receivedBytes, now));
+            if (updated == null || updated == 0) {
+                throw new FileManagementException("The upload session was aborted or finalized.");
+            }
+            claimed.setReceivedBytes(receivedBytes);
+            claimed.setLastModified(now);
+            return claimed;
+        } catch (IOException e) {
+            throw new StorageException("Could not write to the upload file.", e);
+        }
+    }
+
+    /**
+     * Turns the completely received partial file into a file of the user and
+     * removes the session.
+     *
+     * @param sessionId The ID of the session.
+     * @param owner     The user owning the session.
+     * @return The Chunk created for the file.
+     * @throws FileManagementException When not all bytes were received yet.
+     */
+    public Chunk finalizeSession(Long sessionId, User owner) throws FileManagementException {
+        UploadSession session = uploadSessionRepository.lockSessionForUserById(sessionId, owner)
+                .orElseThrow(() -> new FileManagementException("Upload session not found."));
+        return finalizeSession(session, owner);
+    }
+
+    /**
+     * Stores one numbered part of a multi-part upload. Parts of the same session
+     * may be uploaded concurrently - each one is written to it's own file and the
+     * session is only locked to register the received part. Sending a part again
+     * replaces the former one.
+     * 
+     * Like appendBytes, no transaction is held while the part is received; the
+     * part is registered in a short one afterwards.
+     *
+     * @param sessionId     The ID of the session.
+     * @param owner         The user owning the session.
+     * @param partNumber    The number of the part, from 1 to 10000.
+     * @param expectedBytes The Content-Length of the part or -1 if unknown.
+     * @param inputStream   The bytes of the part.
+     * @return The stored part.
+     * @throws FileManagementException When the part number is not valid, the
+     *                                 session receives consecutive byte ranges or
+     *                                 the part was not received completely.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public UploadPart uploadPart(Long sessionId, User owner, Integer partNumber, long expectedBytes,
+            InputStream inputStream) throws FileManagementException {
+        if (partNumber == null || partNumber < 1 || partNumber > MAX_PART_NUMBER) {
+            throw new FileManagementException(
+                    String.format("The part number must be between 1 and %1$d.", MAX_PART_NUMBER));
+        }
+        UploadSession session = findSessionForUserById(sessionId, owner);
+        if (session.getReceivedBytes() > 0) {
+            throw new FileManagementException("The upload session already receives consecutive byte ranges.");
+        }
+
+        Path partFile = fileSystemService.createPartFile(session.getId(), partNumber);
+        try {
+            long sizeBytes = fileSystemService.writeToPartialFile(partFile, 0, inputStream,
+                    session.getTotalBytes());
+            if (sizeBytes == 0 || (expectedBytes >= 0 && sizeBytes != expectedBytes)) {
+                throw new FileManagementException("The part was not received completely.");
+            }
+
+            return transactionTemplate.execute(status -> {
+                // the session may have been completed or aborted while the part was received
+                UploadSession lockedSession = uploadSessionRepository.lockSessionForUserById(sessionId, owner)
+                        .orElseThrow(() -> new FileManagementException("Upload session not found."));
+
+                UploadPart part = uploadPartRepository.findPartForSessionByNumber(lockedSession, partNumber)
+                        .orElse(null);
+                if (part == null) {
+                    part = new UploadPart();
+                    part.setUploadSession(lockedSession);
+                    part.setPartNumber(partNumber);
+                } else {
+                    // the former part is kept until the new one is committed
+                    deletionJournalRepository.journalFile(null, null, part.getPartFilePath());
+                }
+                part.setSizeBytes(sizeBytes);
+                part.setPartFilePath(partFile.toString());
+
+                // keep the session from being purged while it's parts are uploaded
+                lockedSession.setLastModified(new Date().getTime());
+                uploadSessionRepository.save(lockedSession);
+
+                return uploadPartRepository.save(part);
+            });
+        } catch (Exception e) {
+            fileSystemService.deletePartialFile(partFile);
+            throw new FileManagementException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Completes a multi-part upload. The parts are concatenated by ascending part
+     * number and the result is stored like a finalized resumable upload.
+     *
+     * @param sessionId The ID of the session.
+     * @param owner     The user owning the session.
+     * @return The Chunk created for the file.
+     * @throws FileManagementException When parts are missing or their sizes do not
+     *                                 add up to the size of the file.
+     */
+    public Chunk completeMultipartSession(Long sessionId, User owner) throws FileManagementException {
+        UploadSession session = uploadSessionRepository.lockSessionForUserById(sessionId, owner)
+                .orElseThrow(() -> new FileManagementException("Upload session not found."));
+
+        List<UploadPart> parts = uploadPartRepository.findPartsForSession(session);
+        if (parts.isEmpty()) {
+            throw new FileManagementException("No parts have been uploaded.");
+        }
+
+        List<Path> partFiles = new ArrayList<>(parts.size());
+        long totalBytes = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            UploadPart part = parts.get(i);
+            if (part.getPartNumber() != i + 1) {
+                throw new FileManagementException(String.format("Part %1$d is missing.", i + 1));
+            }
+            totalBytes += part.getSizeBytes();
+            partFiles.add(Path.of(part.getPartFilePath()));
+        }
+        if (totalBytes != session.getTotalBytes()) {
+            throw new FileManagementException(
+                    String.format("The parts add up to %1$d of %2$d bytes.", totalBytes, session.getTotalBytes()));
+        }
+
+        long receivedBytes = fileSystemService.assembleParts(partFiles, Path.of(session.getPartialFilePath()));
+        session.setReceivedBytes(receivedBytes);
+        return finalizeSession(session, owner);
+    }
+
+    private Chunk finalizeSession(UploadSession session, User owner) throws FileManagementException {
+        if (!session.isComplete()) {
+            throw new FileManagementException(
+                    String.format("The upload is incomplete. Received %1$d of %2$d bytes.",
+                            session.getReceivedBytes(), session.getTotalBytes()));
+        }
+        Chunk chunk = fileSystemService.storePartialFile(
+                Path.of(session.getPartialFilePath()),
+                session.getOriginalFileName(),
+                session.getTotalBytes(),
+                session.getMimeType(),
+                owner,
+                session.getTargetDirectory());
+
+        deleteParts(session);
+        uploadSessionRepository.delete(session);
+        return chunk;
+    }
+
+    /**
+     * Deletes the session and it's partial file.
+     *
+     * @param sessionId The ID of the session.
+     * @param owner     The user owning the session.
+     */
+    public void abortSession(Long sessionId, User owner) throws FileManagementException {
+        UploadSession session = uploadSessionRepository.lockSessionForUserById(sessionId, owner)
+                .orElseThrow(() -> new FileManagementException("Upload session not found."));
+        abortSession(session);
+    }
+
+    /**
+     * Aborts all sessions, which target one of the given directories or any
+     * directory below them. Must be called before the directories are deleted.
+     *
+     * @param directories The top directories of the subtrees, which are about to
+     *                    be deleted.
+     */
+    public void abortSessionsInSubtrees(Collection<Directory> directories) {
+        for (Directory directory : directories) {
+            List<UploadSession> sessions = uploadSessionRepository
+                    .findSessionsInSubtreeByPathPattern(directory.getPath() + "%");
+            for (UploadSession session : sessions) {
+                abortSession(session);
+            }
+        }
+    }
+
+    /**
+     * Removes sessions, which did not receive any bytes for longer than the
+     * configured upload_session_ttl_hours, together with their partial files.
+     */
+    @Scheduled(fixedDelay = 3600000, initialDelay = 60000) // every hour
+    public void purgeIdleSessions() {
+        long idleSince = new Date().getTime() - this.sessionTtlMillis;
+        List<UploadSession> sessions = uploadSessionRepository.findSessionsIdleSince(idleSince);
+        for (UploadSession session : sessions) {
+            try {
+                abortSession(session);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    // the files are journaled and unlinked by DeletionService once the abort is
+    // committed - when the delete of the directory fails, the rollback keeps the
+    // session and it's files
+    private void abortSession(UploadSession session) {
+        deleteParts(session);
+        deletionJournalRepository.journalFile(null, null, session.getPartialFilePath());
+        uploadSessionRepository.delete(session);
+        // part of the abort, so it is rolled back with it
+        userService.decreaseBytesInStorage(session.getOwner(), session.getTotalBytes());
+    }
+
+    private void deleteParts(UploadSession session) {
+        List<UploadPart> parts = uploadPartRepository.findPartsForSession(session);
+        for (UploadPart part : parts) {
+            deletionJournalRepository.journalFile(null, null, part.getPartFilePath());
+        }
+        uploadPartRepository.deleteAll(parts);
+    }
+}
@@ -6,9 +6,11 @@ import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import server.filestorm.exception.AuthenticationException;
+import server.filestorm.exception.FileManagementException;
 import server.filestorm.model.entity.Chunk;
 import server.filestorm.model.entity.Directory;
 import server.filestorm.model.entity.User;
@@ -49,6 +51,39 @@ public class UserService {
         userRepository.decreaseBytesInStorage(user.getId(), bytesToRemove);
     }
 
+    /**
+     * Reserves storage space for a file before it is received. The space is added
+     * to the bytesInStorage of the user right away, if it fits into the
+     * maxStorageSpace. The reservation is committed in it's own transaction, so
+     * the row lock of the UPDATE is not held while the file is received and
+     * concurrent uploads do not wait for each other.
+     * 
+     * @param user  The user uploading the file.
+     * @param bytes The size of the file.
+     * @throws FileManagementException When the user does not have enough free
+     *                                 storage space.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void reserveStorageSpace(User user, Long bytes) throws FileManagementException {
+        int updatedRows = userRepository.reserveBytesInStorage(user.getId(), bytes);
+        if (updatedRows == 0) {
+            throw new FileManagementException("Not enough free storage space for this file.");
+        }
+    }
+
+    /**
+     * Gives back storage space reserved with reserveStorageSpace, for a file which
+     * was not stored after all. Like the reservation, it is committed in it's own
+     * transaction - the transaction of the failed upload is rolled back.
+     * 
+     * @param user  The user who uploaded the file.
+     * @param bytes The size of the file.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void releaseStorageSpace(User user, Long bytes) {
+        userRepository.decreaseBytesInStorage(user.getId(), bytes);
+    }
+
     public Long getCurrentBytesInStorage(Long userId) {
         return userRepository.getCurrentBytesInStorage(userId)
             .orElseThrow(() -> new AuthenticationException("A user with this ID was not found."));
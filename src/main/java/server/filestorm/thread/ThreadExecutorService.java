@@ -29,6 +29,12 @@ public class ThreadExecutorService {
         });
     }
 
+    // For processes, which open their transactions them selves - e.g. uploads,
+    // which must not hold a pooled DB connection while the body is received.
+    public void executeWithoutTransaction(Runnable runnable) {
+        executor.execute(runnable);
+    }
+
     // Spring will initiate a roll-back automatically if an unhandled
     // RuntimeException occurs.
     // If the exception is handled - e.g. in a try-catch - then
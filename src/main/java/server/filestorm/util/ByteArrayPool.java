@@ -0,0 +1,55 @@
+package server.filestorm.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of byte arrays of one size, for buffers which are handed to stream
+ * APIs taking byte[]. At most maxPooledArrays are kept; additional arrays are
+ * allocated on the heap under load and dropped on release.
+ */
+public class ByteArrayPool {
+
+    private final int arraySize;
+
+    private final int maxPooledArrays;
+
+    private final ConcurrentLinkedQueue<byte[]> arrays = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooledArrays = new AtomicInteger();
+
+    public ByteArrayPool(int arraySize, int maxPooledArrays) {
+        this.arraySize = arraySize;
+        this.maxPooledArrays = maxPooledArrays;
+    }
+
+    /**
+     * @return An array of arraySize bytes. Must be given back with release.
+     */
+    public byte[] acquire() {
+        byte[] array = arrays.poll();
+        if (array == null) {
+            return new byte[arraySize];
+        }
+        pooledArrays.decrementAndGet();
+        return array;
+    }
+
+    /**
+     * Returns the array to the pool. The array must not be used afterwards.
+     */
+    public void release(byte[] array) {
+        if (array == null || array.length != arraySize) {
+            return;
+        }
+        if (pooledArrays.incrementAndGet() > maxPooledArrays) {
+            pooledArrays.decrementAndGet();
+            return;
+        }
+        arrays.offer(array);
+    }
+
+    public int getArraySize() {
+        return arraySize;
+    }
+}
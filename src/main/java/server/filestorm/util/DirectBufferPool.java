@@ -0,0 +1,65 @@
+package server.filestorm.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of direct ByteBuffers of one size. Direct buffers are written
+ * to a FileChannel without the extra copy a heap buffer needs, but they are
+ * expensive to allocate and only freed by the GC - so they are reused across
+ * uploads and at most maxBuffers of them are ever allocated. When all of them
+ * are in use, acquire falls back to a small heap buffer instead of pinning more
+ * direct memory. It is kept small, because the JDK writes a heap buffer through
+ * a temporary direct buffer of the same size, which it caches per thread.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+
+    private final int maxBuffers;
+
+    private final int fallbackBufferSize;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger allocatedBuffers = new AtomicInteger();
+
+    public DirectBufferPool(int bufferSize, int maxBuffers, int fallbackBufferSize) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.fallbackBufferSize = fallbackBufferSize;
+    }
+
+    /**
+     * @return A cleared direct buffer of bufferSize bytes or, when all of them
+     *         are in use, a heap buffer of fallbackBufferSize bytes. Must be given
+     *         back with release.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer.clear();
+        }
+        if (allocatedBuffers.incrementAndGet() <= maxBuffers) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        allocatedBuffers.decrementAndGet();
+        return ByteBuffer.allocate(fallbackBufferSize);
+    }
+
+    /**
+     * Returns the buffer to the pool. The buffer must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        // fallback buffers are left to the GC
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        buffers.offer(buffer.clear());
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
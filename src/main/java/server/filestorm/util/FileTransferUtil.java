@@ -0,0 +1,110 @@
+package server.filestorm.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FileTransferUtil {
+
+    /**
+     * Copies the source file into a new destination file with
+     * FileChannel.transferTo, so the bytes are moved by the kernel and are not
+     * copied through the JVM heap.
+     *
+     * @param source      The file to copy.
+     * @param destination The new file. Must not exist.
+     * @return The number of bytes copied.
+     * @throws IOException
+     */
+    public static long transfer(Path source, Path destination) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE)) {
+            return transfer(sourceChannel, destinationChannel);
+        }
+    }
+
+    /**
+     * Copies the inputStream into a new destination file. When the stream is backed
+     * by a file - as spooled multipart uploads are - FileChannel.transferTo is
+     * used.
+     *
+     * @param inputStream The stream to copy. Is not closed.
+     * @param destination The new file. Must not exist.
+     * @return The number of bytes copied.
+     * @throws IOException
+     */
+    public static long transfer(InputStream inputStream, Path destination) throws IOException {
+        try (FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            ReadableByteChannel sourceChannel = Channels.newChannel(inputStream);
+            if (sourceChannel instanceof FileChannel fileChannel) {
+                return transfer(fileChannel, destinationChannel);
+            }
+            // Files.newInputStream() streams are not FileInputStreams, but their
+            // transferTo() delegates to FileChannel.transferTo as well when the target
+            // is a channel backed stream.
+            return inputStream.transferTo(Channels.newOutputStream(destinationChannel));
+        }
+    }
+
+    /**
+     * Copies everything from the current position of the source channel until
+     * it's end into the destination channel.
+     *
+     * @return The number of bytes copied.
+     * @throws IOException
+     */
+    public static long transfer(FileChannel source, FileChannel destination) throws IOException {
+        long position = source.position();
+        long size = source.size();
+        while (position < size) {
+            // transferTo may copy less than requested; e.g. 2GB per call on Linux
+            long transferred = source.transferTo(position, size - position, destination);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+        }
+        long bytesCopied = position - source.position();
+        source.position(position);
+        return bytesCopied;
+    }
+
+    /**
+     * Reads from the source until the buffer is full or the source has ended, so
+     * the buffer can be written with one large write.
+     *
+     * @return False if the end of the source was reached, true otherwise.
+     * @throws IOException
+     */
+    public static boolean fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if both paths are located on the same file store (file system), so a
+     * file can be moved between them with a rename.
+     *
+     * @return True if both paths are on the same file store, false otherwise or if
+     *         one of them does not exist.
+     */
+    public static boolean isSameFileStore(Path first, Path second) {
+        try {
+            return Files.getFileStore(first).equals(Files.getFileStore(second));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
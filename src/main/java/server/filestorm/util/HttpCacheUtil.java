@@ -0,0 +1,82 @@
+package server.filestorm.util;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Evaluation of the HTTP validators sent with conditional requests (RFC 9110,
+ * section 13).
+ */
+public class HttpCacheUtil {
+
+    /**
+     * Checks if the client's cached representation is still current. If-None-Match
+     * takes precedence; If-Modified-Since is only evaluated without it.
+     * 
+     * @param ifNoneMatch     The If-None-Match request header, may be null.
+     * @param ifModifiedSince The If-Modified-Since request header, may be null.
+     * @param eTag            The current entity tag, quoted.
+     * @param lastModified    The current modification time in milliseconds.
+     * @return True if 304 Not Modified can be sent.
+     */
+    public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String eTag, long lastModified) {
+        if (ifNoneMatch != null) {
+            return matchesAnyWeakly(ifNoneMatch, eTag);
+        }
+        if (ifModifiedSince != null) {
+            long ifModifiedSinceSeconds = parseHttpDateSeconds(ifModifiedSince);
+            return ifModifiedSinceSeconds >= 0 && lastModified / 1000 <= ifModifiedSinceSeconds;
+        }
+        return false;
+    }
+
+    /**
+     * Checks an If-Range validator. Entity tags are compared strongly, dates must
+     * match the modification time exactly (in seconds, the precision of HTTP
+     * dates).
+     * 
+     * @param ifRange      The If-Range request header, may be null.
+     * @param eTag         The current, strong entity tag, quoted.
+     * @param lastModified The current modification time in milliseconds.
+     * @return True if there is no If-Range header or it still matches.
+     */
+    public static boolean isIfRangeFresh(String ifRange, String eTag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        String validator = ifRange.trim();
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            return validator.equals(eTag);
+        }
+        return parseHttpDateSeconds(validator) == lastModified / 1000;
+    }
+
+    /**
+     * Parses an HTTP date (IMF-fixdate), e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+     * 
+     * @return The seconds since the epoch or -1 if the date is invalid.
+     */
+    public static long parseHttpDateSeconds(String httpDate) {
+        try {
+            return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // "*" or a comma separated list of entity tags; the weak comparison ignores W/
+    private static boolean matchesAnyWeakly(String ifNoneMatch, String eTag) {
+        String opaqueTag = stripWeakPrefix(eTag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || stripWeakPrefix(candidate).equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeakPrefix(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+}
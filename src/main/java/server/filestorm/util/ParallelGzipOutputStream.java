@@ -0,0 +1,230 @@
+package server.filestorm.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream, which compresses on several cores like pigz. The input is cut
+ * into blocks and every block is compressed on the executor into a complete
+ * gzip member. RFC 1952 allows a file of several members and every gunzip
+ * decompresses them into one output. The members are written in input order;
+ * at most maxPendingBlocks are compressed at a time, after that write blocks
+ * until the oldest one is written, so the memory of a stream is bounded.
+ * 
+ * Not thread safe - like any OutputStream it is written by one thread.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, // magic
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time - unknown
+            0, // extra flags
+            (byte) 0xff // operating system - unknown
+    };
+
+    private final OutputStream outputStream;
+
+    private final ExecutorService executor;
+
+    private final int blockSize;
+
+    private final int maxPendingBlocks;
+
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+    private byte[] block;
+
+    private int blockLength = 0;
+
+    private int level;
+
+    private boolean hasWrittenMember = false;
+
+    private boolean isFinished = false;
+
+    /**
+     * @param outputStream     The stream receiving the gzip members.
+     * @param executor         Compresses the blocks.
+     * @param blockSize        The input bytes per member. Smaller blocks compress
+     *                         worse, as every member starts without history.
+     * @param maxPendingBlocks The blocks compressed at a time.
+     * @param level            The Deflater compression level.
+     */
+    public ParallelGzipOutputStream(OutputStream outputStream, ExecutorService executor, int blockSize,
+            int maxPendingBlocks, int level) {
+        this.outputStream = outputStream;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        this.level = level;
+        this.block = new byte[blockSize];
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Changes the compression level of the following bytes - e.g. to
+     * Deflater.NO_COMPRESSION for content, which is compressed already. The
+     * current block is ended, so it keeps it's level.
+     */
+    public void setLevel(int level) throws IOException {
+        if (level == this.level) {
+            return;
+        }
+        submitBlock();
+        this.level = level;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (isFinished) {
+            throw new IOException("The stream is finished.");
+        }
+        while (length > 0) {
+            int count = Math.min(length, blockSize - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the members compressed so far. Does not end the current block, as
+     * that would make the output depend on when the stream is flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pendingBlocks.isEmpty() && pendingBlocks.peek().isDone()) {
+            writeMember(pendingBlocks.poll());
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Compresses the remaining bytes and writes all members. The underlying
+     * stream is not closed.
+     */
+    public void finish() throws IOException {
+        if (isFinished) {
+            return;
+        }
+        submitBlock();
+        if (!hasWrittenMember && pendingBlocks.isEmpty()) {
+            // an empty input is still one member - a file without any is no gzip file
+            pendingBlocks.add(executor.submit(() -> compress(new byte[0], 0, level)));
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writeMember(pendingBlocks.poll());
+        }
+        isFinished = true;
+        block = null;
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            abort();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Cancels the blocks not written yet - e.g. when the client aborted the
+     * download.
+     */
+    public void abort() {
+        for (Future<byte[]> pendingBlock : pendingBlocks) {
+            pendingBlock.cancel(true);
+        }
+        pendingBlocks.clear();
+        isFinished = true;
+        block = null;
+    }
+
+    private void submitBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        if (pendingBlocks.size() >= maxPendingBlocks) {
+            writeMember(pendingBlocks.poll());
+        }
+        byte[] data = block;
+        int length = blockLength;
+        int blockLevel = level;
+        pendingBlocks.add(executor.submit(() -> compress(data, length, blockLevel)));
+        block = new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private void writeMember(Future<byte[]> pendingBlock) throws IOException {
+        try {
+            outputStream.write(pendingBlock.get());
+            hasWrittenMember = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IOException("Interrupted while compressing.", e);
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Could not compress.", e.getCause());
+        }
+    }
+
+    /**
+     * Compresses the data into a complete gzip member: header, raw deflate data,
+     * CRC-32 and the input size.
+     */
+    private static byte[] compress(byte[] data, int length, int level) {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+        member.writeBytes(GZIP_HEADER);
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(512, Math.min(length, 65536))];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                member.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeIntLittleEndian(member, (int) crc.getValue());
+        writeIntLittleEndian(member, length);
+        return member.toByteArray();
+    }
+
+    private static void writeIntLittleEndian(ByteArrayOutputStream outputStream, int value) {
+        outputStream.write(value);
+        outputStream.write(value >>> 8);
+        outputStream.write(value >>> 16);
+        outputStream.write(value >>> 24);
+    }
+}
@@ -1,6 +1,9 @@
 package server.filestorm.util;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -11,42 +14,81 @@ import server.filestorm.model.type.BulkManipulationData;
 
 public class StringUtil {
 
+    private static final Pattern PATTERN_COUNTER_NO_FILE_EXTENTION = Pattern.compile("(.*) \\((\\d+)\\)$");
+    private static final Pattern PATTERN_COUNTER_WITH_FILE_EXTENTION = Pattern.compile("(.*) \\((\\d+)\\)(\\..*)$");
+    private static final Pattern PATTERN_FILE_EXTENTION = Pattern.compile("(.*)(\\..*)$");
+    private static final Pattern PATTERN_FORBIDDEN_FILE_NAME_CHARS = Pattern.compile("\\\\|/|:|\\*|\\?|\"|<|>|\\|");
+    private static final Pattern PATTERN_LIKE_SPECIAL_CHARS = Pattern.compile("([\\\\%_])");
+
     /**
      * Makes the string unique by appending space with a counter like:" (1)". If a
-     * counter is present it is being incremented.
+     * counter is present it is being incremented, until the result is not one of
+     * the takenNames.
      * 
-     * @param arg The string to make unique. String.trim() is applied before
-     *            processing.
-     * @return The updated string.
+     * @param arg        The string to make unique. String.trim() is applied before
+     *                   processing.
+     * @param takenNames The names which are not available - e.g. the result of a
+     *                   query with the pattern from uniqueCounterLikePattern.
+     * @return The arg if it is not taken, the first free counter variant of it
+     *         otherwise.
      */
-    public static String appendUniqueCounter(String arg) {
+    public static String appendUniqueCounter(String arg, Collection<String> takenNames) {
         arg = arg.trim();
-        Pattern patternCounterNoFileExtention = Pattern.compile("(.*) \\((\\d+)\\)$");
-        Pattern patternCounterWithFileExtention = Pattern.compile("(.*) \\((\\d+)\\)(\\..*)$");
-        Pattern patternFileExtention = Pattern.compile("(.*)(\\..*)$");
+        Set<String> taken = new HashSet<>(takenNames);
+        if (!taken.contains(arg)) {
+            return arg;
+        }
+        String[] parts = splitUniqueCounter(arg);
+        int counter = Integer.parseInt(parts[1]) + 1;
+        String candidate = formatUniqueCounter(parts, counter);
+        while (taken.contains(candidate)) {
+            candidate = formatUniqueCounter(parts, ++counter);
+        }
+        return candidate;
+    }
 
-        Matcher matcherCounterNoFileExtention = patternCounterNoFileExtention.matcher(arg);
-        Matcher matcherCounterWithFileExtention = patternCounterWithFileExtention.matcher(arg);
-        Matcher matcherFileExtention = patternFileExtention.matcher(arg);
+    /**
+     * Builds a SQL LIKE pattern, which matches all names appendUniqueCounter can
+     * produce for the given string - e.g. "report (%).pdf" for "report.pdf". The
+     * pattern must be used with ESCAPE '\'.
+     * 
+     * @param arg The string to be made unique.
+     * @return The LIKE pattern.
+     */
+    public static String uniqueCounterLikePattern(String arg) {
+        String[] parts = splitUniqueCounter(arg);
+        return escapeLikePattern(parts[0]) + " (%)" + escapeLikePattern(parts[2]);
+    }
 
+    /**
+     * Splits the string into the part before the counter, the counter and the file
+     * extention. The counter is "0" if there is none and the file extention is ""
+     * if there is none.
+     */
+    private static String[] splitUniqueCounter(String arg) {
+        arg = arg.trim();
+        Matcher matcherCounterNoFileExtention = PATTERN_COUNTER_NO_FILE_EXTENTION.matcher(arg);
         if (matcherCounterNoFileExtention.matches()) {
-            String main = matcherCounterNoFileExtention.group(1);
-            String counter = matcherCounterNoFileExtention.group(2);
-            int counterIncreased = Integer.parseInt(counter) + 1;
-            return String.format("%1$s (%2$d)", main, counterIncreased);
-        } else if (matcherCounterWithFileExtention.matches()) {
-            String main = matcherCounterWithFileExtention.group(1);
-            String counter = matcherCounterWithFileExtention.group(2);
-            String fileExtention = matcherCounterWithFileExtention.group(3);
-            int counterIncreased = Integer.parseInt(counter) + 1;
-            return String.format("%1$s (%2$d)%3$s", main, counterIncreased, fileExtention);
-        } else if (matcherFileExtention.matches()) {
-            String main = matcherFileExtention.group(1);
-            String fileExtention = matcherFileExtention.group(2);
-            return String.format("%1$s (1)%2$s", main, fileExtention);
-        } else {
-            return arg + " (1)";
+            return new String[] { matcherCounterNoFileExtention.group(1), matcherCounterNoFileExtention.group(2), "" };
+        }
+        Matcher matcherCounterWithFileExtention = PATTERN_COUNTER_WITH_FILE_EXTENTION.matcher(arg);
+        if (matcherCounterWithFileExtention.matches()) {
+            return new String[] { matcherCounterWithFileExtention.group(1), matcherCounterWithFileExtention.group(2),
+                    matcherCounterWithFileExtention.group(3) };
+        }
+        Matcher matcherFileExtention = PATTERN_FILE_EXTENTION.matcher(arg);
+        if (matcherFileExtention.matches()) {
+            return new String[] { matcherFileExtention.group(1), "0", matcherFileExtention.group(2) };
         }
+        return new String[] { arg, "0", "" };
+    }
+
+    private static String formatUniqueCounter(String[] parts, int counter) {
+        return String.format("%1$s (%2$d)%3$s", parts[0], counter, parts[2]);
+    }
+
+    private static String escapeLikePattern(String arg) {
+        return PATTERN_LIKE_SPECIAL_CHARS.matcher(arg).replaceAll("\\\\$1");
     }
 
     /**
@@ -62,8 +104,8 @@ public class StringUtil {
         if (name == null || name.length() == 0) {
             throw new ProcessingException("The name is missing.");
         }
-        name = name
-                .replaceAll("\\\\|/|:|\\*|\\?|\"|<|>|\\|", "")
+        name = PATTERN_FORBIDDEN_FILE_NAME_CHARS.matcher(name)
+                .replaceAll("")
                 .trim();
         if (name.length() == 0) {
             throw new ProcessingException("The name is missing.");
@@ -0,0 +1,172 @@
+package server.filestorm.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Compares the route classification of the filters with the former per-request
+ * regex maps and checks that it is faster. Disabled by default; the
+ * classification it self is covered by RouteClassifierTest. Run with:
+ * ./mvnw test -Dtest=RouteClassifierBenchmark -Dfilestorm.benchmark=true
+ */
+@EnabledIfSystemProperty(named = "filestorm.benchmark", matches = "true")
+class RouteClassifierBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int MEASURED_ITERATIONS = 2000000;
+
+    private static volatile int blackhole;
+
+    // the routes of the controllers
+    private static final Object[][] ROUTES = {
+            { "/api/auth/login", RequestMethod.POST },
+            { "/api/auth/register", RequestMethod.POST },
+            { "/api/auth/logout", RequestMethod.GET },
+            { "/api/auth/validate-session", RequestMethod.GET },
+            { "/api/file", RequestMethod.POST },
+            { "/api/file/batch", RequestMethod.POST },
+            { "/api/file/{fileId}", RequestMethod.GET },
+            { "/api/file/{fileId}", RequestMethod.DELETE },
+            { "/api/file/{fileId}", RequestMethod.PATCH },
+            { "/api/file/bulk", RequestMethod.GET },
+            { "/api/file/bulk", RequestMethod.DELETE },
+            { "/api/search/file", RequestMethod.GET },
+            { "/api/public/file/{fileId}/download", RequestMethod.GET },
+            { "/api/public/file/{fileId}/data", RequestMethod.GET },
+            { "/api/directory", RequestMethod.POST },
+            { "/api/directory/{directoryId}", RequestMethod.GET },
+            { "/api/directory/{directoryId}", RequestMethod.DELETE },
+            { "/api/directory/{directoryId}", RequestMethod.PATCH },
+            { "/api/upload-session", RequestMethod.POST },
+            { "/api/upload-session/{sessionId}", RequestMethod.GET },
+            { "/api/upload-session/{sessionId}", RequestMethod.PATCH },
+            { "/api/upload-session/{sessionId}", RequestMethod.DELETE },
+            { "/api/upload-session/{sessionId}/finalize", RequestMethod.POST },
+            { "/api/upload-session/{sessionId}/part/{partNumber}", RequestMethod.PUT },
+            { "/api/upload-session/{sessionId}/complete", RequestMethod.POST },
+            { "/api/file-sharing/share_with", RequestMethod.GET },
+            { "/api/file-sharing/share_with", RequestMethod.POST },
+            { "/api/file-sharing/share_with", RequestMethod.PATCH },
+            { "/api/file-sharing/share_option", RequestMethod.PATCH },
+            { "/api/file-sharing/shared_with_me", RequestMethod.GET },
+            { "/api/file-sharing/me_sharing", RequestMethod.GET },
+            { "/api/file-sharing/file", RequestMethod.GET },
+            { "/api/file-sharing/file/bulk", RequestMethod.GET },
+            { "/api/users", RequestMethod.GET },
+            { "/api/favorite", RequestMethod.GET },
+            { "/api/favorite/{fileId}", RequestMethod.POST },
+            { "/api/favorite/{fileId}", RequestMethod.DELETE },
+            { "/api/user-data/bytesInStorage", RequestMethod.GET },
+            { "/api/user-data/username", RequestMethod.GET },
+    };
+
+    private static final List<String[]> REQUESTS = List.of(
+            new String[] { "GET", "/api/file/1234" },
+            new String[] { "GET", "/api/directory/987" },
+            new String[] { "PUT", "/api/upload-session/55/part/3" },
+            new String[] { "POST", "/api/auth/login" },
+            new String[] { "GET", "/api/public/file/77/download" },
+            new String[] { "GET", "/api/file-sharing/shared_with_me" },
+            new String[] { "DELETE", "/api/favorite/12" },
+            new String[] { "GET", "/storage/work/projects" },
+            new String[] { "GET", "/assets/index-4f2a9c.js" },
+            new String[] { "GET", "/assets/font.woff2" });
+
+    @Test
+    void compareWithRegexMaps() {
+        RouteClassifier routeClassifier = new RouteClassifier();
+        for (Object[] route : ROUTES) {
+            routeClassifier.addRoute((String) route[0], List.of((RequestMethod) route[1]));
+        }
+
+        for (String[] request : REQUESTS) {
+            assertEquals(isProtectedWithRegexMap(request[0], request[1]),
+                    routeClassifier.isProtected(request[0], request[1]), request[0] + " " + request[1]);
+            assertEquals(isClientRouteWithRegex(request[1]), routeClassifier.isClientRoute(request[1]), request[1]);
+        }
+
+        long regexNanos = time(() -> {
+            int count = 0;
+            for (String[] request : REQUESTS) {
+                count += isProtectedWithRegexMap(request[0], request[1]) ? 1 : 0;
+                count += isClientRouteWithRegex(request[1]) ? 1 : 0;
+            }
+            return count;
+        });
+        long trieNanos = time(() -> {
+            int count = 0;
+            for (String[] request : REQUESTS) {
+                count += routeClassifier.isProtected(request[0], request[1]) ? 1 : 0;
+                count += routeClassifier.isClientRoute(request[1]) ? 1 : 0;
+            }
+            return count;
+        });
+
+        long requests = (long) MEASURED_ITERATIONS * REQUESTS.size();
+        assertTrue(trieNanos < regexNanos, String.format(
+                "The route classifier took %1$d ns/request, the regex maps %2$d ns/request.",
+                trieNanos / requests, regexNanos / requests));
+    }
+
+    // The former RouteGuard implementation.
+    private static boolean isProtectedWithRegexMap(String httpMethod, String reqPath) {
+        HashMap<String, String> endpointMap = new HashMap<>();
+        endpointMap.put("/api/file.*", "^GET|POST|DELETE|PATCH$");
+        endpointMap.put("/api/directory.*", "^GET|POST|DELETE|PATCH$");
+        endpointMap.put("/api/search.*", "^GET$");
+        endpointMap.put("/api/upload-session.*", "^GET|POST|PUT|DELETE|PATCH$");
+        endpointMap.put("/api/file-sharing.*", "^GET|POST|PATCH$");
+        endpointMap.put("/api/users", "^GET$");
+        endpointMap.put("/api/favorite.*", "^GET|POST|DELETE$");
+        endpointMap.put("/api/user-data.*", "^GET$");
+
+        Iterator<Entry<String, String>> iterator = endpointMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<String, String> entry = iterator.next();
+            if (reqPath.matches(entry.getKey()) && httpMethod.matches(entry.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The former NonExistentPathHandler implementation.
+    private static boolean isClientRouteWithRegex(String reqPath) {
+        Pattern pattern = Pattern
+                .compile("^(/api.*|/.*\\.(js|css|png|jpg|jpeg|svg|ico|woff|woff[0-9]*|json|csv|txt|webp))$",
+                        Pattern.MULTILINE);
+        Matcher matcher = pattern.matcher(reqPath);
+        return !matcher.matches() && !reqPath.equals("/");
+    }
+
+    private static long time(Workload workload) {
+        int sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += workload.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            sink += workload.run();
+        }
+        long nanos = System.nanoTime() - start;
+        // keeps the results alive, so the loops are not eliminated
+        blackhole = sink;
+        return nanos;
+    }
+
+    @FunctionalInterface
+    private interface Workload {
+        int run();
+    }
+}
@@ -0,0 +1,95 @@
+package server.filestorm.filter;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+class RouteClassifierTest {
+
+    private RouteClassifier routeClassifier;
+
+    @BeforeEach
+    void addRoutes() {
+        routeClassifier = new RouteClassifier();
+        routeClassifier.addRoute("/api/auth/login", List.of(RequestMethod.POST));
+        routeClassifier.addRoute("/api/file/{fileId}", List.of(RequestMethod.GET, RequestMethod.DELETE));
+        routeClassifier.addRoute("/api/file/bulk", List.of(RequestMethod.GET, RequestMethod.DELETE));
+        routeClassifier.addRoute("/api/public/file/{fileId}/download", List.of(RequestMethod.GET));
+        routeClassifier.addRoute("/api/upload-session/{sessionId}/part/{partNumber}", List.of(RequestMethod.PUT));
+        routeClassifier.addRoute("/api/users", List.of(RequestMethod.GET));
+    }
+
+    @Test
+    void protectedRoutesNeedASession() {
+        assertTrue(routeClassifier.isProtected("GET", "/api/file/1234"));
+        assertTrue(routeClassifier.isProtected("DELETE", "/api/file/1234"));
+        assertTrue(routeClassifier.isProtected("GET", "/api/file/bulk"));
+        assertTrue(routeClassifier.isProtected("PUT", "/api/upload-session/55/part/3"));
+        assertTrue(routeClassifier.isProtected("get", "/api/users"));
+    }
+
+    @Test
+    void publicRoutesDoNotNeedASession() {
+        assertFalse(routeClassifier.isProtected("POST", "/api/auth/login"));
+        assertFalse(routeClassifier.isProtected("GET", "/api/public/file/77/download"));
+    }
+
+    @Test
+    void unknownApiPathsNeedASessionOutsideOfThePublicPrefixes() {
+        assertTrue(routeClassifier.isProtected("GET", "/api/unknown"));
+        assertTrue(routeClassifier.isProtected("GET", "/api/file/1234/unknown"));
+        assertTrue(routeClassifier.isProtected("GET", "/api/upload-session/55/part"));
+        assertFalse(routeClassifier.isProtected("GET", "/api/auth/unknown"));
+        assertFalse(routeClassifier.isProtected("GET", "/api/public/unknown"));
+    }
+
+    @Test
+    void methodsWithoutAHandlerAreLeftToTheDispatcher() {
+        assertFalse(routeClassifier.isProtected("POST", "/api/users"));
+        assertFalse(routeClassifier.isProtected("PATCH", "/api/file/1234"));
+    }
+
+    @Test
+    void headIsClassifiedLikeGet() {
+        assertTrue(routeClassifier.isProtected("HEAD", "/api/file/1234"));
+        assertFalse(routeClassifier.isProtected("HEAD", "/api/public/file/77/download"));
+        assertTrue(routeClassifier.isProtected("HEAD", "/api/unknown"));
+    }
+
+    @Test
+    void optionsDoesNotNeedASession() {
+        assertFalse(routeClassifier.isProtected("OPTIONS", "/api/file/1234"));
+        assertFalse(routeClassifier.isProtected("OPTIONS", "/api/unknown"));
+    }
+
+    @Test
+    void apiPathsAreProtectedBeforeTheRoutesAreAdded() {
+        RouteClassifier emptyRouteClassifier = new RouteClassifier();
+        assertTrue(emptyRouteClassifier.isProtected("GET", "/api/file/1234"));
+        assertFalse(emptyRouteClassifier.isProtected("POST", "/api/auth/login"));
+        assertFalse(emptyRouteClassifier.isProtected("OPTIONS", "/api/file/1234"));
+    }
+
+    @Test
+    void nonApiPathsDoNotNeedASession() {
+        assertFalse(routeClassifier.isProtected("GET", "/storage/work/projects"));
+        assertFalse(routeClassifier.isProtected("GET", "/assets/index-4f2a9c.js"));
+        assertFalse(routeClassifier.isProtected("GET", "/"));
+    }
+
+    @Test
+    void clientRoutesAreNeitherApiPathsNorStaticFiles() {
+        assertTrue(routeClassifier.isClientRoute("/storage/work/projects"));
+        assertTrue(routeClassifier.isClientRoute("/storage/report.final"));
+        assertTrue(routeClassifier.isClientRoute("/storage/font.woffx"));
+        assertFalse(routeClassifier.isClientRoute("/"));
+        assertFalse(routeClassifier.isClientRoute("/api/file/1234"));
+        assertFalse(routeClassifier.isClientRoute("/assets/index-4f2a9c.js"));
+        assertFalse(routeClassifier.isClientRoute("/assets/font.woff2"));
+    }
+}
@@ -0,0 +1,112 @@
+package server.filestorm.service;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import server.filestorm.config.ServerConfigurationProperties;
+
+class BandwidthSchedulerTest {
+
+    // 10MB/s
+    private static final String GLOBAL_MBIT_PER_S = "80";
+    private static final long GLOBAL_BYTES_PER_S = 10000000;
+
+    @Test
+    void sharesBandwidthByWeightRegardlessOfWriteSize() throws Exception {
+        BandwidthScheduler scheduler = newScheduler();
+        AtomicBoolean isRunning = new AtomicBoolean(true);
+        AtomicLong interactiveBytes = new AtomicLong();
+        AtomicLong bulkBytes = new AtomicLong();
+
+        // the channel of a single file download writes 8KB at a time, an archive 1MB
+        Thread interactive = startStream(scheduler, BandwidthScheduler.DOWNLOAD_WEIGHT, 8192, interactiveBytes,
+                isRunning);
+        Thread bulk = startStream(scheduler, BandwidthScheduler.BULK_DOWNLOAD_WEIGHT, 1048576, bulkBytes,
+                isRunning);
+
+        // the burst of the bucket is spent within the first quarter second
+        Thread.sleep(500);
+        long interactiveStart = interactiveBytes.get();
+        long bulkStart = bulkBytes.get();
+        Thread.sleep(1500);
+        long interactiveMeasured = interactiveBytes.get() - interactiveStart;
+        long bulkMeasured = bulkBytes.get() - bulkStart;
+        isRunning.set(false);
+        interactive.join();
+        bulk.join();
+
+        double share = (double) interactiveMeasured / bulkMeasured;
+        assertTrue(share > 2.5 && share < 6,
+                "The interactive stream should get about 4 times the bandwidth, got " + share);
+
+        double bytesPerSecond = (interactiveMeasured + bulkMeasured) / 1.5;
+        assertTrue(bytesPerSecond > GLOBAL_BYTES_PER_S * 0.7 && bytesPerSecond < GLOBAL_BYTES_PER_S * 1.3,
+                "The streams should use the global limit, got " + bytesPerSecond + " bytes per second");
+    }
+
+    @Test
+    void equalWeightsShareEqually() throws Exception {
+        BandwidthScheduler scheduler = newScheduler();
+        AtomicBoolean isRunning = new AtomicBoolean(true);
+        AtomicLong smallWritesBytes = new AtomicLong();
+        AtomicLong largeWritesBytes = new AtomicLong();
+
+        Thread smallWrites = startStream(scheduler, BandwidthScheduler.DOWNLOAD_WEIGHT, 8192, smallWritesBytes,
+                isRunning);
+        Thread largeWrites = startStream(scheduler, BandwidthScheduler.DOWNLOAD_WEIGHT, 1048576, largeWritesBytes,
+                isRunning);
+
+        Thread.sleep(500);
+        long smallWritesStart = smallWritesBytes.get();
+        long largeWritesStart = largeWritesBytes.get();
+        Thread.sleep(1500);
+        long smallWritesMeasured = smallWritesBytes.get() - smallWritesStart;
+        long largeWritesMeasured = largeWritesBytes.get() - largeWritesStart;
+        isRunning.set(false);
+        smallWrites.join();
+        largeWrites.join();
+
+        double share = (double) smallWritesMeasured / largeWritesMeasured;
+        assertTrue(share > 0.6 && share < 1.6, "Equal weights should share equally, got " + share);
+    }
+
+    private static BandwidthScheduler newScheduler() {
+        ServerConfigurationProperties confProps = new ServerConfigurationProperties();
+        confProps.setBandwidthGlobalMbitPerS(GLOBAL_MBIT_PER_S);
+        confProps.setBandwidthPerUserMbitPerS("0");
+        return new BandwidthScheduler(confProps);
+    }
+
+    private static Thread startStream(BandwidthScheduler scheduler, int weight, int writeSize, AtomicLong sentBytes,
+            AtomicBoolean isRunning) {
+        Thread thread = new Thread(() -> {
+            OutputStream counting = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    sentBytes.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    sentBytes.addAndGet(len);
+                }
+            };
+            byte[] buffer = new byte[writeSize];
+            try (OutputStream throttled = scheduler.throttle(counting, null, weight)) {
+                while (isRunning.get()) {
+                    throttled.write(buffer, 0, buffer.length);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
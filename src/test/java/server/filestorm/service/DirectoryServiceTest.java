@@ -0,0 +1,236 @@
+package server.filestorm.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.KeysetScrollPosition;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Window;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import server.filestorm.exception.FileManagementException;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.Directory;
+import server.filestorm.model.entity.User;
+import server.filestorm.model.repository.ChunkRepository;
+import server.filestorm.model.repository.DirectoryRepository;
+import server.filestorm.model.type.fileManagement.ChunkReference;
+import server.filestorm.model.type.fileManagement.DirectoryPage;
+import server.filestorm.model.type.fileManagement.DirectoryReference;
+
+class DirectoryServiceTest {
+
+    private DirectoryService directoryService;
+
+    private DirectoryRepository directoryRepository;
+
+    private ChunkRepository chunkRepository;
+
+    private User owner;
+
+    private Directory directory;
+
+    @BeforeEach
+    void mockRepositories() {
+        directoryRepository = mock(DirectoryRepository.class);
+        chunkRepository = mock(ChunkRepository.class);
+        directoryService = new DirectoryService();
+        ReflectionTestUtils.setField(directoryService, "directoryRepository", directoryRepository);
+        ReflectionTestUtils.setField(directoryService, "chunkRepository", chunkRepository);
+
+        owner = new User();
+        ReflectionTestUtils.setField(owner, "id", 1L);
+        directory = newDirectory(10L, "root", null);
+        when(directoryRepository.findDirectoryForUserById(10L, owner)).thenReturn(Optional.of(directory));
+    }
+
+    @Test
+    void continuesWithTheFilesAfterTheLastSubdirectory() {
+        Directory alpha = newDirectory(11L, "alpha", directory);
+        Directory beta = newDirectory(12L, "beta", directory);
+        Directory gamma = newDirectory(13L, "gamma", directory);
+        Chunk first = newChunk(21L, "a.txt", 100L, "text/plain");
+        Chunk second = newChunk(22L, "b.txt", 200L, "text/plain");
+        ArgumentCaptor<ScrollPosition> directoryPosition = ArgumentCaptor.forClass(ScrollPosition.class);
+        ArgumentCaptor<ScrollPosition> chunkPosition = ArgumentCaptor.forClass(ScrollPosition.class);
+
+        when(directoryRepository.findByParentDirectory(eq(directory), any(), any(), any()))
+                .thenReturn(window(List.of(alpha, beta), true));
+        DirectoryPage firstPage = findPage("name", "asc", 2, null, null);
+        assertEquals(List.of(11L, 12L), directoryIds(firstPage));
+        assertEquals(0, firstPage.getHydratedChunks().length);
+        assertEquals("0|name|asc|12|beta", decode(firstPage.getNextCursor()));
+        verify(chunkRepository, never()).findByDirectory(any(), any(), any(), any());
+
+        // the last subdirectory, then the first file on the same page
+        when(directoryRepository.findByParentDirectory(eq(directory), directoryPosition.capture(), any(), any()))
+                .thenReturn(window(List.of(gamma), false));
+        when(chunkRepository.findByDirectory(eq(directory), chunkPosition.capture(), any(), any()))
+                .thenReturn(window(List.of(first), true));
+        DirectoryPage secondPage = findPage("name", "asc", 2, firstPage.getNextCursor(), null);
+        assertEquals(Map.of("name", "beta", "id", 12L), keys(directoryPosition.getValue()));
+        assertTrue(chunkPosition.getValue().isInitial(), "The files should start at the beginning");
+        assertEquals(List.of(13L), directoryIds(secondPage));
+        assertEquals(List.of(21L), chunkIds(secondPage));
+        assertEquals("1|name|asc|21|a.txt", decode(secondPage.getNextCursor()));
+
+        // the subdirectories are not read again
+        when(chunkRepository.findByDirectory(eq(directory), chunkPosition.capture(), any(), any()))
+                .thenReturn(window(List.of(second), false));
+        DirectoryPage thirdPage = findPage("name", "asc", 2, secondPage.getNextCursor(), null);
+        verify(directoryRepository, times(2)).findByParentDirectory(any(), any(), any(), any());
+        assertEquals(Map.of("originalFileName", "a.txt", "id", 21L), keys(chunkPosition.getValue()));
+        assertEquals(0, thirdPage.getSubdirectories().length);
+        assertEquals(List.of(22L), chunkIds(thirdPage));
+        assertNull(thirdPage.getNextCursor());
+    }
+
+    @Test
+    void startsTheFilesOnTheNextPageWhenTheSubdirectoriesFillThePage() {
+        Directory alpha = newDirectory(11L, "alpha", directory);
+        Chunk first = newChunk(21L, "a.txt", 100L, "text/plain");
+        ArgumentCaptor<ScrollPosition> chunkPosition = ArgumentCaptor.forClass(ScrollPosition.class);
+
+        when(directoryRepository.findByParentDirectory(eq(directory), any(), any(), any()))
+                .thenReturn(window(List.of(alpha), false));
+        DirectoryPage firstPage = findPage("name", "asc", 1, null, null);
+        assertEquals(List.of(11L), directoryIds(firstPage));
+        assertEquals("1|name|asc", decode(firstPage.getNextCursor()));
+        verify(chunkRepository, never()).findByDirectory(any(), any(), any(), any());
+
+        when(chunkRepository.findByDirectory(eq(directory), chunkPosition.capture(), any(), any()))
+                .thenReturn(window(List.of(first), false));
+        DirectoryPage secondPage = findPage("name", "asc", 1, firstPage.getNextCursor(), null);
+        assertTrue(chunkPosition.getValue().isInitial(), "The files should start at the beginning");
+        assertEquals(0, secondPage.getSubdirectories().length);
+        assertEquals(List.of(21L), chunkIds(secondPage));
+        assertNull(secondPage.getNextCursor());
+    }
+
+    @Test
+    void sortsDescendingAndKeepsNumericKeys() {
+        Chunk large = newChunk(21L, "large.bin", 5000L, "application/octet-stream");
+        ArgumentCaptor<Sort> directorySort = ArgumentCaptor.forClass(Sort.class);
+        ArgumentCaptor<Sort> chunkSort = ArgumentCaptor.forClass(Sort.class);
+        ArgumentCaptor<ScrollPosition> chunkPosition = ArgumentCaptor.forClass(ScrollPosition.class);
+
+        when(directoryRepository.findByParentDirectory(eq(directory), any(), directorySort.capture(), any()))
+                .thenReturn(window(List.of(), false));
+        when(chunkRepository.findByDirectory(eq(directory), any(), chunkSort.capture(), any()))
+                .thenReturn(window(List.of(large), true));
+        DirectoryPage firstPage = findPage("size", "desc", 1, null, null);
+        // subdirectories have no size and are sorted by name
+        assertEquals(Sort.by(Sort.Direction.DESC, "name", "id"), directorySort.getValue());
+        assertEquals(Sort.by(Sort.Direction.DESC, "sizeBytes", "id"), chunkSort.getValue());
+        assertEquals("1|size|desc|21|5000", decode(firstPage.getNextCursor()));
+
+        when(chunkRepository.findByDirectory(eq(directory), chunkPosition.capture(), any(), any()))
+                .thenReturn(window(List.of(), false));
+        findPage("size", "desc", 1, firstPage.getNextCursor(), null);
+        assertEquals(Map.of("sizeBytes", 5000L, "id", 21L), keys(chunkPosition.getValue()));
+    }
+
+    @Test
+    void rejectsACursorOfAnotherListing() {
+        String cursor = encode("1|name|asc|21|a.txt");
+
+        assertThrows(FileManagementException.class, () -> findPage("size", "asc", 10, cursor, null));
+        assertThrows(FileManagementException.class, () -> findPage("name", "desc", 10, cursor, null));
+        assertThrows(FileManagementException.class, () -> findPage("name", "asc", 10, encode("2|name|asc"), null));
+        assertThrows(FileManagementException.class, () -> findPage("name", "asc", 10, encode("1|name"), null));
+        assertThrows(FileManagementException.class,
+                () -> findPage("size", "asc", 10, encode("1|size|asc|21|large"), null));
+        assertThrows(FileManagementException.class, () -> findPage("name", "asc", 10, "not|base64", null));
+    }
+
+    @Test
+    void filtersFilesByMimeTypeWithoutSubdirectories() {
+        Chunk image = newChunk(21L, "photo.jpg", 100L, "image/jpeg");
+        ArgumentCaptor<ScrollPosition> chunkPosition = ArgumentCaptor.forClass(ScrollPosition.class);
+
+        when(chunkRepository.findByDirectoryAndMimeTypeStartingWith(eq(directory), eq("image/"),
+                chunkPosition.capture(), any(), any())).thenReturn(window(List.of(image), true));
+        DirectoryPage firstPage = findPage("name", "asc", 1, null, "image/");
+        verify(directoryRepository, never()).findByParentDirectory(any(), any(), any(), any());
+        verify(chunkRepository, never()).findByDirectory(any(), any(), any(), any());
+        assertTrue(chunkPosition.getValue().isInitial(), "The files should start at the beginning");
+        assertEquals(0, firstPage.getSubdirectories().length);
+        assertEquals(List.of(21L), chunkIds(firstPage));
+        assertEquals("1|name|asc|21|photo.jpg", decode(firstPage.getNextCursor()));
+
+        findPage("name", "asc", 1, firstPage.getNextCursor(), "image/");
+        assertEquals(Map.of("originalFileName", "photo.jpg", "id", 21L), keys(chunkPosition.getValue()));
+
+        // the subdirectories are not part of a filtered listing
+        assertThrows(FileManagementException.class,
+                () -> findPage("name", "asc", 1, encode("0|name|asc|11|alpha"), "image/"));
+    }
+
+    private DirectoryPage findPage(String sort, String order, Integer limit, String cursor, String mimeType) {
+        return directoryService.findDirectoryPageForUserById(10L, owner, sort, order, limit, cursor, mimeType);
+    }
+
+    private Directory newDirectory(Long id, String name, Directory parentDirectory) {
+        Directory newDirectory = new Directory();
+        ReflectionTestUtils.setField(newDirectory, "id", id);
+        newDirectory.setOwner(owner);
+        newDirectory.setName(name);
+        newDirectory.setParentDirectory(parentDirectory);
+        return newDirectory;
+    }
+
+    private Chunk newChunk(Long id, String originalFileName, Long sizeBytes, String mimeType) {
+        Chunk chunk = new Chunk();
+        ReflectionTestUtils.setField(chunk, "id", id);
+        chunk.setOwner(owner);
+        chunk.setOriginalFileName(originalFileName);
+        chunk.setSizeBytes(sizeBytes);
+        chunk.setMimeType(mimeType);
+        chunk.setDirectory(directory);
+        return chunk;
+    }
+
+    private static <T> Window<T> window(List<T> content, boolean hasNext) {
+        return Window.from(content, index -> ScrollPosition.keyset(), hasNext);
+    }
+
+    private static Map<String, Object> keys(ScrollPosition position) {
+        return ((KeysetScrollPosition) position).getKeys();
+    }
+
+    private static List<Long> directoryIds(DirectoryPage page) {
+        return Arrays.stream(page.getSubdirectories()).map(DirectoryReference::getId).toList();
+    }
+
+    private static List<Long> chunkIds(DirectoryPage page) {
+        return Arrays.stream(page.getHydratedChunks()).map(ChunkReference::getId).toList();
+    }
+
+    private static String encode(String cursor) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String cursor) {
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,235 @@
+package server.filestorm.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import server.filestorm.config.ServerConfigurationProperties;
+import server.filestorm.model.entity.Chunk;
+import server.filestorm.model.entity.Directory;
+import server.filestorm.model.type.fileManagement.TarArchivePlan;
+import server.filestorm.model.type.fileManagement.TarEntryPlan;
+
+class TarArchiveServiceTest {
+
+    private static final long LAST_MODIFIED = 1700000000000L;
+
+    // the year 5138 - beyond the 11 octal digits of the mtime field
+    private static final long FAR_FUTURE = 100000000000000L;
+
+    private static final String LONG_NAME = "a".repeat(150) + ".txt";
+
+    @TempDir
+    Path tempDir;
+
+    private TarArchiveService tarArchiveService;
+
+    private Directory directory;
+
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    private final List<Chunk> chunksInDirectory = new ArrayList<>();
+
+    @BeforeEach
+    void planFiles() throws Exception {
+        chunks.add(newChunk(1L, "empty.txt", 0, LAST_MODIFIED));
+        chunks.add(newChunk(2L, "one-byte.txt", 1, LAST_MODIFIED));
+        chunks.add(newChunk(3L, "one-record.bin", 512, LAST_MODIFIED));
+        chunks.add(newChunk(4L, LONG_NAME, 1000, LAST_MODIFIED));
+        chunks.add(newChunk(5L, "future.bin", 70000, FAR_FUTURE));
+        // larger than a prefetch buffer, continued from the channel
+        chunks.add(newChunk(6L, "large.bin", 1500000, LAST_MODIFIED));
+
+        directory = new Directory();
+        directory.setName("docs");
+        directory.setLastModified(LAST_MODIFIED);
+        ReflectionTestUtils.setField(directory, "id", 10L);
+        Chunk inDirectory = newChunk(7L, "notes.txt", 3000, LAST_MODIFIED);
+        inDirectory.setDirectory(directory);
+        chunksInDirectory.add(inDirectory);
+
+        FileSystemService fileSystemService = mock(FileSystemService.class);
+        when(fileSystemService.getReadableFilePath(any(Chunk.class)))
+                .thenAnswer(invocation -> Path.of(invocation.getArgument(0, Chunk.class).getAbsoluteFilePath()));
+        DirectoryService directoryService = mock(DirectoryService.class);
+        when(directoryService.bulkCheckDirectoryOwnershipAndCollect(any(), any()))
+                .thenReturn(new Directory[] { directory });
+        when(directoryService.extractDirectoriesFromDirAndSubDirs(directory)).thenReturn(new ArrayList<>());
+        when(directoryService.extractChunksFromDirAndSubDirs(directory))
+                .thenReturn(new ArrayList<>(chunksInDirectory));
+
+        ServerConfigurationProperties confProps = new ServerConfigurationProperties();
+        confProps.setTarPrefetchEntries("2");
+        confProps.setArchiveGzipThreads("2");
+        confProps.setArchiveGzipLevel("6");
+        tarArchiveService = new TarArchiveService(fileSystemService, directoryService, confProps);
+    }
+
+    @AfterEach
+    void shutdown() {
+        tarArchiveService.shutdown();
+    }
+
+    @Test
+    void writesTheBytesOfTarArchiveOutputStream() throws Exception {
+        TarArchivePlan plan = planArchive();
+        byte[] expected = writeReference();
+
+        assertEquals(expected.length, plan.getSizeBytes());
+        assertArrayEquals(expected, writeRange(plan, 0, plan.getSizeBytes()));
+    }
+
+    @Test
+    void rendersGnuLongNamesAndPaxHeadersForBigNumbers() throws Exception {
+        TarArchivePlan plan = planArchive();
+
+        TarEntryPlan longName = findEntry(plan, LONG_NAME);
+        assertTrue(longName.getHeader().length > TarArchivePlan.RECORD_SIZE);
+        assertTrue(new String(longName.getHeader(), 0, 100, StandardCharsets.US_ASCII)
+                .startsWith("././@LongLink"));
+
+        TarEntryPlan future = findEntry(plan, "future.bin");
+        assertTrue(future.getHeader().length > TarArchivePlan.RECORD_SIZE);
+        // the type flag of the first record marks a PAX extended header
+        assertEquals('x', future.getHeader()[156]);
+    }
+
+    @Test
+    void writesAnyRangeOfTheArchive() throws Exception {
+        TarArchivePlan plan = planArchive();
+        byte[] expected = writeReference();
+        long size = plan.getSizeBytes();
+
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[] { 0, 1 });
+        ranges.add(new long[] { 100, 300 });
+        ranges.add(new long[] { size - TarArchivePlan.END_OF_ARCHIVE_SIZE - 10, 20 });
+        ranges.add(new long[] { size - 1, 1 });
+        ranges.add(new long[] { size / 2, size - size / 2 });
+        for (TarEntryPlan entry : plan.getEntries()) {
+            // the header alone, the first byte of the content and across the next header
+            ranges.add(new long[] { entry.getOffset(), entry.getHeader().length });
+            ranges.add(new long[] { entry.getContentOffset(), 1 });
+            ranges.add(new long[] { entry.getEndOffset() - 1, TarArchivePlan.RECORD_SIZE + 2 });
+            ranges.add(new long[] { entry.getContentOffset() + 7, entry.getSizeBytes() / 3 + 1 });
+        }
+
+        for (long[] range : ranges) {
+            long start = range[0];
+            long length = Math.min(range[1], size - start);
+            assertArrayEquals(Arrays.copyOfRange(expected, (int) start, (int) (start + length)),
+                    writeRange(plan, start, length), "Range " + start + "+" + length);
+        }
+    }
+
+    @Test
+    void findsTheEntryAtItsBoundaries() throws Exception {
+        TarArchivePlan plan = planArchive();
+        List<TarEntryPlan> entries = plan.getEntries();
+
+        for (int i = 0; i < entries.size(); i++) {
+            TarEntryPlan entry = entries.get(i);
+            assertEquals(i, plan.findEntryIndex(entry.getOffset()));
+            assertEquals(i, plan.findEntryIndex(entry.getContentOffset() - 1));
+            // an entry without content ends with it's header - the next entry starts there
+            if (entry.getSizeBytes() > 0) {
+                assertEquals(i, plan.findEntryIndex(entry.getContentOffset()));
+                assertEquals(i, plan.findEntryIndex(entry.getEndOffset() - 1));
+            }
+        }
+        long endOfArchive = plan.getSizeBytes() - TarArchivePlan.END_OF_ARCHIVE_SIZE;
+        assertEquals(entries.get(entries.size() - 1).getEndOffset(), endOfArchive);
+        assertEquals(entries.size(), plan.findEntryIndex(endOfArchive));
+        assertEquals(entries.size(), plan.findEntryIndex(plan.getSizeBytes() - 1));
+    }
+
+    private Chunk newChunk(Long id, String originalFileName, int sizeBytes, long lastModified) throws IOException {
+        byte[] content = new byte[sizeBytes];
+        new Random(id).nextBytes(content);
+        Path file = Files.write(tempDir.resolve(id + ".bin"), content);
+
+        Chunk chunk = new Chunk();
+        ReflectionTestUtils.setField(chunk, "id", id);
+        ReflectionTestUtils.setField(chunk, "lastModified", lastModified);
+        chunk.setOriginalFileName(originalFileName);
+        chunk.setSizeBytes((long) sizeBytes);
+        chunk.setMimeType("application/octet-stream");
+        chunk.setAbsoluteFilePath(file.toString());
+        return chunk;
+    }
+
+    private TarArchivePlan planArchive() {
+        return tarArchiveService.planArchive(chunks.toArray(new Chunk[0]), new Long[] { directory.getId() }, null);
+    }
+
+    private byte[] writeRange(TarArchivePlan plan, long start, long length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tarArchiveService.writeRange(plan, out, start, length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the same entries in the planned order with TarArchiveOutputStream,
+     * one record per block, so nothing is padded after the end records.
+     */
+    private byte[] writeReference() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(out, TarArchivePlan.RECORD_SIZE,
+                StandardCharsets.UTF_8.name())) {
+            tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+            tarOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            for (Chunk chunk : chunks) {
+                writeReferenceFile(tarOutputStream, "", chunk);
+            }
+            TarArchiveEntry directoryEntry = new TarArchiveEntry("docs/");
+            directoryEntry.setMode(0755);
+            directoryEntry.setModTime(new Date(LAST_MODIFIED));
+            directoryEntry.setUserName("");
+            directoryEntry.setGroupName("");
+            tarOutputStream.putArchiveEntry(directoryEntry);
+            tarOutputStream.closeArchiveEntry();
+            for (Chunk chunk : chunksInDirectory) {
+                writeReferenceFile(tarOutputStream, "docs/", chunk);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeReferenceFile(TarArchiveOutputStream tarOutputStream, String prefix, Chunk chunk)
+            throws IOException {
+        TarArchiveEntry tarEntry = new TarArchiveEntry(prefix + chunk.getOriginalFileName());
+        tarEntry.setSize(chunk.getSizeBytes());
+        tarEntry.setModTime(new Date(chunk.getLastModified()));
+        tarEntry.setUserName("");
+        tarEntry.setGroupName("");
+        tarOutputStream.putArchiveEntry(tarEntry);
+        tarOutputStream.write(Files.readAllBytes(Path.of(chunk.getAbsoluteFilePath())));
+        tarOutputStream.closeArchiveEntry();
+    }
+
+    private static TarEntryPlan findEntry(TarArchivePlan plan, String name) {
+        return plan.getEntries().stream().filter(entry -> entry.getName().equals(name)).findFirst().orElseThrow();
+    }
+}
@@ -0,0 +1,137 @@
+package server.filestorm.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Compares the finalize stage of spooled uploads with the former 8KB copy loop:
+ * checks that transferTo copies the file unchanged and reports the timings of
+ * the copy loop, transferTo and the atomic move. The variants run in turns and
+ * in alternating order, so neither always finds the file in the page cache.
+ * The timings are not asserted - they depend on the disks and the page cache
+ * too much. Disabled by default, as it writes several GB. Run with:
+ * ./mvnw test -Dtest=FileTransferUtilBenchmark -Dfilestorm.benchmark=true
+ * Set -Dfilestorm.benchmark.spool and -Dfilestorm.benchmark.storage to
+ * directories on different file systems to measure the transferTo fallback.
+ */
+@EnabledIfSystemProperty(named = "filestorm.benchmark", matches = "true")
+class FileTransferUtilBenchmark {
+
+    private static final long[] FILE_SIZES = { 1L << 20, 100L << 20, 5L << 30 }; // 1MB, 100MB, 5GB
+
+    private static final int ROUNDS = 4;
+
+    @Test
+    void compareFinalizeWithCopyLoop() throws IOException {
+        Path spool = Files.createTempDirectory(
+                Path.of(System.getProperty("filestorm.benchmark.spool", System.getProperty("java.io.tmpdir"))),
+                "spool");
+        Path storage = Files.createTempDirectory(
+                Path.of(System.getProperty("filestorm.benchmark.storage", System.getProperty("java.io.tmpdir"))),
+                "storage");
+        boolean isSameFileStore = FileTransferUtil.isSameFileStore(spool, storage);
+
+        for (long size : FILE_SIZES) {
+            Path spooled = spool.resolve("upload.tmp");
+            createFile(spooled, size);
+
+            long[] copyLoopNanos = new long[ROUNDS];
+            long[] transferToNanos = new long[ROUNDS];
+            long[] moveNanos = new long[ROUNDS];
+            for (int round = 0; round < ROUNDS; round++) {
+                if (round % 2 == 0) {
+                    copyLoopNanos[round] = time(() -> copyLoop(spooled, storage.resolve("copy_loop")));
+                    transferToNanos[round] = timeTransferTo(spooled, storage.resolve("transfer_to"), size);
+                } else {
+                    transferToNanos[round] = timeTransferTo(spooled, storage.resolve("transfer_to"), size);
+                    copyLoopNanos[round] = time(() -> copyLoop(spooled, storage.resolve("copy_loop")));
+                }
+                Files.delete(storage.resolve("copy_loop"));
+                Files.delete(storage.resolve("transfer_to"));
+
+                if (isSameFileStore) {
+                    moveNanos[round] = time(
+                            () -> Files.move(spooled, storage.resolve("moved"), StandardCopyOption.ATOMIC_MOVE));
+                    assertEquals(size, Files.size(storage.resolve("moved")));
+                    // back for the next round, not timed
+                    Files.move(storage.resolve("moved"), spooled, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+
+            System.out.println(String.format(
+                    "%1$d bytes in %2$d rounds, min/avg: copy loop %3$s us, transferTo %4$s us, atomic move %5$s",
+                    size, ROUNDS, format(copyLoopNanos), format(transferToNanos),
+                    isSameFileStore ? format(moveNanos) + " us" : "not possible across file stores"));
+            Files.delete(spooled);
+        }
+        Files.delete(spool);
+        Files.delete(storage);
+    }
+
+    // The former FileSystemService.store implementation.
+    private static void copyLoop(Path source, Path destination) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(source);
+                OutputStream outputStream = Files.newOutputStream(destination, StandardOpenOption.CREATE);) {
+            byte[] buffer = new byte[8192]; // 8KB buffer
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+
+    private static long timeTransferTo(Path source, Path destination, long size) throws IOException {
+        long[] transferred = new long[1];
+        long nanos = time(() -> transferred[0] = FileTransferUtil.transfer(source, destination));
+        assertEquals(size, transferred[0]);
+        assertEquals(-1, Files.mismatch(source, destination), "The transferred file differs from the spooled one.");
+        return nanos;
+    }
+
+    private static String format(long[] nanos) {
+        long min = Long.MAX_VALUE;
+        long sum = 0;
+        for (long n : nanos) {
+            min = Math.min(min, n);
+            sum += n;
+        }
+        return (min / 1000) + "/" + (sum / nanos.length / 1000);
+    }
+
+    private static void createFile(Path path, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        ThreadLocalRandom.current().nextBytes(buffer.array());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (written < size) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - written));
+                written += channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static long time(IOAction action) throws IOException {
+        long start = System.nanoTime();
+        action.run();
+        return System.nanoTime() - start;
+    }
+
+    @FunctionalInterface
+    private interface IOAction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,153 @@
+package server.filestorm.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ParallelGzipOutputStreamTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void startExecutor() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void roundTripsAcrossBlocks() throws Exception {
+        byte[] input = newInput(10 * BLOCK_SIZE + 123);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(out, executor, BLOCK_SIZE, 2,
+                Deflater.DEFAULT_COMPRESSION);
+        // writes which do not line up with the blocks, flushed in between
+        int offset = 0;
+        while (offset < input.length) {
+            int length = Math.min(1000, input.length - offset);
+            gzipOutputStream.write(input, offset, length);
+            offset += length;
+            gzipOutputStream.write(input[offset - 1]);
+            gzipOutputStream.flush();
+        }
+        gzipOutputStream.finish();
+
+        assertArrayEquals(withRepeatedEnds(input, 1000), gunzip(out.toByteArray()));
+    }
+
+    @Test
+    void emptyInputIsOneMember() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(out, executor, BLOCK_SIZE, 2,
+                Deflater.DEFAULT_COMPRESSION);
+        gzipOutputStream.finish();
+
+        assertTrue(out.size() > 0, "An empty input should still be a gzip file");
+        assertEquals(0, gunzip(out.toByteArray()).length);
+    }
+
+    @Test
+    void setLevelInTheMiddleOfABlock() throws Exception {
+        byte[] compressed = new byte[BLOCK_SIZE / 2];
+        byte[] stored = new byte[3 * BLOCK_SIZE];
+        byte[] compressedAgain = new byte[BLOCK_SIZE + 10];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(out, executor, BLOCK_SIZE, 2,
+                Deflater.BEST_COMPRESSION);
+        gzipOutputStream.write(compressed);
+        gzipOutputStream.setLevel(Deflater.NO_COMPRESSION);
+        gzipOutputStream.write(stored);
+        gzipOutputStream.setLevel(Deflater.BEST_COMPRESSION);
+        gzipOutputStream.write(compressedAgain);
+        gzipOutputStream.finish();
+
+        byte[] input = new byte[compressed.length + stored.length + compressedAgain.length];
+        assertArrayEquals(input, gunzip(out.toByteArray()));
+        // the zeros written without compression are in the output as they are
+        assertTrue(out.size() > stored.length, "The stored bytes should not be compressed, got " + out.size());
+        assertTrue(out.size() < stored.length + BLOCK_SIZE / 2,
+                "The bytes around them should be compressed, got " + out.size());
+    }
+
+    @Test
+    void abortCancelsThePendingBlocks() throws Exception {
+        CountDownLatch isBlocked = new CountDownLatch(1);
+        // occupy both threads, so the blocks stay pending
+        for (int i = 0; i < 2; i++) {
+            executor.submit(() -> {
+                isBlocked.await();
+                return null;
+            });
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(out, executor, BLOCK_SIZE, 4,
+                Deflater.DEFAULT_COMPRESSION);
+        gzipOutputStream.write(newInput(3 * BLOCK_SIZE + 1));
+        gzipOutputStream.abort();
+        isBlocked.countDown();
+
+        assertThrows(IOException.class, () -> gzipOutputStream.write(1));
+        gzipOutputStream.flush();
+        gzipOutputStream.finish();
+        assertEquals(0, out.size());
+    }
+
+    /**
+     * Half compressible text, half random bytes.
+     */
+    private static byte[] newInput(int length) {
+        byte[] input = new byte[length];
+        new Random(42).nextBytes(input);
+        byte[] text = "The quick brown fox jumps over the lazy dog. ".getBytes();
+        for (int i = 0; i < length; i += 2 * BLOCK_SIZE / 3) {
+            for (int j = i; j < Math.min(length, i + BLOCK_SIZE / 3); j++) {
+                input[j] = text[j % text.length];
+            }
+        }
+        return input;
+    }
+
+    /**
+     * The input as written by roundTripsAcrossBlocks - every chunk followed by
+     * it's last byte once more.
+     */
+    private static byte[] withRepeatedEnds(byte[] input, int chunkSize) {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int offset = 0; offset < input.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, input.length - offset);
+            expected.write(input, offset, length);
+            expected.write(input[offset + length - 1]);
+        }
+        return expected.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] gzip) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            return in.readAllBytes();
+        }
+    }
+}